@@ -0,0 +1,110 @@
+package ru.kontur.intern.benchmark;
+
+import io.micrometer.core.instrument.Metrics;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.PyramidUpdater;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.repo.storage.ImageStorage;
+import ru.kontur.intern.repo.storage.TileCodec;
+import ru.kontur.intern.repo.storage.TiledImageStorage;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Temporary storage and test data shared by benchmarks.
+ */
+class BenchmarkStorage {
+    private static final int TILE_SIZE = 512;
+
+    final Path path;
+    final ImageStorage storage;
+    final ImageRepo imageRepo;
+    final PyramidUpdater pyramidUpdater;
+
+    BenchmarkStorage(String format) throws IOException {
+        this(format, BandExecutor.serial());
+    }
+
+    BenchmarkStorage(String format, BandExecutor bandExecutor) throws IOException {
+        path = Files.createTempDirectory("chartographer-benchmark");
+        switch (format) {
+            case "bmp":
+                storage = new BmpImageStorage(path);
+                break;
+            case "tiled":
+                storage = new TiledImageStorage(path, TILE_SIZE);
+                break;
+            case "deflate":
+            case "rle":
+                storage = new TiledImageStorage(path, TILE_SIZE, TileCodec.of(format));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown storage format: %s", format));
+        }
+        imageRepo = new ImageRepo(storage, 200, TILE_SIZE, 4096, Metrics.globalRegistry, bandExecutor);
+        pyramidUpdater = new PyramidUpdater(imageRepo, TILE_SIZE);
+    }
+
+    void close() throws IOException {
+        pyramidUpdater.close();
+        storage.close();
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * @param size size in {@code <width>x<height>} form
+     */
+    static Dimension parseSize(String size) {
+        String[] parts = size.split("x");
+        return new Dimension(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Computes top-left corner of the fragment.
+     *
+     * @param placement {@code inside} - fragment centered in the image,
+     *                  {@code edge} - only the top-left quarter of fragment overlaps the bottom-right corner of the image
+     */
+    static Dimension offset(Dimension image, Dimension fragment, String placement) {
+        switch (placement) {
+            case "inside":
+                return new Dimension(Math.max(0, (image.width - fragment.width) / 2),
+                        Math.max(0, (image.height - fragment.height) / 2));
+            case "edge":
+                return new Dimension(Math.max(0, image.width - fragment.width / 2),
+                        Math.max(0, image.height - fragment.height / 2));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown placement: %s", placement));
+        }
+    }
+
+    /**
+     * Encodes a fragment filled with noise as 24-bit BMP.
+     */
+    static byte[] randomBmp(Dimension size) throws IOException {
+        var image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        var random = new Random(42);
+        for (int y = 0; y < size.height; y++) {
+            for (int x = 0; x < size.width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        var output = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", output);
+        return output.toByteArray();
+    }
+}
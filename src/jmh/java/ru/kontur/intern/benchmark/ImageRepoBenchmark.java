@@ -0,0 +1,81 @@
+package ru.kontur.intern.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.kontur.intern.bmp.BmpReader;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw storage access of {@link ru.kontur.intern.repo.ImageRepo} without HTTP encoding and validation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ImageRepoBenchmark {
+    @Param({"bmp", "tiled", "deflate", "rle"})
+    public String format;
+    @Param({"2000x2000", "20000x50000"})
+    public String chartaSize;
+    @Param({"500x500", "5000x5000"})
+    public String fragmentSize;
+    @Param({"inside", "edge"})
+    public String placement;
+
+    private BenchmarkStorage storage;
+    private Dimension fragment;
+    private Dimension offset;
+    private String chartaId;
+    private byte[] fragmentBmp;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        storage = new BenchmarkStorage(format);
+        var charta = BenchmarkStorage.parseSize(chartaSize);
+        fragment = BenchmarkStorage.parseSize(fragmentSize);
+        offset = BenchmarkStorage.offset(charta, fragment, placement);
+        chartaId = storage.imageRepo.createImage(charta.width, charta.height);
+        fragmentBmp = BenchmarkStorage.randomBmp(fragment);
+        writeImagePart();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Benchmark
+    public Dimension getImageSize() {
+        return storage.imageRepo.getImageSize(chartaId);
+    }
+
+    @Benchmark
+    public void writeImagePart() throws IOException {
+        storage.imageRepo.writeImagePart(chartaId, offset.width, offset.height,
+                BmpReader.open(new ByteArrayInputStream(fragmentBmp)));
+    }
+
+    @Benchmark
+    public void readImagePart(Blackhole blackhole) throws IOException {
+        storage.imageRepo.getImagePart(chartaId, offset.width, offset.height, fragment.width, fragment.height)
+                .readRows(true, (pixels, blackPixels) -> blackhole.consume(pixels));
+    }
+}
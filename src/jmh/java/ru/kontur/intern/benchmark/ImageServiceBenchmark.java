@@ -0,0 +1,105 @@
+package ru.kontur.intern.benchmark;
+
+import io.micrometer.core.instrument.Metrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import ru.kontur.intern.converter.BmpFragmentHttpMessageConverter;
+import ru.kontur.intern.service.ImageService;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of HTTP operations below the controller: service validation, storage access and BMP encoding.
+ * Run with {@code mvn -P benchmark test-compile exec:exec}, pick thread count with {@code -Djmh.threads}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ImageServiceBenchmark {
+    @Param({"bmp", "tiled", "deflate", "rle"})
+    public String format;
+    @Param({"2000x2000", "20000x50000"})
+    public String chartaSize;
+    @Param({"500x500", "5000x5000"})
+    public String fragmentSize;
+    @Param({"inside", "edge"})
+    public String placement;
+
+    private BenchmarkStorage storage;
+    private ImageService imageService;
+    private final BmpFragmentHttpMessageConverter converter = new BmpFragmentHttpMessageConverter();
+    private final HttpOutputMessage response = new DiscardingOutputMessage();
+    private Dimension charta;
+    private Dimension fragment;
+    private Dimension offset;
+    private String chartaId;
+    private byte[] fragmentBmp;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        storage = new BenchmarkStorage(format);
+        imageService = new ImageService(storage.imageRepo, storage.pyramidUpdater, Metrics.globalRegistry);
+        charta = BenchmarkStorage.parseSize(chartaSize);
+        fragment = BenchmarkStorage.parseSize(fragmentSize);
+        offset = BenchmarkStorage.offset(charta, fragment, placement);
+        chartaId = imageService.createImage(charta.width, charta.height);
+        fragmentBmp = BenchmarkStorage.randomBmp(fragment);
+        insertImage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Benchmark
+    public void createAndDeleteImage() {
+        imageService.deleteImage(imageService.createImage(charta.width, charta.height));
+    }
+
+    @Benchmark
+    public void insertImage() throws IOException {
+        imageService.insertImage(chartaId, fragment.width, fragment.height, offset.width, offset.height,
+                new ByteArrayInputStream(fragmentBmp));
+    }
+
+    @Benchmark
+    public void getImagePart() throws IOException {
+        var imagePart = imageService.getImagePart(chartaId, fragment.width, fragment.height, offset.width, offset.height);
+        converter.write(imagePart, BmpFragmentHttpMessageConverter.IMAGE_BMP, response);
+    }
+
+    private static class DiscardingOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+
+        @Override
+        public OutputStream getBody() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.kontur.intern.benchmark;
+
+import io.micrometer.core.instrument.Metrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import ru.kontur.intern.converter.BmpFragmentHttpMessageConverter;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.service.ImageService;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a single large fragment read and decoded insert with bands processed by 1, 4 and 16 threads.
+ * Thread count 1 is the serial path. Run with {@code -Djmh.args=ParallelFragmentBenchmark} on a machine
+ * with at least as many cores as the largest thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParallelFragmentBenchmark {
+    private static final Dimension CHARTA = new Dimension(20000, 20000);
+
+    @Param({"1", "4", "16"})
+    public int threads;
+    @Param({"bmp", "deflate"})
+    public String format;
+    @Param({"5000x5000"})
+    public String fragmentSize;
+
+    private BandExecutor bandExecutor;
+    private BenchmarkStorage storage;
+    private ImageService imageService;
+    private final BmpFragmentHttpMessageConverter converter = new BmpFragmentHttpMessageConverter();
+    private final HttpOutputMessage response = new DiscardingOutputMessage();
+    private Dimension fragment;
+    private Dimension offset;
+    private String chartaId;
+    private BufferedImage fragmentImage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        bandExecutor = new BandExecutor(threads, 0);
+        storage = new BenchmarkStorage(format, bandExecutor);
+        imageService = new ImageService(storage.imageRepo, storage.pyramidUpdater, Metrics.globalRegistry);
+        fragment = BenchmarkStorage.parseSize(fragmentSize);
+        offset = BenchmarkStorage.offset(CHARTA, fragment, "inside");
+        chartaId = imageService.createImage(CHARTA.width, CHARTA.height);
+        fragmentImage = ImageIO.read(new ByteArrayInputStream(BenchmarkStorage.randomBmp(fragment)));
+        insertImage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        bandExecutor.close();
+    }
+
+    /**
+     * Insert of a fragment decoded by ImageIO, the BMP stream path is bound by the request body and stays serial.
+     */
+    @Benchmark
+    public void insertImage() {
+        imageService.insertImage(chartaId, fragment.width, fragment.height, offset.width, offset.height,
+                fragmentImage);
+    }
+
+    @Benchmark
+    public void getImagePart() throws IOException {
+        var imagePart = imageService.getImagePart(chartaId, fragment.width, fragment.height, offset.width, offset.height);
+        converter.write(imagePart, BmpFragmentHttpMessageConverter.IMAGE_BMP, response);
+    }
+
+    private static class DiscardingOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+
+        @Override
+        public OutputStream getBody() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
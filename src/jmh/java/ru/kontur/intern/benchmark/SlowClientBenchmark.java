@@ -0,0 +1,198 @@
+package ru.kontur.intern.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.kontur.intern.Application;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Many slow clients against the whole application, with requests handled by the Tomcat worker pool or on
+ * virtual threads. Every client uploads a fragment asynchronously in several chunks with a pause between them,
+ * so a request holds its thread, but no lock, for the whole upload; the worker pool serves
+ * {@code server.tomcat.threads.max} of them at a time, virtual threads serve all of them at once.
+ * Run with {@code mvn -P benchmark test-compile exec:exec -Djmh.args=SlowClientBenchmark} on JDK 21,
+ * {@code virtualThreads=true} fails to start on older JDKs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SlowClientBenchmark {
+    private static final int FRAGMENT_SIZE = 64;
+    private static final int IMAGE_SIZE = 1024;
+    //Keeps ingest queues of every image below their limit
+    private static final int IMAGES = 16;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+    @Param({"2000"})
+    public int clients;
+    @Param({"4"})
+    public int chunks;
+    @Param({"250"})
+    public int chunkDelayMillis;
+
+    private Path storagePath;
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private ScheduledExecutorService scheduler;
+    private List<URI> insertUris;
+    private byte[] fragment;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storagePath = Files.createTempDirectory("chartographer-benchmark");
+        context = new SpringApplicationBuilder(Application.class).run(storagePath.toString(),
+                "--server.port=0",
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--management.endpoints.web.exposure.include=health",
+                "--logging.level.root=info",
+                "--logging.level.web=info");
+        String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        insertUris = new ArrayList<>();
+        for (int i = 0; i < IMAGES; i++) {
+            String id = client.send(HttpRequest.newBuilder(URI.create(
+                            String.format("%s/chartas/?width=%d&height=%d", base, IMAGE_SIZE, IMAGE_SIZE)))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString()).body();
+            insertUris.add(URI.create(String.format("%s/chartas/%s/?width=%d&height=%d&x=%d&y=%d&async=true",
+                    base, id, FRAGMENT_SIZE, FRAGMENT_SIZE, i * FRAGMENT_SIZE, i * FRAGMENT_SIZE)));
+        }
+        fragment = BenchmarkStorage.randomBmp(new Dimension(FRAGMENT_SIZE, FRAGMENT_SIZE));
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.printf("%nPeak live threads: %d%n", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        scheduler.shutdownNow();
+        context.close();
+        try (Stream<Path> files = Files.walk(storagePath)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int slowUploads() {
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            var request = HttpRequest.newBuilder(insertUris.get(i % IMAGES))
+                    .header("Content-Type", "image/bmp")
+                    .POST(HttpRequest.BodyPublishers.fromPublisher(new SlowBody(fragment), fragment.length))
+                    .build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+        }
+        int accepted = 0;
+        for (var response : responses) {
+            if (response.join().statusCode() == 202) {
+                accepted++;
+            }
+        }
+        if (accepted != clients) {
+            throw new IllegalStateException(String.format("%d of %d uploads failed", clients - accepted, clients));
+        }
+        return accepted;
+    }
+
+    /**
+     * Request body emitting {@link #chunks} parts of content, each after {@link #chunkDelayMillis}.
+     * Delays are scheduled rather than slept, so thousands of clients take no client threads.
+     */
+    private class SlowBody implements Flow.Publisher<ByteBuffer> {
+        private final byte[] content;
+
+        SlowBody(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private final int chunkSize = (content.length + chunks - 1) / chunks;
+                private int position;
+                private long demand;
+                private boolean scheduled;
+                private boolean cancelled;
+
+                @Override
+                public synchronized void request(long n) {
+                    demand += n;
+                    scheduleNext();
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    cancelled = true;
+                }
+
+                private void scheduleNext() {
+                    if (!scheduled && !cancelled && demand > 0 && position < content.length) {
+                        scheduled = true;
+                        scheduler.schedule(this::emit, chunkDelayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                private void emit() {
+                    ByteBuffer chunk;
+                    boolean last;
+                    synchronized (this) {
+                        scheduled = false;
+                        if (cancelled) {
+                            return;
+                        }
+                        int length = Math.min(chunkSize, content.length - position);
+                        chunk = ByteBuffer.wrap(content, position, length);
+                        position += length;
+                        demand--;
+                        last = position == content.length;
+                    }
+                    subscriber.onNext(chunk);
+                    if (last) {
+                        subscriber.onComplete();
+                    } else {
+                        synchronized (this) {
+                            scheduleNext();
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
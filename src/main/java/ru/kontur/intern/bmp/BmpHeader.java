@@ -0,0 +1,144 @@
+package ru.kontur.intern.bmp;
+
+import lombok.Getter;
+import ru.kontur.intern.exception.IllegalImageFormatException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of an uncompressed 24-bit BMP file: BITMAPFILEHEADER, DIB header and padded pixel array.
+ * Rows are stored bottom-up unless height in the header is negative, each row is padded to 4 bytes.
+ */
+@Getter
+public class BmpHeader {
+    public static final int FILE_HEADER_SIZE = 14;
+    public static final int INFO_HEADER_SIZE = 40;
+    public static final int HEADER_SIZE = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+    public static final int BYTES_PER_PIXEL = 3;
+
+    private static final short SIGNATURE = 0x4D42;
+    private static final short BITS_PER_PIXEL = 24;
+    private static final int BI_RGB = 0;
+
+    private final int width;
+    private final int height;
+    private final boolean bottomUp;
+    private final int dataOffset;
+
+    private BmpHeader(int width, int height, boolean bottomUp, int dataOffset) {
+        this.width = width;
+        this.height = height;
+        this.bottomUp = bottomUp;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Creates header of bottom-up 24-bit image, the same one ImageIO writes for RGB images.
+     *
+     * @param width  image width
+     * @param height image height
+     */
+    public static BmpHeader of(int width, int height) {
+        return new BmpHeader(width, height, true, HEADER_SIZE);
+    }
+
+    /**
+     * Parses header from the beginning of BMP file.
+     *
+     * @param buffer buffer positioned at the first byte of file, at least {@link #HEADER_SIZE} bytes remaining
+     * @throws IllegalImageFormatException if buffer does not contain 24-bit uncompressed BMP header
+     */
+    public static BmpHeader read(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IllegalImageFormatException("BMP header is truncated");
+        }
+        var header = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getShort(0) != SIGNATURE) {
+            throw new IllegalImageFormatException("Missing BMP signature");
+        }
+        int dataOffset = header.getInt(10);
+        int width = header.getInt(18);
+        int height = header.getInt(22);
+        short bitsPerPixel = header.getShort(28);
+        int compression = header.getInt(30);
+        if (bitsPerPixel != BITS_PER_PIXEL || compression != BI_RGB) {
+            throw new IllegalImageFormatException(String.format(
+                    "Only uncompressed 24-bit BMP is supported: bits per pixel=%s, compression=%s",
+                    bitsPerPixel, compression));
+        }
+        if (width <= 0 || height == 0 || height == Integer.MIN_VALUE || dataOffset < HEADER_SIZE) {
+            throw new IllegalImageFormatException(String.format(
+                    "Malformed BMP header: width=%s, height=%s, data offset=%s", width, height, dataOffset));
+        }
+        buffer.position(buffer.position() + HEADER_SIZE);
+        return new BmpHeader(width, Math.abs(height), height > 0, dataOffset);
+    }
+
+    /**
+     * Writes header in the canonical form: BITMAPINFOHEADER, bottom-up rows, no resolution and palette.
+     *
+     * @param buffer destination buffer with at least {@link #HEADER_SIZE} bytes remaining
+     */
+    public void write(ByteBuffer buffer) {
+        var order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(SIGNATURE)
+                .putInt((int) getFileSize())
+                .putInt(0)
+                .putInt(HEADER_SIZE)
+                .putInt(INFO_HEADER_SIZE)
+                .putInt(width)
+                .putInt(height)
+                .putShort((short) 1)
+                .putShort(BITS_PER_PIXEL)
+                .putInt(BI_RGB)
+                .putInt((int) getImageSize())
+                .putInt(0)
+                .putInt(0)
+                .putInt(0)
+                .putInt(0)
+                .order(order);
+    }
+
+    public byte[] toByteArray() {
+        var buffer = ByteBuffer.allocate(HEADER_SIZE);
+        write(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * @return length of a single row in bytes including padding
+     */
+    public int getStride() {
+        return stride(width);
+    }
+
+    public long getImageSize() {
+        return (long) getStride() * height;
+    }
+
+    public long getFileSize() {
+        return dataOffset + getImageSize();
+    }
+
+    /**
+     * @param y row index counted from the top of the image
+     * @return index of the row in the pixel array
+     */
+    public int getStoredRow(int y) {
+        return bottomUp ? height - 1 - y : y;
+    }
+
+    /**
+     * @param y row index counted from the top of the image
+     * @return file offset of the first pixel of the row
+     */
+    public long getRowOffset(int y) {
+        return dataOffset + (long) getStoredRow(y) * getStride();
+    }
+
+    public static int stride(int width) {
+        return (width * BYTES_PER_PIXEL + 3) & ~3;
+    }
+}
@@ -0,0 +1,100 @@
+package ru.kontur.intern.bmp;
+
+import lombok.Getter;
+import ru.kontur.intern.exception.IllegalImageFormatException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequential reader of 24-bit BMP stream. Rows are read one at a time in the order they are stored,
+ * so memory usage does not depend on image size.
+ */
+public class BmpReader implements RowReader {
+    private static final int MAX_HEADER_EXTENSION = 64 * 1024;
+
+    private final DataInputStream input;
+    @Getter
+    private final BmpHeader header;
+    private int rowsRead;
+
+    private BmpReader(DataInputStream input, BmpHeader header) {
+        this.input = input;
+        this.header = header;
+    }
+
+    /**
+     * Reads BMP header and skips everything up to the pixel array.
+     *
+     * @param input stream positioned at the beginning of BMP file
+     * @throws IllegalImageFormatException if stream does not start with 24-bit uncompressed BMP header
+     */
+    public static BmpReader open(InputStream input) throws IOException {
+        var dataInput = new DataInputStream(input);
+        byte[] headerBytes = new byte[BmpHeader.HEADER_SIZE];
+        try {
+            dataInput.readFully(headerBytes);
+        } catch (EOFException e) {
+            throw new IllegalImageFormatException("BMP header is truncated");
+        }
+        var header = BmpHeader.read(ByteBuffer.wrap(headerBytes));
+        skipFully(dataInput, header.getDataOffset() - BmpHeader.HEADER_SIZE);
+        return new BmpReader(dataInput, header);
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    /**
+     * @return {@link BmpHeader#getStride()}, rows are read with their padding
+     */
+    @Override
+    public int getRowSize() {
+        return header.getStride();
+    }
+
+    @Override
+    public boolean hasNextRow() {
+        return rowsRead < header.getHeight();
+    }
+
+    /**
+     * Reads the next stored row including its padding.
+     *
+     * @param row buffer of at least {@link BmpHeader#getStride()} bytes, receives BGR pixels
+     * @return index of the row counted from the top of the image
+     * @throws IllegalImageFormatException if stream ends before all rows are read
+     */
+    @Override
+    public int readRow(byte[] row) throws IOException {
+        try {
+            input.readFully(row, 0, header.getStride());
+        } catch (EOFException e) {
+            throw new IllegalImageFormatException(String.format("BMP pixel data is truncated at row %s of %s",
+                    rowsRead, header.getHeight()));
+        }
+        return header.getStoredRow(rowsRead++);
+    }
+
+    private static void skipFully(DataInputStream input, int count) throws IOException {
+        if (count > MAX_HEADER_EXTENSION) {
+            throw new IllegalImageFormatException(String.format("BMP pixel data offset is too large: %s",
+                    count + BmpHeader.HEADER_SIZE));
+        }
+        try {
+            input.readFully(new byte[count]);
+        } catch (EOFException e) {
+            throw new IllegalImageFormatException("BMP pixel data offset is beyond the end of stream");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ru.kontur.intern.bmp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteBuffer;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Clips spans of fragments placed at an offset and converts rows of opaque pixels between rasters
+ * without Java2D compositing.
+ * Rasters are arrays of rows without padding: int rasters hold 0xRRGGBB pixels, byte rasters hold BGR triples.
+ * None of the methods allocate.
+ */
+public final class PixelCopy {
+    private PixelCopy() {
+    }
+
+    /**
+     * Returns the first index of a span of length {@code srcLength} placed at {@code offset}
+     * which falls into {@code [0, dstLength)}. Spans which do not intersect it get {@code clipStart >= clipEnd}.
+     *
+     * @param offset position of the span in destination, may be negative
+     */
+    public static int clipStart(int offset, int srcLength) {
+        return (int) Math.min(srcLength, Math.max(0, -(long) offset));
+    }
+
+    /**
+     * Returns the index after the last element of a span of length {@code srcLength} placed at {@code offset}
+     * which falls into {@code [0, dstLength)}.
+     *
+     * @param offset position of the span in destination, may be negative
+     */
+    public static int clipEnd(int offset, int srcLength, int dstLength) {
+        return (int) Math.max(0, Math.min(srcLength, (long) dstLength - offset));
+    }
+
+    /**
+     * Converts {@code count} 0xRRGGBB pixels into BGR triples.
+     */
+    public static void rgbToBgr(int[] src, int srcOffset, byte[] dst, int dstOffset, int count) {
+        for (int i = srcOffset, b = dstOffset; i < srcOffset + count; i++, b += BYTES_PER_PIXEL) {
+            int rgb = src[i];
+            dst[b] = (byte) rgb;
+            dst[b + 1] = (byte) (rgb >> 8);
+            dst[b + 2] = (byte) (rgb >> 16);
+        }
+    }
+
+    /**
+     * Converts all remaining BGR triples of {@code src} into 0xRRGGBB pixels and consumes them.
+     *
+     * @return number of converted pixels
+     */
+    public static int bgrToRgb(ByteBuffer src, int[] dst, int dstOffset) {
+        int count = src.remaining() / BYTES_PER_PIXEL;
+        int position = src.position();
+        for (int i = dstOffset, b = position; i < dstOffset + count; i++, b += BYTES_PER_PIXEL) {
+            dst[i] = (src.get(b) & 0xFF) | (src.get(b + 1) & 0xFF) << 8 | (src.get(b + 2) & 0xFF) << 16;
+        }
+        src.position(position + count * BYTES_PER_PIXEL);
+        return count;
+    }
+
+    /**
+     * Swaps the first and the last byte of {@code count} triples in place, turning BGR pixels into RGB and back.
+     */
+    public static void swapRedBlue(byte[] pixels, int offset, int count) {
+        for (int b = offset; b < offset + count * BYTES_PER_PIXEL; b += BYTES_PER_PIXEL) {
+            byte blue = pixels[b];
+            pixels[b] = pixels[b + 2];
+            pixels[b + 2] = blue;
+        }
+    }
+
+    /**
+     * Returns backing BGR raster of an image if its pixels are laid out as rows of BGR triples without padding,
+     * which is the case for 24-bit images decoded by ImageIO.
+     *
+     * @return raster or {@code null} if image has any other layout
+     */
+    public static byte[] bgrRaster(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR || !isUntranslated(image)
+                || !(image.getRaster().getDataBuffer() instanceof DataBufferByte)) {
+            return null;
+        }
+        var sampleModel = (ComponentSampleModel) image.getSampleModel();
+        var buffer = (DataBufferByte) image.getRaster().getDataBuffer();
+        if (sampleModel.getScanlineStride() != image.getWidth() * BYTES_PER_PIXEL || buffer.getOffset() != 0) {
+            return null;
+        }
+        return buffer.getData();
+    }
+
+    /**
+     * Returns backing 0xRRGGBB raster of an image if its pixels are laid out as rows without padding.
+     *
+     * @return raster or {@code null} if image has any other layout
+     */
+    public static int[] rgbRaster(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB || !isUntranslated(image)
+                || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+            return null;
+        }
+        var sampleModel = (SinglePixelPackedSampleModel) image.getSampleModel();
+        var buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+        if (sampleModel.getScanlineStride() != image.getWidth() || buffer.getOffset() != 0) {
+            return null;
+        }
+        return buffer.getData();
+    }
+
+    private static boolean isUntranslated(BufferedImage image) {
+        var raster = image.getRaster();
+        return raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.kontur.intern.bmp;
+
+import ru.kontur.intern.exception.IllegalImageFormatException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Sequential reader of raw RGB stream: {@link #MAGIC}, big-endian 32-bit width and height,
+ * then top-down rows of RGB pixels without padding. There is nothing to decode, pixels are only reordered to BGR.
+ */
+public class RawRgbReader implements RowReader {
+    public static final byte[] MAGIC = {'R', 'G', 'B', '8'};
+    public static final int HEADER_SIZE = MAGIC.length + 2 * Integer.BYTES;
+
+    private final DataInputStream input;
+    private final int width;
+    private final int height;
+    private int rowsRead;
+
+    private RawRgbReader(DataInputStream input, int width, int height) {
+        this.input = input;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Reads raw RGB header.
+     *
+     * @param input stream positioned at the beginning of raw RGB stream
+     * @throws IllegalImageFormatException if stream does not start with raw RGB header
+     */
+    public static RawRgbReader open(InputStream input) throws IOException {
+        var dataInput = new DataInputStream(input);
+        byte[] magic = new byte[MAGIC.length];
+        int width;
+        int height;
+        try {
+            dataInput.readFully(magic);
+            width = dataInput.readInt();
+            height = dataInput.readInt();
+        } catch (EOFException e) {
+            throw new IllegalImageFormatException("Raw RGB header is truncated");
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IllegalImageFormatException("Stream is not raw RGB");
+        }
+        if (width <= 0 || height <= 0 || (long) width * BYTES_PER_PIXEL > Integer.MAX_VALUE) {
+            throw new IllegalImageFormatException(String.format("Illegal raw RGB size: width=%s, height=%s",
+                    width, height));
+        }
+        return new RawRgbReader(dataInput, width, height);
+    }
+
+    /**
+     * @return whether {@code prefix} of a stream is {@link #MAGIC}
+     */
+    public static boolean hasMagic(byte[] prefix) {
+        return Arrays.equals(prefix, MAGIC);
+    }
+
+    /**
+     * @return header of raw RGB stream of specified size
+     */
+    public static byte[] header(int width, int height) {
+        return ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(width).putInt(height).array();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getRowSize() {
+        return width * BYTES_PER_PIXEL;
+    }
+
+    @Override
+    public boolean hasNextRow() {
+        return rowsRead < height;
+    }
+
+    @Override
+    public int readRow(byte[] row) throws IOException {
+        try {
+            input.readFully(row, 0, getRowSize());
+        } catch (EOFException e) {
+            throw new IllegalImageFormatException(String.format("Raw RGB pixel data is truncated at row %s of %s",
+                    rowsRead, height));
+        }
+        PixelCopy.swapRedBlue(row, 0, width);
+        return rowsRead++;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.kontur.intern.bmp;
+
+import java.io.IOException;
+
+/**
+ * Sequential reader of uploaded fragment rows. Rows are read one at a time in the order they are stored,
+ * so memory usage does not depend on fragment size.
+ */
+public interface RowReader {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return size of the buffer {@link #readRow(byte[])} needs, at least {@code width * 3} bytes
+     */
+    int getRowSize();
+
+    boolean hasNextRow();
+
+    /**
+     * Reads the next stored row.
+     *
+     * @param row buffer of at least {@link #getRowSize()} bytes, receives BGR pixels
+     * @return index of the row counted from the top of the fragment
+     * @throws ru.kontur.intern.exception.IllegalImageFormatException if stream ends before all rows are read
+     */
+    int readRow(byte[] row) throws IOException;
+}
@@ -0,0 +1,47 @@
+package ru.kontur.intern.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import ru.kontur.intern.controller.AdmissionInterceptor;
+import ru.kontur.intern.service.AdmissionControl;
+
+import java.time.Duration;
+
+@Configuration
+public class AdmissionConfig implements WebMvcConfigurer {
+    @Value("${admission.enabled:true}")
+    public Boolean enabled;
+    @Value("${admission.max-in-flight-bytes:1073741824}")
+    public Long maxInFlightBytes;
+    @Value("${admission.max-wait:2s}")
+    public Duration maxWait;
+    @Value("${admission.client.bytes-per-second:268435456}")
+    public Long clientBytesPerSecond;
+    @Value("${admission.client.burst-bytes:1073741824}")
+    public Long clientBurstBytes;
+
+    private final ObjectProvider<AdmissionControl> admissionControl;
+
+    public AdmissionConfig(ObjectProvider<AdmissionControl> admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Bean
+    public AdmissionControl createAdmissionControl(MeterRegistry meterRegistry) {
+        return new AdmissionControl(maxInFlightBytes, clientBytesPerSecond, clientBurstBytes, maxWait, meterRegistry);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (enabled) {
+            //Fragment reads and writes of a charta, creation and deletion move no pixels
+            registry.addInterceptor(new AdmissionInterceptor(admissionControl.getObject()))
+                    .addPathPatterns("/chartas/*/", "/chartas/*/batch/");
+        }
+    }
+}
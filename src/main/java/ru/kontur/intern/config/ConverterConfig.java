@@ -1,16 +1,38 @@
 package ru.kontur.intern.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.converter.BufferedImageHttpMessageConverter;
 import org.springframework.http.converter.HttpMessageConverter;
-
-import java.awt.image.BufferedImage;
+import ru.kontur.intern.converter.BmpFragmentHttpMessageConverter;
+import ru.kontur.intern.converter.PngFragmentHttpMessageConverter;
+import ru.kontur.intern.converter.RawRgbFragmentHttpMessageConverter;
+import ru.kontur.intern.model.ImageFragment;
 
 @Configuration
 public class ConverterConfig {
+    @Value("${fragment.png.compression-level:1}")
+    public Integer pngCompressionLevel;
+
+    @Bean
+    public HttpMessageConverter<Object> bmpFragmentHttpMessageConverter(ObjectProvider<MeterRegistry> meterRegistry) {
+        //Web slices of tests have no meter registry
+        return new BmpFragmentHttpMessageConverter(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    @Bean
+    public HttpMessageConverter<ImageFragment> pngFragmentHttpMessageConverter(
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        return new PngFragmentHttpMessageConverter(pngCompressionLevel,
+                meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
     @Bean
-    public HttpMessageConverter<BufferedImage> bufferedImageHttpMessageConverter() {
-        return new BufferedImageHttpMessageConverter();
+    public HttpMessageConverter<ImageFragment> rawRgbFragmentHttpMessageConverter(
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        return new RawRgbFragmentHttpMessageConverter(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
     }
 }
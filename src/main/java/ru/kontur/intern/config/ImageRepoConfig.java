@@ -1,29 +1,153 @@
 package ru.kontur.intern.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.BufferPool;
+import ru.kontur.intern.repo.ImageIndex;
 import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.PyramidUpdater;
+import ru.kontur.intern.repo.StorageScrubber;
+import ru.kontur.intern.repo.storage.BlobImageStorage;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.repo.storage.CachingImageStorage;
+import ru.kontur.intern.repo.storage.FileBlobStore;
+import ru.kontur.intern.repo.storage.ImageStorage;
+import ru.kontur.intern.repo.storage.JournalingImageStorage;
+import ru.kontur.intern.repo.storage.MemoryImageStorage;
+import ru.kontur.intern.repo.storage.TileCodec;
+import ru.kontur.intern.repo.storage.TiledImageStorage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 @Configuration
 public class ImageRepoConfig {
+    private static final String JOURNAL_DIRECTORY = "journal";
+    private static final String INDEX_FILE = "images.index";
+
     private ApplicationArguments args;
-    @Value("${server.tomcat.threads.max:200}")
+    @Value("${storage.lock.striped-size:1024}")
     public Integer stripedSize;
     @Value("${storage.path}")
     public String storagePath;
+    @Value("${storage.format:bmp}")
+    public String storageFormat;
+    @Value("${storage.tile-codec:deflate}")
+    public String tileCodec;
+    @Value("${storage.tile-size:512}")
+    public Integer tileSize;
+    @Value("${storage.blob.part-size:5242880}")
+    public Integer blobPartSize;
+    @Value("${storage.lock.region-striped-size:4096}")
+    public Integer regionStripedSize;
+    @Value("${storage.parallel.threads:4}")
+    public Integer parallelThreads;
+    @Value("${storage.parallel.min-pixels:1048576}")
+    public Long parallelMinPixels;
+    @Value("${storage.buffer-pool.max-bytes:268435456}")
+    public Long bufferPoolMaxBytes;
+    @Value("${storage.buffer-pool.min-buffer-size:65536}")
+    public Integer bufferPoolMinBufferSize;
+    @Value("${storage.cache.max-bytes:0}")
+    public Long cacheMaxBytes;
+    @Value("${storage.cache.flush-interval:5s}")
+    public Duration cacheFlushInterval;
+    @Value("${storage.journal.enabled:false}")
+    public Boolean journalEnabled;
+    @Value("${storage.journal.checkpoint-interval:30s}")
+    public Duration journalCheckpointInterval;
+    @Value("${storage.scrubber.bytes-per-second:8388608}")
+    public Long scrubberBytesPerSecond;
+    @Value("${storage.scrubber.interval:1h}")
+    public Duration scrubberInterval;
 
     public ImageRepoConfig(ApplicationArguments args) {
         this.args = args;
     }
 
     @Bean
-    public ImageRepo createImageRepo() {
+    public ImageStorage createImageStorage(MeterRegistry meterRegistry) throws IOException {
         //Try to read path from args
         if(!args.getNonOptionArgs().isEmpty()) {
             storagePath = args.getNonOptionArgs().get(0);
         }
-        return new ImageRepo(storagePath, stripedSize);
+        ImageStorage storage;
+        switch (storageFormat) {
+            case "bmp":
+                storage = new BmpImageStorage(Path.of(storagePath));
+                break;
+            case "tiled":
+                storage = new TiledImageStorage(Path.of(storagePath), tileSize);
+                break;
+            case "compressed":
+                storage = new TiledImageStorage(Path.of(storagePath), tileSize, TileCodec.of(tileCodec));
+                break;
+            case "memory":
+                storage = new MemoryImageStorage(tileSize);
+                break;
+            case "blob":
+                storage = new BlobImageStorage(new FileBlobStore(Path.of(storagePath)), tileSize, blobPartSize);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown storage format: %s", storageFormat));
+        }
+        if (cacheMaxBytes > 0) {
+            //Cached blocks follow the region lock grid, cache meters are registered here as the cache may be wrapped
+            storage = new CachingImageStorage(storage, tileSize, cacheMaxBytes, cacheFlushInterval, meterRegistry);
+        }
+        if (journalEnabled) {
+            //Journal is in front of the cache, so dirty cached blocks are recovered from it after a crash
+            storage = new JournalingImageStorage(storage, Path.of(storagePath).resolve(JOURNAL_DIRECTORY),
+                    journalCheckpointInterval);
+        }
+        return storage;
+    }
+
+    @Bean
+    public BandExecutor createBandExecutor() {
+        return new BandExecutor(parallelThreads, parallelMinPixels);
+    }
+
+    @Bean
+    public BufferPool createBufferPool(MeterRegistry meterRegistry) {
+        return new BufferPool(bufferPoolMaxBytes, bufferPoolMinBufferSize, meterRegistry);
+    }
+
+    @Bean
+    public ImageIndex createImageIndex(ImageStorage imageStorage) throws IOException {
+        if ("memory".equals(storageFormat)) {
+            //Images do not outlive the process, a saved index would list images which are gone
+            return new ImageIndex(imageStorage);
+        }
+        //Coverage cells follow the tile grid, like region locks
+        return ImageIndex.open(imageStorage, Path.of(storagePath).resolve(INDEX_FILE), tileSize);
+    }
+
+    @Bean
+    public ImageRepo createImageRepo(ImageStorage imageStorage, ImageIndex imageIndex, MeterRegistry meterRegistry,
+                                     BandExecutor bandExecutor, BufferPool bufferPool) {
+        //Region locks follow the tile grid, so writers of disjoint tiles never share a lock
+        return new ImageRepo(imageStorage, imageIndex, stripedSize, tileSize, regionStripedSize, meterRegistry,
+                bandExecutor, bufferPool);
+    }
+
+    @Bean
+    public PyramidUpdater createPyramidUpdater(ImageRepo imageRepo) {
+        //Levels are recomputed in chunks of a tile
+        return new PyramidUpdater(imageRepo, tileSize);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "storage.scrubber.enabled", havingValue = "true", matchIfMissing = true)
+    public StorageScrubber createStorageScrubber(ImageRepo imageRepo, ImageStorage imageStorage,
+                                                 PyramidUpdater pyramidUpdater, MeterRegistry meterRegistry) {
+        return new StorageScrubber(imageRepo, imageStorage, pyramidUpdater, scrubberBytesPerSecond, scrubberInterval,
+                meterRegistry);
     }
 }
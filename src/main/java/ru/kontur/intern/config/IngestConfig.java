@@ -0,0 +1,22 @@
+package ru.kontur.intern.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.kontur.intern.service.ImageService;
+import ru.kontur.intern.service.IngestService;
+
+@Configuration
+public class IngestConfig {
+    @Value("${ingest.threads:4}")
+    public Integer threads;
+    @Value("${ingest.queue.max-bytes:268435456}")
+    public Long maxQueuedBytes;
+    @Value("${ingest.queue.max-per-charta:1024}")
+    public Integer maxQueuedPerCharta;
+
+    @Bean
+    public IngestService createIngestService(ImageService imageService) {
+        return new IngestService(imageService, threads, maxQueuedBytes, maxQueuedPerCharta);
+    }
+}
@@ -0,0 +1,57 @@
+package ru.kontur.intern.config;
+
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.boot.actuate.metrics.web.servlet.WebMvcTagsContributor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@Configuration
+public class MetricsConfig {
+    private static final String FRAGMENT_SIZE_TAG = "fragment.size";
+
+    /**
+     * Adds fragment size bucket to {@code http.server.requests}, so latency of small and large fragments
+     * is not mixed in a single histogram.
+     */
+    @Bean
+    public WebMvcTagsContributor fragmentSizeTagsContributor() {
+        return new WebMvcTagsContributor() {
+            @Override
+            public Iterable<Tag> getTags(HttpServletRequest request, HttpServletResponse response,
+                                         Object handler, Throwable exception) {
+                return Tags.of(FRAGMENT_SIZE_TAG, fragmentSizeBucket(request));
+            }
+
+            @Override
+            public Iterable<Tag> getLongRequestTags(HttpServletRequest request, Object handler) {
+                return Tags.of(FRAGMENT_SIZE_TAG, fragmentSizeBucket(request));
+            }
+        };
+    }
+
+    /**
+     * Buckets fragment area given by {@code width} and {@code height} request parameters.
+     *
+     * @return {@code none} for requests without fragment size
+     */
+    static String fragmentSizeBucket(HttpServletRequest request) {
+        long area;
+        try {
+            area = Long.parseLong(request.getParameter("width")) * Long.parseLong(request.getParameter("height"));
+        } catch (NumberFormatException e) {
+            return "none";
+        }
+        if (area <= 256 * 256) {
+            return "small";
+        } else if (area <= 1024 * 1024) {
+            return "medium";
+        } else if (area <= (long) ImageSizeConfig.IMAGE_SEGMENT_WIDTH_LIMIT * ImageSizeConfig.IMAGE_SEGMENT_HEIGHT_LIMIT) {
+            return "large";
+        }
+        return "huge";
+    }
+}
@@ -0,0 +1,69 @@
+package ru.kontur.intern.controller;
+
+import lombok.AllArgsConstructor;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import ru.kontur.intern.service.AdmissionControl;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+import static ru.kontur.intern.config.ImageSizeConfig.*;
+
+/**
+ * Passes fragment reads and writes through {@link AdmissionControl} before they reach the controller.
+ * The permit is held until the response is written, since fragments are streamed after the handler returns.
+ * Cost of a request is pixel bytes of the fragment given by {@code width} and {@code height} parameters,
+ * or length of the body if it is larger. Requests without either, or with sizes the controller rejects,
+ * are not limited.
+ */
+@AllArgsConstructor
+public class AdmissionInterceptor implements HandlerInterceptor {
+    private static final String PERMIT_ATTRIBUTE = AdmissionInterceptor.class.getName() + ".permit";
+
+    private final AdmissionControl admissionControl;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws InterruptedException {
+        long bytes = cost(request);
+        if (bytes > 0) {
+            request.setAttribute(PERMIT_ATTRIBUTE, admissionControl.admit(request.getRemoteAddr(), bytes));
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        var permit = (AdmissionControl.Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit != null) {
+            permit.close();
+        }
+    }
+
+    static long cost(HttpServletRequest request) {
+        boolean read = HttpMethod.GET.matches(request.getMethod());
+        long pixelBytes;
+        try {
+            long width = dimension(request.getParameter("width"),
+                    read ? IMAGE_SEGMENT_WIDTH_LIMIT : FULL_IMAGE_WIDTH_LIMIT);
+            long height = dimension(request.getParameter("height"),
+                    read ? IMAGE_SEGMENT_HEIGHT_LIMIT : FULL_IMAGE_HEIGHT_LIMIT);
+            pixelBytes = Math.multiplyExact(Math.multiplyExact(width, height), BYTES_PER_PIXEL);
+        } catch (NumberFormatException | ArithmeticException e) {
+            pixelBytes = 0;
+        }
+        return Math.max(pixelBytes, request.getContentLengthLong());
+    }
+
+    /**
+     * @return fragment dimension, 0 if it is out of the range accepted by the controller,
+     * such requests are rejected by validation and are not charged
+     */
+    private static long dimension(String value, int limit) {
+        long dimension = Long.parseLong(value);
+        return dimension >= 1 && dimension <= limit ? dimension : 0;
+    }
+}
@@ -2,26 +2,48 @@ package ru.kontur.intern.controller;
 
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.util.MimeType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.converter.BmpFragmentHttpMessageConverter;
+import ru.kontur.intern.converter.RawRgbFragmentHttpMessageConverter;
+import ru.kontur.intern.exception.AdmissionRejectedException;
+import ru.kontur.intern.exception.BufferPoolExhaustedException;
+import ru.kontur.intern.exception.ChartaQueueFullException;
+import ru.kontur.intern.exception.IllegalImageFormatException;
 import ru.kontur.intern.exception.IllegalImageSizeException;
 import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.exception.IngestOverloadedException;
+import ru.kontur.intern.exception.LevelOutOfRangeException;
 import ru.kontur.intern.exception.NoAppropriateWriterException;
 import ru.kontur.intern.exception.OffsetOutOfRangeException;
+import ru.kontur.intern.exception.OperationNotFoundException;
+import ru.kontur.intern.exception.RangeNotSatisfiableException;
+import ru.kontur.intern.model.FragmentByteRange;
+import ru.kontur.intern.model.FragmentResult;
+import ru.kontur.intern.model.ImageCoverage;
+import ru.kontur.intern.model.ImageFragment;
+import ru.kontur.intern.model.IngestOperation;
 import ru.kontur.intern.service.ImageService;
+import ru.kontur.intern.service.IngestService;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.ConstraintViolationException;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.util.List;
 
 import static ru.kontur.intern.config.ImageSizeConfig.*;
 
@@ -30,7 +52,15 @@ import static ru.kontur.intern.config.ImageSizeConfig.*;
 @AllArgsConstructor
 @Log4j2
 public class ImageController {
+    private static final String RETRY_AFTER_SECONDS = "1";
+    /**
+     * Formats of fragments in the order of preference, the first one is the default
+     */
+    private static final List<MediaType> FRAGMENT_TYPES = List.of(BmpFragmentHttpMessageConverter.IMAGE_BMP,
+            MediaType.IMAGE_PNG, RawRgbFragmentHttpMessageConverter.RAW_RGB);
+
     private ImageService imageService;
+    private IngestService ingestService;
 
     @PostMapping("/chartas/")
     public ResponseEntity<String> createImage(@RequestParam @Max(FULL_IMAGE_WIDTH_LIMIT) @Min(1) int width,
@@ -45,33 +75,160 @@ public class ImageController {
                                                   @RequestParam @Min(1) @Max(FULL_IMAGE_HEIGHT_LIMIT) int height,
                                                   @RequestParam @Min(0) int x,
                                                   @RequestParam @Min(0) int y,
-                                                  HttpServletRequest request) throws IOException {
-        var sourceImage =  ImageIO.read(request.getInputStream());
-        imageService.insertImage(id, width, height, x, y, sourceImage);
+                                                  HttpServletRequest request)
+            throws IOException, InterruptedException {
+        ingestService.awaitApplied(id);
+        imageService.insertImage(id, width, height, x, y, request.getInputStream());
         return ResponseEntity.ok().build();
     }
 
+    @PostMapping(value = "/chartas/{id}/", params = "async=true")
+    public ResponseEntity<IngestOperation> submitImage(@PathVariable String id,
+                                                       @RequestParam @Min(1) @Max(FULL_IMAGE_WIDTH_LIMIT) int width,
+                                                       @RequestParam @Min(1) @Max(FULL_IMAGE_HEIGHT_LIMIT) int height,
+                                                       @RequestParam @Min(0) int x,
+                                                       @RequestParam @Min(0) int y,
+                                                       HttpServletRequest request) throws IOException {
+        IngestOperation operation = ingestService.submit(id, width, height, x, y, request.getInputStream());
+        return ResponseEntity.accepted().location(URI.create("/operations/" + operation.getId())).body(operation);
+    }
+
+    @PostMapping("/chartas/{id}/batch/")
+    public ResponseEntity<List<FragmentResult>> insertImages(@PathVariable String id,
+                                                             HttpServletRequest request)
+            throws IOException, InterruptedException {
+        ingestService.awaitApplied(id);
+        return ResponseEntity.ok(imageService.insertImages(id, request.getInputStream()));
+    }
+
+    @GetMapping("/operations/{id}/")
+    public ResponseEntity<IngestOperation> getOperation(@PathVariable String id) {
+        return ResponseEntity.ok(ingestService.getOperation(id));
+    }
 
     @GetMapping("/chartas/{id}/")
-    public ResponseEntity<BufferedImage> getImagePart(@PathVariable String id,
+    public ResponseEntity<?> getImagePart(@PathVariable String id,
                                           @RequestParam @Min(1) @Max(IMAGE_SEGMENT_WIDTH_LIMIT) int width,
                                           @RequestParam @Min(1) @Max(IMAGE_SEGMENT_HEIGHT_LIMIT) int height,
                                           @RequestParam @Min(0) int x,
-                                          @RequestParam @Min(0) int y) {
-        BufferedImage imagePart = imageService.getImagePart(id, width, height, x, y);
+                                          @RequestParam @Min(0) int y,
+                                          @RequestParam(defaultValue = "0") @Min(0) int level,
+                                          @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                          @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                          @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                          WebRequest request)
+            throws InterruptedException {
+        ingestService.awaitApplied(id);
+        ImageFragment imagePart = imageService.getImagePart(id, width, height, x, y, level);
+        var contentType = fragmentType(accept);
+        boolean bmp = contentType.equals(BmpFragmentHttpMessageConverter.IMAGE_BMP);
+        //Fragment is read lazily, so a request matching If-None-Match gets 304 without reading pixels
+        long version = imageService.getVersion(id, width, height, x, y, level);
+        //Representations in different formats have different tags
+        String eTag = "\"" + version + (bmp ? "" : "-" + contentType.getSubtype()) + "\"";
+        //A range of a changed fragment would not fit the part the client has, If-Range asks for the whole one then.
+        //Ranges are served only for BMP, its length and layout are known without encoding
+        if (bmp && range != null && (ifRange == null || ifRange.equals(eTag))) {
+            var byteRange = byteRange(imagePart, range);
+            if (byteRange != null) {
+                if (request.checkNotModified(eTag)) {
+                    return null;
+                }
+                return ResponseEntity
+                        .status(HttpStatus.PARTIAL_CONTENT)
+                        .contentType(contentType)
+                        .cacheControl(CacheControl.noCache())
+                        .eTag(eTag)
+                        .varyBy(HttpHeaders.ACCEPT)
+                        .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                        .header(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d",
+                                byteRange.getStart(), byteRange.getEnd(), fileSize(imagePart)))
+                        .body(byteRange);
+            }
+        }
         return ResponseEntity
                 .ok()
-                .contentType(MediaType.asMediaType(MimeType.valueOf("image/bmp")))
+                .contentType(contentType)
+                .cacheControl(CacheControl.noCache())
+                .eTag(eTag)
+                .varyBy(HttpHeaders.ACCEPT)
+                .header(HttpHeaders.ACCEPT_RANGES, bmp ? "bytes" : "none")
                 .body(imagePart);
     }
 
+    /**
+     * @return the most preferred fragment format acceptable by {@code accept} header,
+     * BMP if there is no header or no format is acceptable
+     */
+    private static MediaType fragmentType(String accept) {
+        if (accept == null) {
+            return FRAGMENT_TYPES.get(0);
+        }
+        List<MediaType> acceptable;
+        try {
+            acceptable = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return FRAGMENT_TYPES.get(0);
+        }
+        MediaType.sortBySpecificityAndQuality(acceptable);
+        for (MediaType type : acceptable) {
+            if (type.getQualityValue() == 0) {
+                continue;
+            }
+            for (MediaType fragmentType : FRAGMENT_TYPES) {
+                if (type.includes(fragmentType)) {
+                    return fragmentType;
+                }
+            }
+        }
+        return FRAGMENT_TYPES.get(0);
+    }
+
+    /**
+     * @return bytes of BMP encoded fragment requested by a single range, {@code null} if the whole fragment
+     * should be sent: the header is malformed or asks for several ranges
+     * @throws RangeNotSatisfiableException if the range starts after the end of BMP
+     */
+    private static FragmentByteRange byteRange(ImageFragment fragment, String range) {
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (ranges.size() != 1) {
+            return null;
+        }
+        long length = fileSize(fragment);
+        long start = ranges.get(0).getRangeStart(length);
+        if (start >= length) {
+            throw new RangeNotSatisfiableException(range, length);
+        }
+        return new FragmentByteRange(fragment, start, ranges.get(0).getRangeEnd(length));
+    }
+
+    private static long fileSize(ImageFragment fragment) {
+        return BmpHeader.of(fragment.getWidth(), fragment.getHeight()).getFileSize();
+    }
+
+    @GetMapping("/chartas/{id}/coverage/")
+    public ResponseEntity<ImageCoverage> getCoverage(@PathVariable String id,
+                                                     @RequestParam(defaultValue = "0") @Min(0) int x,
+                                                     @RequestParam(defaultValue = "0") @Min(0) int y,
+                                                     @RequestParam(required = false) @Min(1) Integer width,
+                                                     @RequestParam(required = false) @Min(1) Integer height) {
+        return ResponseEntity.ok(imageService.getCoverage(id, x, y, width, height));
+    }
+
     @DeleteMapping("/chartas/{id}/")
-    public ResponseEntity<Void> deleteImage(@PathVariable String id) {
+    public ResponseEntity<Void> deleteImage(@PathVariable String id) throws InterruptedException {
+        ingestService.awaitApplied(id);
         imageService.deleteImage(id);
         return ResponseEntity.ok().build();
     }
 
-    @ExceptionHandler({ConstraintViolationException.class, IllegalImageSizeException.class, OffsetOutOfRangeException.class})
+    @ExceptionHandler({ConstraintViolationException.class, IllegalImageSizeException.class,
+            IllegalImageFormatException.class, OffsetOutOfRangeException.class, LevelOutOfRangeException.class})
     public ResponseEntity<String> handleBadRequest(Exception e) {
         return new ResponseEntity<>(String.format("Validation error: %s", e.getMessage()), HttpStatus.BAD_REQUEST);
     }
@@ -81,7 +238,53 @@ public class ImageController {
         return new ResponseEntity<>(String.format("Image not found by id: %s", e.getMessage()), HttpStatus.NOT_FOUND);
     }
 
-    @ExceptionHandler({IOException.class, NoAppropriateWriterException.class})
+    @ExceptionHandler(OperationNotFoundException.class)
+    public ResponseEntity<String> handleOperationNotFoundException(OperationNotFoundException e) {
+        return new ResponseEntity<>(e.getMessage(), HttpStatus.NOT_FOUND);
+    }
+
+    @ExceptionHandler(ChartaQueueFullException.class)
+    public ResponseEntity<String> handleChartaQueueFullException(ChartaQueueFullException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(IngestOverloadedException.class)
+    public ResponseEntity<String> handleIngestOverloadedException(IngestOverloadedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(BufferPoolExhaustedException.class)
+    public ResponseEntity<String> handleBufferPoolExhaustedException(BufferPoolExhaustedException e,
+                                                                     HttpServletResponse response) {
+        //Fragments are streamed after the handler returns, so headers of the fragment and the start of its body
+        //are in the response. Buffers are taken before the first row is read, so nothing is sent yet
+        if (!response.isCommitted()) {
+            response.reset();
+        }
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public ResponseEntity<String> handleAdmissionRejectedException(AdmissionRejectedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(RangeNotSatisfiableException.class)
+    public ResponseEntity<String> handleRangeNotSatisfiableException(RangeNotSatisfiableException e) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + e.getLength())
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler({IOException.class, UncheckedIOException.class, NoAppropriateWriterException.class})
     public ResponseEntity<String> handleInternalException(Exception e) {
         log.error(e.getMessage());
         return new ResponseEntity<>("Internal server error, please report", HttpStatus.INTERNAL_SERVER_ERROR );
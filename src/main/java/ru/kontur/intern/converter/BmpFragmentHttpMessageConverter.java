@@ -0,0 +1,178 @@
+package ru.kontur.intern.converter;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.model.FragmentByteRange;
+import ru.kontur.intern.model.ImageFragment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Writes {@link ImageFragment} as 24-bit BMP without building an intermediate image:
+ * the header is generated from fragment size and stored scanlines are copied straight to the response,
+ * black pixels and row padding are produced on the fly.
+ * <p>
+ * A {@link FragmentByteRange} is written as the range of the same BMP, only rows overlapping the range are read.
+ */
+public class BmpFragmentHttpMessageConverter extends AbstractHttpMessageConverter<Object> {
+    public static final MediaType IMAGE_BMP = MediaType.valueOf("image/bmp");
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(8192).asReadOnlyBuffer();
+    private final Timer encodeTimer;
+
+    public BmpFragmentHttpMessageConverter() {
+        this(Metrics.globalRegistry);
+    }
+
+    /**
+     * @param registry registry of encoding time meter
+     */
+    public BmpFragmentHttpMessageConverter(MeterRegistry registry) {
+        super(IMAGE_BMP);
+        this.encodeTimer = Timer.builder("chartographer.image.encode")
+                .description("Time to write fragment response, fragment rows are read from storage meanwhile")
+                .tag("format", "bmp")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return ImageFragment.class.isAssignableFrom(clazz) || FragmentByteRange.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Image fragments can not be read", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(Object body, MediaType contentType) {
+        if (body instanceof FragmentByteRange) {
+            return ((FragmentByteRange) body).getLength();
+        }
+        var fragment = (ImageFragment) body;
+        return BmpHeader.of(fragment.getWidth(), fragment.getHeight()).getFileSize();
+    }
+
+    @Override
+    protected void writeInternal(Object body, HttpOutputMessage outputMessage) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (body instanceof FragmentByteRange) {
+                var range = (FragmentByteRange) body;
+                write(range.getFragment(), range.getStart(), range.getEnd(), outputMessage);
+            } else {
+                var fragment = (ImageFragment) body;
+                long fileSize = BmpHeader.of(fragment.getWidth(), fragment.getHeight()).getFileSize();
+                write(fragment, 0, fileSize - 1, outputMessage);
+            }
+        } finally {
+            encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Writes bytes {@code [first, last]} of the fragment encoded as BMP.
+     */
+    private void write(ImageFragment fragment, long first, long last, HttpOutputMessage outputMessage)
+            throws IOException {
+        var header = BmpHeader.of(fragment.getWidth(), fragment.getHeight());
+        int stride = header.getStride();
+        int rowPadding = stride - fragment.getWidth() * BYTES_PER_PIXEL;
+        var channel = new RangeChannel(Channels.newChannel(outputMessage.getBody()), first, last);
+
+        writeFully(channel, ByteBuffer.wrap(header.toByteArray()));
+        long dataOffset = header.getDataOffset();
+        if (last < dataOffset) {
+            return;
+        }
+        //Rows are stored bottom-up, the first stored row is the bottom row of the fragment
+        int firstRow = (int) (Math.max(0, first - dataOffset) / stride);
+        int lastRow = (int) ((last - dataOffset) / stride);
+        channel.seek(dataOffset + (long) firstRow * stride);
+        fragment.readRows(fragment.getHeight() - 1 - lastRow, fragment.getHeight() - firstRow, true,
+                (pixels, blackPixels) -> {
+                    writeFully(channel, pixels);
+                    writeZeros(channel, blackPixels * BYTES_PER_PIXEL + rowPadding);
+                });
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void writeZeros(WritableByteChannel channel, long count) throws IOException {
+        while (count > 0) {
+            var zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(count, zeros.capacity()));
+            count -= zeros.remaining();
+            writeFully(channel, zeros);
+        }
+    }
+
+    /**
+     * Passes through only bytes {@code [first, last]} of the stream written into it, other bytes are dropped.
+     * Parts of the stream which are not written at all are skipped with {@link #seek(long)}.
+     */
+    private static class RangeChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final long first;
+        private final long last;
+        private long position;
+
+        RangeChannel(WritableByteChannel channel, long first, long last) {
+            this.channel = channel;
+            this.first = first;
+            this.last = last;
+        }
+
+        void seek(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            long from = Math.max(position, first);
+            long to = Math.min(position + count, last + 1);
+            if (from < to) {
+                var part = src.duplicate();
+                part.position(src.position() + (int) (from - position)).limit(src.position() + (int) (to - position));
+                writeFully(channel, part);
+            }
+            src.position(src.limit());
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package ru.kontur.intern.converter;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import ru.kontur.intern.bmp.PixelCopy;
+import ru.kontur.intern.model.ImageFragment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Writes {@link ImageFragment} as 8-bit RGB PNG without building an intermediate image: rows are deflated
+ * as they are read and sent in IDAT chunks, so the length of the response is not known in advance.
+ * Rows are not filtered: black and flat areas, which make most of the size of fragments, compress well anyway,
+ * and filtering would cost more than deflate itself at low compression levels.
+ */
+public class PngFragmentHttpMessageConverter extends AbstractHttpMessageConverter<ImageFragment> {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int HEADER_SIZE = 13;
+    private static final byte BIT_DEPTH = 8;
+    private static final byte COLOR_TYPE_RGB = 2;
+    private static final byte FILTER_NONE = 0;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private final int compressionLevel;
+    private final Timer encodeTimer;
+
+    public PngFragmentHttpMessageConverter(int compressionLevel) {
+        this(compressionLevel, Metrics.globalRegistry);
+    }
+
+    /**
+     * @param compressionLevel deflate level from 0, no compression, to 9, the best compression
+     * @param registry         registry of encoding time meter
+     */
+    public PngFragmentHttpMessageConverter(int compressionLevel, MeterRegistry registry) {
+        super(MediaType.IMAGE_PNG);
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Illegal PNG compression level: %s", compressionLevel));
+        }
+        this.compressionLevel = compressionLevel;
+        this.encodeTimer = Timer.builder("chartographer.image.encode")
+                .description("Time to write fragment response, fragment rows are read from storage meanwhile")
+                .tag("format", "png")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return ImageFragment.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected ImageFragment readInternal(Class<? extends ImageFragment> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Image fragments can not be read", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(ImageFragment fragment, HttpOutputMessage outputMessage) throws IOException {
+        long start = System.nanoTime();
+        try {
+            write(fragment, outputMessage.getBody());
+        } finally {
+            encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void write(ImageFragment fragment, OutputStream output) throws IOException {
+        output.write(SIGNATURE);
+        writeChunk(output, "IHDR", ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(fragment.getWidth())
+                .putInt(fragment.getHeight())
+                .put(BIT_DEPTH)
+                .put(COLOR_TYPE_RGB)
+                //Compression, filter and interlace methods
+                .put((byte) 0)
+                .put((byte) 0)
+                .put((byte) 0)
+                .array(), HEADER_SIZE);
+
+        var deflater = new Deflater(compressionLevel);
+        byte[] row = new byte[1 + fragment.getWidth() * BYTES_PER_PIXEL];
+        row[0] = FILTER_NONE;
+        try (var data = new DeflaterOutputStream(new ChunkOutputStream(output, "IDAT"), deflater, CHUNK_SIZE)) {
+            fragment.readRows(false, (pixels, blackPixels) -> {
+                int length = pixels.remaining();
+                pixels.get(row, 1, length);
+                PixelCopy.swapRedBlue(row, 1, length / BYTES_PER_PIXEL);
+                Arrays.fill(row, 1 + length, row.length, (byte) 0);
+                data.write(row);
+            });
+        } finally {
+            deflater.end();
+        }
+        writeChunk(output, "IEND", new byte[0], 0);
+    }
+
+    private static void writeChunk(OutputStream output, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        var crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        output.write(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+        output.write(typeBytes);
+        output.write(data, 0, length);
+        output.write(ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).array());
+    }
+
+    /**
+     * Splits written bytes into chunks of a single type. Closing writes the last chunk,
+     * the underlying stream stays open.
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private final OutputStream output;
+        private final String type;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        ChunkOutputStream(OutputStream output, String type) {
+            this.output = output;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] src, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, buffer.length - size);
+                System.arraycopy(src, offset, buffer, size, count);
+                size += count;
+                offset += count;
+                length -= count;
+                if (size == buffer.length) {
+                    writeChunk(output, type, buffer, size);
+                    size = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (size > 0) {
+                writeChunk(output, type, buffer, size);
+                size = 0;
+            }
+        }
+    }
+}
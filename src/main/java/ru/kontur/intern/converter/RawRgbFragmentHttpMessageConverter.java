@@ -0,0 +1,88 @@
+package ru.kontur.intern.converter;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import ru.kontur.intern.bmp.PixelCopy;
+import ru.kontur.intern.bmp.RawRgbReader;
+import ru.kontur.intern.model.ImageFragment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Writes {@link ImageFragment} as raw RGB, the format read by {@link RawRgbReader}: a short header and top-down rows
+ * of packed pixels. Stored rows are sent as they are read with red and blue swapped, there is nothing to encode.
+ */
+public class RawRgbFragmentHttpMessageConverter extends AbstractHttpMessageConverter<ImageFragment> {
+    public static final String RAW_RGB_VALUE = "application/vnd.chartographer.rgb";
+    public static final MediaType RAW_RGB = MediaType.valueOf(RAW_RGB_VALUE);
+    private final Timer encodeTimer;
+
+    public RawRgbFragmentHttpMessageConverter() {
+        this(Metrics.globalRegistry);
+    }
+
+    /**
+     * @param registry registry of encoding time meter
+     */
+    public RawRgbFragmentHttpMessageConverter(MeterRegistry registry) {
+        super(RAW_RGB);
+        this.encodeTimer = Timer.builder("chartographer.image.encode")
+                .description("Time to write fragment response, fragment rows are read from storage meanwhile")
+                .tag("format", "rgb")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return ImageFragment.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected ImageFragment readInternal(Class<? extends ImageFragment> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Image fragments can not be read", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(ImageFragment fragment, MediaType contentType) {
+        return RawRgbReader.HEADER_SIZE + Math.multiplyFull(fragment.getWidth(), fragment.getHeight()) * BYTES_PER_PIXEL;
+    }
+
+    @Override
+    protected void writeInternal(ImageFragment fragment, HttpOutputMessage outputMessage) throws IOException {
+        long start = System.nanoTime();
+        try {
+            write(fragment, outputMessage.getBody());
+        } finally {
+            encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void write(ImageFragment fragment, OutputStream output) throws IOException {
+        output.write(RawRgbReader.header(fragment.getWidth(), fragment.getHeight()));
+        byte[] row = new byte[fragment.getWidth() * BYTES_PER_PIXEL];
+        fragment.readRows(false, (pixels, blackPixels) -> {
+            int length = pixels.remaining();
+            pixels.get(row, 0, length);
+            PixelCopy.swapRedBlue(row, 0, length / BYTES_PER_PIXEL);
+            Arrays.fill(row, length, row.length, (byte) 0);
+            output.write(row);
+        });
+    }
+}
@@ -0,0 +1,16 @@
+package ru.kontur.intern.exception;
+
+import lombok.Getter;
+
+public class AdmissionRejectedException extends RuntimeException {
+    /**
+     * Time after which the request is likely to be admitted
+     */
+    @Getter
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -0,0 +1,8 @@
+package ru.kontur.intern.exception;
+
+public class BufferPoolExhaustedException extends RuntimeException {
+    public BufferPoolExhaustedException(int size, long usedBytes, long maxBytes) {
+        super(String.format("Buffer pool memory is exhausted: Requested bytes=%s, Used bytes=%s, Limit=%s",
+                size, usedBytes, maxBytes));
+    }
+}
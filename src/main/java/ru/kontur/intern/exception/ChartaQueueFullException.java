@@ -0,0 +1,7 @@
+package ru.kontur.intern.exception;
+
+public class ChartaQueueFullException extends RuntimeException {
+    public ChartaQueueFullException(String id, int queued) {
+        super(String.format("Too many queued fragments of image %s: %s", id, queued));
+    }
+}
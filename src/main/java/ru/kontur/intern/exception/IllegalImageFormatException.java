@@ -0,0 +1,7 @@
+package ru.kontur.intern.exception;
+
+public class IllegalImageFormatException extends RuntimeException {
+    public IllegalImageFormatException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package ru.kontur.intern.exception;
+
+public class IngestOverloadedException extends RuntimeException {
+    public IngestOverloadedException(long queuedBytes, long maxBytes) {
+        super(String.format("Ingest queue memory is exhausted: Queued bytes=%s, Limit=%s", queuedBytes, maxBytes));
+    }
+}
@@ -0,0 +1,7 @@
+package ru.kontur.intern.exception;
+
+public class LevelOutOfRangeException extends RuntimeException {
+    public LevelOutOfRangeException(int levelCount, int level) {
+        super(String.format("Pyramid level out of range: Levels=0..%s, Given level=%s", levelCount, level));
+    }
+}
@@ -0,0 +1,7 @@
+package ru.kontur.intern.exception;
+
+public class OperationNotFoundException extends RuntimeException {
+    public OperationNotFoundException(String id) {
+        super(String.format("Operation not found: %s", id));
+    }
+}
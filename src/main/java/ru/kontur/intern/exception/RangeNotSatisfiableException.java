@@ -0,0 +1,13 @@
+package ru.kontur.intern.exception;
+
+import lombok.Getter;
+
+@Getter
+public class RangeNotSatisfiableException extends RuntimeException {
+    private final long length;
+
+    public RangeNotSatisfiableException(String range, long length) {
+        super(String.format("Range %s is out of %s bytes", range, length));
+        this.length = length;
+    }
+}
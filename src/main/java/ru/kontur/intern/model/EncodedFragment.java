@@ -0,0 +1,15 @@
+package ru.kontur.intern.model;
+
+import lombok.Value;
+
+/**
+ * Fragment upload held in memory: position in the target image, declared size and encoded image bytes.
+ */
+@Value
+public class EncodedFragment {
+    int x;
+    int y;
+    int width;
+    int height;
+    byte[] content;
+}
@@ -0,0 +1,23 @@
+package ru.kontur.intern.model;
+
+import lombok.Value;
+
+/**
+ * Byte range of a fragment encoded as 24-bit BMP, the body of a partial response.
+ */
+@Value
+public class FragmentByteRange {
+    ImageFragment fragment;
+    /**
+     * Index of the first byte of the range
+     */
+    long start;
+    /**
+     * Index of the last byte of the range, inclusive
+     */
+    long end;
+
+    public long getLength() {
+        return end - start + 1;
+    }
+}
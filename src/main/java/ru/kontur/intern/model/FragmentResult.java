@@ -0,0 +1,26 @@
+package ru.kontur.intern.model;
+
+import lombok.Value;
+
+/**
+ * Outcome of inserting a single fragment of a batch upload.
+ */
+@Value
+public class FragmentResult {
+    /**
+     * Position of the fragment in the batch, starting from 0
+     */
+    int index;
+    int x;
+    int y;
+    int width;
+    int height;
+    /**
+     * HTTP status the fragment would get if it was uploaded alone
+     */
+    int status;
+    /**
+     * Reason of failure, {@code null} if the fragment was inserted
+     */
+    String error;
+}
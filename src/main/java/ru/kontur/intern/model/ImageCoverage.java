@@ -0,0 +1,39 @@
+package ru.kontur.intern.model;
+
+import lombok.Value;
+
+/**
+ * Written part of an area of image, counted in cells of a square grid laid over the image.
+ */
+@Value
+public class ImageCoverage {
+    /**
+     * Side of a grid cell in pixels
+     */
+    int cellSize;
+    /**
+     * Number of cells intersecting the area
+     */
+    int cells;
+    /**
+     * Number of cells intersecting the area which have been written at least once, 0 if coverage is unknown
+     */
+    int coveredCells;
+    Status status;
+
+    public enum Status {
+        /**
+         * No pixel of the area has been written, it is black
+         */
+        NONE,
+        PARTIAL,
+        /**
+         * Every cell of the area has been written, though not necessarily every pixel of a cell
+         */
+        FULL,
+        /**
+         * Writes into the image were not tracked, the index was rebuilt from storage after an unclean shutdown
+         */
+        UNKNOWN
+    }
+}
@@ -0,0 +1,78 @@
+package ru.kontur.intern.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ru.kontur.intern.bmp.PixelCopy;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Rectangular fragment of a stored image which is read lazily, row by row, when it gets written somewhere.
+ * Parts of the fragment outside of the stored image are black.
+ */
+@Getter
+@AllArgsConstructor
+public class ImageFragment {
+    private final int width;
+    private final int height;
+    private final RowSource source;
+
+    /**
+     * Streams all rows of the fragment to {@code consumer}.
+     *
+     * @param bottomUp whether rows go from the bottom of the fragment to the top as in BMP pixel array
+     * @param consumer receiver of rows, buffers passed to it are valid only during the call
+     */
+    public void readRows(boolean bottomUp, RowConsumer consumer) throws IOException {
+        source.readRows(0, height, bottomUp, consumer);
+    }
+
+    /**
+     * Streams rows {@code [top, bottom)} of the fragment to {@code consumer}, other rows are not read.
+     *
+     * @param top      first row, counted from the top of the fragment
+     * @param bottom   end of rows
+     * @param bottomUp whether rows go from the bottom to the top
+     * @param consumer receiver of rows, buffers passed to it are valid only during the call
+     */
+    public void readRows(int top, int bottom, boolean bottomUp, RowConsumer consumer) throws IOException {
+        source.readRows(top, bottom, bottomUp, consumer);
+    }
+
+    /**
+     * Reads the whole fragment into memory.
+     */
+    public BufferedImage toBufferedImage() {
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = PixelCopy.rgbRaster(image);
+        int[] row = new int[1];
+        try {
+            readRows(false, (stored, blackPixels) -> PixelCopy.bgrToRgb(stored, pixels, row[0]++ * width));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return image;
+    }
+
+    @FunctionalInterface
+    public interface RowSource {
+        /**
+         * Streams rows {@code [top, bottom)} of the fragment.
+         */
+        void readRows(int top, int bottom, boolean bottomUp, RowConsumer consumer) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RowConsumer {
+        /**
+         * Receives a single row of the fragment.
+         *
+         * @param pixels      BGR pixels taken from the stored image, starting at the left edge of the fragment
+         * @param blackPixels number of black pixels which complete the row up to fragment width
+         */
+        void accept(ByteBuffer pixels, int blackPixels) throws IOException;
+    }
+}
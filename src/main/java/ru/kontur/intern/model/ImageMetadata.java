@@ -0,0 +1,16 @@
+package ru.kontur.intern.model;
+
+import lombok.Value;
+
+/**
+ * Indexed properties of a stored image.
+ */
+@Value
+public class ImageMetadata {
+    int width;
+    int height;
+    /**
+     * Changes with every write into the image or its pyramid levels and is never reused, also across restarts
+     */
+    long version;
+}
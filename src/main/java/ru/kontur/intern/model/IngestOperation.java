@@ -0,0 +1,43 @@
+package ru.kontur.intern.model;
+
+import lombok.Getter;
+
+/**
+ * State of a fragment upload accepted for asynchronous insertion.
+ */
+@Getter
+public class IngestOperation {
+    private final String id;
+    private final String chartaId;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private volatile Status status = Status.QUEUED;
+    /**
+     * Reason of failure, {@code null} unless the operation failed
+     */
+    private volatile String error;
+
+    public IngestOperation(String id, String chartaId, int x, int y, int width, int height) {
+        this.id = id;
+        this.chartaId = chartaId;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void complete() {
+        status = Status.DONE;
+    }
+
+    public void fail(String error) {
+        this.error = error;
+        status = Status.FAILED;
+    }
+
+    public enum Status {
+        QUEUED, DONE, FAILED
+    }
+}
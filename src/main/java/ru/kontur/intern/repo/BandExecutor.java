@@ -0,0 +1,68 @@
+package ru.kontur.intern.repo;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool which reads and writes row bands of large fragments in parallel.
+ * Fragments smaller than {@code minPixels} stay on the serial path of the calling thread,
+ * where splitting would cost more than it saves.
+ */
+public class BandExecutor implements Closeable {
+    private final ForkJoinPool pool;
+    private final long minPixels;
+
+    /**
+     * @param parallelism number of threads, 1 or less disables parallel processing
+     * @param minPixels   smallest fragment area processed in parallel
+     */
+    public BandExecutor(int parallelism, long minPixels) {
+        this.minPixels = minPixels;
+        this.pool = parallelism <= 1 ? null : new ForkJoinPool(parallelism, pool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fragment-band-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * @return executor which processes every fragment serially
+     */
+    public static BandExecutor serial() {
+        return new BandExecutor(1, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return whether fragment of this size is split into bands
+     */
+    public boolean isParallel(int width, int height) {
+        return pool != null && (long) width * height >= minPixels;
+    }
+
+    /**
+     * @return number of bands processed at once
+     */
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    <T> ForkJoinTask<T> submit(Callable<T> band) {
+        return pool.submit(band);
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.kontur.intern.repo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import ru.kontur.intern.exception.BufferPoolExhaustedException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Pool of direct buffers for pixels held during a single request, so large short-lived buffers stay off the heap.
+ * Buffers come in power of two size classes starting at {@code minBufferSize} and are reused once released.
+ * Memory of all buffers, used and free, is bounded by {@code maxBytes}: when a new buffer does not fit,
+ * free buffers of other classes are dropped, and if it still does not fit the acquisition fails at once
+ * instead of waiting or growing. Memory of dropped buffers is returned by the collector.
+ */
+public class BufferPool {
+    private final long maxBytes;
+    private final int minBufferSize;
+    /**
+     * Free buffers by size class, the class of capacity {@code 2^i} is at index {@code i}
+     */
+    private final List<Deque<ByteBuffer>> free;
+    private final Counter exhausted;
+    private long allocatedBytes;
+    private long usedBytes;
+
+    /**
+     * @param maxBytes      limit of memory of all buffers
+     * @param minBufferSize capacity of the smallest buffer, a power of two
+     * @param registry      registry of pool meters
+     */
+    public BufferPool(long maxBytes, int minBufferSize, MeterRegistry registry) {
+        if (minBufferSize <= 0 || Integer.bitCount(minBufferSize) != 1) {
+            throw new IllegalArgumentException(String.format("Minimal buffer size must be a power of two: %s",
+                    minBufferSize));
+        }
+        this.maxBytes = maxBytes;
+        this.minBufferSize = minBufferSize;
+        this.free = new ArrayList<>(Integer.SIZE);
+        for (int i = 0; i < Integer.SIZE; i++) {
+            free.add(new ArrayDeque<>());
+        }
+        Gauge.builder("chartographer.buffers.memory", this, BufferPool::getUsedBytes)
+                .description("Memory of pooled direct buffers held by requests")
+                .baseUnit("bytes")
+                .tag("state", "used")
+                .register(registry);
+        Gauge.builder("chartographer.buffers.memory", this, pool -> pool.getAllocatedBytes() - pool.getUsedBytes())
+                .description("Memory of pooled direct buffers free for reuse")
+                .baseUnit("bytes")
+                .tag("state", "free")
+                .register(registry);
+        exhausted = Counter.builder("chartographer.buffers.exhausted")
+                .description("Buffer acquisitions failed because the pool memory is exhausted")
+                .register(registry);
+    }
+
+    /**
+     * Takes a buffer of at least {@code size} bytes, its limit is set to {@code size}.
+     *
+     * @return lease which must be closed to return the buffer, the buffer must not be used afterwards
+     * @throws BufferPoolExhaustedException if the buffer does not fit into the pool memory
+     */
+    public Lease acquire(int size) {
+        if (size > maxBytes || size > 1 << (Integer.SIZE - 2)) {
+            exhausted.increment();
+            throw new BufferPoolExhaustedException(size, getUsedBytes(), maxBytes);
+        }
+        int capacity = Math.max(minBufferSize, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = free.get(sizeClass).pollFirst();
+            if (buffer == null) {
+                reserve(size, capacity);
+            }
+            usedBytes += capacity;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear().limit(size);
+        return new Lease(buffer);
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Accounts memory of a new buffer, dropping free buffers from the largest class down until it fits.
+     */
+    private void reserve(int size, int capacity) {
+        for (int i = free.size() - 1; i >= 0 && allocatedBytes + capacity > maxBytes; i--) {
+            while (!free.get(i).isEmpty() && allocatedBytes + capacity > maxBytes) {
+                allocatedBytes -= free.get(i).pollFirst().capacity();
+            }
+        }
+        if (allocatedBytes + capacity > maxBytes) {
+            exhausted.increment();
+            throw new BufferPoolExhaustedException(size, usedBytes, maxBytes);
+        }
+        allocatedBytes += capacity;
+    }
+
+    private synchronized void release(ByteBuffer buffer) {
+        usedBytes -= buffer.capacity();
+        free.get(Integer.numberOfTrailingZeros(buffer.capacity())).addFirst(buffer);
+    }
+
+    /**
+     * Buffer taken from the pool until the lease is closed.
+     */
+    public final class Lease implements AutoCloseable {
+        private ByteBuffer buffer;
+
+        private Lease(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Returns the buffer to the pool, repeated calls do nothing.
+         */
+        @Override
+        public void close() {
+            if (buffer != null) {
+                release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package ru.kontur.intern.repo;
+
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.model.ImageCoverage;
+import ru.kontur.intern.model.ImageMetadata;
+import ru.kontur.intern.repo.storage.ImageStorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory metadata of images by id, pyramid levels are not indexed. Existence and size checks take a map lookup.
+ * <p>
+ * A complete index is loaded from its file or rebuilt from headers of stored images at startup, after that
+ * a missing id is not found without touching storage. The file is written on close and deleted once loaded,
+ * so after a crash the index is rebuilt. An incomplete index reads the header from storage on a miss,
+ * it serves repositories sharing storage with others.
+ * <p>
+ * Versions are taken from a counter seeded by the clock at startup, so a version is never reused,
+ * even for images whose versions are lost in a crash.
+ * <p>
+ * A complete index tracks coverage of images created through it in cells of {@code coverageCellSize} and saves it
+ * with the index. Images found in storage and images of an incomplete index, which may be written by others,
+ * have unknown coverage and are treated as written everywhere.
+ */
+@Log4j2
+public class ImageIndex implements Closeable {
+    public static final int DEFAULT_COVERAGE_CELL_SIZE = 512;
+    private static final int MAGIC = 0x43494458;
+    /**
+     * Magic of files with coverage of images
+     */
+    private static final int COVERAGE_MAGIC = 0x43494459;
+
+    private final ImageStorage storage;
+    private final Path file;
+    private final boolean complete;
+    private final int coverageCellSize;
+    private final Map<String, ImageMetadata> images = new ConcurrentHashMap<>();
+    private final Map<String, CoverageBitmap> coverage = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    /**
+     * Creates incomplete index, which is not persisted.
+     *
+     * @param storage storage to read headers of images missing in the index from
+     */
+    public ImageIndex(ImageStorage storage) {
+        this(storage, null, false, DEFAULT_COVERAGE_CELL_SIZE);
+    }
+
+    private ImageIndex(ImageStorage storage, Path file, boolean complete, int coverageCellSize) {
+        if (coverageCellSize <= 0) {
+            throw new IllegalArgumentException(String.format("Coverage cell size must be positive: %s",
+                    coverageCellSize));
+        }
+        this.storage = storage;
+        this.file = file;
+        this.complete = complete;
+        this.coverageCellSize = coverageCellSize;
+    }
+
+    /**
+     * Opens index with coverage cells of {@link #DEFAULT_COVERAGE_CELL_SIZE}.
+     *
+     * @see #open(ImageStorage, Path, int)
+     */
+    public static ImageIndex open(ImageStorage storage, Path file) throws IOException {
+        return open(storage, file, DEFAULT_COVERAGE_CELL_SIZE);
+    }
+
+    /**
+     * Loads complete index from {@code file}, or rebuilds it from headers of images in {@code storage}
+     * if there is no file or it cannot be read. An unreadable file is deleted.
+     *
+     * @param storage          storage of indexed images
+     * @param file             index file, written on close
+     * @param coverageCellSize side of coverage cells in pixels, saved coverage of other cell size is dropped
+     */
+    public static ImageIndex open(ImageStorage storage, Path file, int coverageCellSize) throws IOException {
+        var index = new ImageIndex(storage, file, true, coverageCellSize);
+        long start = System.nanoTime();
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            index.read(input);
+        } catch (NoSuchFileException missing) {
+            return rebuild(storage, file, coverageCellSize, start);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Index {} is unreadable, rebuilding it: {}", file, e.toString());
+            Files.deleteIfExists(file);
+            return rebuild(storage, file, coverageCellSize, start);
+        }
+        Files.delete(file);
+        log.info("Loaded index of {} images in {} ms", index.size(), (System.nanoTime() - start) / 1_000_000);
+        return index;
+    }
+
+    private static ImageIndex rebuild(ImageStorage storage, Path file, int coverageCellSize, long start)
+            throws IOException {
+        var index = new ImageIndex(storage, file, true, coverageCellSize);
+        for (String id : storage.list()) {
+            if (!Pyramid.baseId(id).equals(id)) {
+                continue;
+            }
+            try {
+                index.images.put(id, index.readHeader(id));
+            } catch (IOException | RuntimeException e) {
+                log.error("Skipping unreadable image {}: {}", id, e.getMessage());
+            }
+        }
+        log.info("Rebuilt index of {} images from storage in {} ms", index.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        return index;
+    }
+
+    /**
+     * @throws ImageNotFoundException if there is no image with {@code id}
+     */
+    public ImageMetadata get(String id) {
+        var metadata = images.get(id);
+        if (metadata != null) {
+            return metadata;
+        }
+        if (complete || !Pyramid.baseId(id).equals(id)) {
+            throw new ImageNotFoundException(id);
+        }
+        try {
+            metadata = readHeader(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var indexed = images.putIfAbsent(id, metadata);
+        return indexed != null ? indexed : metadata;
+    }
+
+    public int size() {
+        return images.size();
+    }
+
+    /**
+     * @return written part of an area of the image
+     * @throws ImageNotFoundException if there is no image with {@code id}
+     */
+    public ImageCoverage getCoverage(String id, int x, int y, int width, int height) {
+        var metadata = get(id);
+        var bitmap = coverage.get(id);
+        if (bitmap == null) {
+            var unknown = new CoverageBitmap(metadata.getWidth(), metadata.getHeight(), coverageCellSize)
+                    .count(x, y, width, height);
+            return new ImageCoverage(coverageCellSize, unknown.getCells(), 0, ImageCoverage.Status.UNKNOWN);
+        }
+        return bitmap.count(x, y, width, height);
+    }
+
+    /**
+     * Indexes a new image with a new version and no written cells.
+     */
+    void add(String id, int width, int height) {
+        if (complete) {
+            coverage.put(id, new CoverageBitmap(width, height, coverageCellSize));
+        }
+        images.put(id, new ImageMetadata(width, height, versions.incrementAndGet()));
+    }
+
+    /**
+     * Marks cells of the image intersecting the area as written, if coverage of the image is tracked.
+     */
+    void cover(String id, long x, long y, long width, long height) {
+        var bitmap = coverage.get(id);
+        if (bitmap != null) {
+            bitmap.cover(x, y, width, height);
+        }
+    }
+
+    /**
+     * @return whether any pixel of the area may have been written, {@code false} means the area is black
+     */
+    boolean isCovered(String id, long x, long y, long width, long height) {
+        var bitmap = coverage.get(id);
+        return bitmap == null || bitmap.isCovered(x, y, width, height);
+    }
+
+    /**
+     * Gives the image a new version, if it is indexed.
+     *
+     * @return updated metadata, {@code null} if the image is not indexed
+     */
+    ImageMetadata touch(String id) {
+        return images.computeIfPresent(id,
+                (key, metadata) -> new ImageMetadata(metadata.getWidth(), metadata.getHeight(), versions.incrementAndGet()));
+    }
+
+    void remove(String id) {
+        images.remove(id);
+        coverage.remove(id);
+    }
+
+    /**
+     * Writes complete index into its file. The file is replaced atomically, so it is either old or whole.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeInt(COVERAGE_MAGIC);
+            output.writeLong(versions.get());
+            output.writeInt(coverageCellSize);
+            output.writeInt(images.size());
+            for (var entry : images.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue().getWidth());
+                output.writeInt(entry.getValue().getHeight());
+                output.writeLong(entry.getValue().getVersion());
+                var bitmap = coverage.get(entry.getKey());
+                output.writeBoolean(bitmap != null);
+                if (bitmap != null) {
+                    bitmap.write(output);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Saved index of {} images", images.size());
+    }
+
+    /**
+     * Reads entries written by {@link #close()}, the counter continues from the saved one if it is ahead of the clock.
+     * Files written before coverage was tracked are read with unknown coverage of all images.
+     */
+    private void read(DataInputStream input) throws IOException {
+        int magic = input.readInt();
+        if (magic != MAGIC && magic != COVERAGE_MAGIC) {
+            throw new IOException(String.format("%s is not an image index", file));
+        }
+        versions.accumulateAndGet(input.readLong(), Math::max);
+        int savedCellSize = magic == COVERAGE_MAGIC ? input.readInt() : 0;
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = input.readUTF();
+            var metadata = new ImageMetadata(input.readInt(), input.readInt(), input.readLong());
+            images.put(id, metadata);
+            if (magic == COVERAGE_MAGIC && input.readBoolean()) {
+                var bitmap = CoverageBitmap.read(input, metadata.getWidth(), metadata.getHeight(), savedCellSize);
+                if (savedCellSize == coverageCellSize) {
+                    coverage.put(id, bitmap);
+                }
+            }
+        }
+    }
+
+    private ImageMetadata readHeader(String id) throws IOException {
+        try (var image = storage.open(id, false)) {
+            return new ImageMetadata(image.getWidth(), image.getHeight(), versions.incrementAndGet());
+        }
+    }
+}
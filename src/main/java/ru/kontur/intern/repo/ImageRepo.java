@@ -1,144 +1,1060 @@
 package ru.kontur.intern.repo;
 
 import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.bmp.PixelCopy;
+import ru.kontur.intern.bmp.RowReader;
+import ru.kontur.intern.exception.IllegalImageFormatException;
 import ru.kontur.intern.exception.ImageNotFoundException;
 import ru.kontur.intern.exception.NoAppropriateWriterException;
+import ru.kontur.intern.model.ImageCoverage;
+import ru.kontur.intern.model.ImageFragment;
+import ru.kontur.intern.model.ImageMetadata;
+import ru.kontur.intern.repo.storage.ImageStorage;
+import ru.kontur.intern.repo.storage.StoredImage;
 
-import javax.imageio.ImageIO;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
 /**
  *
- * This class implements thread-safe CRUD operations with BufferedImages using local storage.
- * It uses Google Guava Striped to dynamically manage read/write locks
+ * This class implements thread-safe CRUD operations with images kept in {@link ImageStorage}.
+ * It uses Google Guava Striped to dynamically manage read/write locks on two levels:
+ * an image lock, taken exclusively only to create, replace or delete an image,
+ * and locks of square regions keyed by (id, region column, region row), taken by fragment reads and writes.
+ * Fragment operations share the image lock, so operations on disjoint regions of one image run in parallel.
+ * Region locks are acquired in stripe order, which makes multi-region operations deadlock free.
+ * <p>
+ * Every image is stored together with its {@link Pyramid} levels, which are created and deleted with it.
+ * Levels are read and written like images by their level ids, but share the image lock of their image.
+ * <p>
+ * Images are registered in {@link ImageIndex}, which answers existence and size checks without storage access
+ * and gets a new version of an image after every write into it or its levels.
+ * <p>
+ * Large fragments are split into bands of region rows, which are read or written concurrently
+ * on {@link BandExecutor} while the calling thread holds the locks of the whole fragment.
+ * Bands read ahead are kept in direct buffers of {@link BufferPool}, which are returned as soon as the band is consumed.
+ * <p>
+ * Stored images are checked against the index and taken out of service when corrupt by {@link StorageScrubber}
+ * through {@link #checkStored(String)} and {@link #quarantine(String)}.
  */
 @Log4j2
 public class ImageRepo {
-    private final String STORAGE_PATH;
+    private static final ByteBuffer EMPTY_ROW = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private static final int DEFAULT_REGION_SIZE = 512;
+    private static final int DEFAULT_REGION_STRIPED_SIZE = 4096;
+    private static final long DEFAULT_BUFFER_POOL_BYTES = 256L << 20;
+    private static final int DEFAULT_MIN_BUFFER_SIZE = 64 << 10;
+    private final ImageStorage storage;
+    private final ImageIndex index;
+    private final RegionVersions regionVersions;
+    private final int regionSize;
+    private final ImageRepoMetrics metrics;
+    private final BandExecutor bandExecutor;
+    private final BufferPool bufferPool;
     private Striped<ReadWriteLock> striped;
+    private Striped<ReadWriteLock> regionStriped;
+
+    public ImageRepo(ImageStorage storage, Integer stripedSize) {
+        this(storage, stripedSize, DEFAULT_REGION_SIZE, DEFAULT_REGION_STRIPED_SIZE);
+    }
+
+    public ImageRepo(ImageStorage storage, Integer stripedSize, Integer regionSize, Integer regionStripedSize) {
+        this(storage, stripedSize, regionSize, regionStripedSize, Metrics.globalRegistry);
+    }
+
+    /**
+     * @param storage             storage of images
+     * @param stripedSize         number of image lock stripes
+     * @param regionSize          side of a square region guarded by a single region lock
+     * @param regionStripedSize   number of region lock stripes
+     * @param registry            registry of operation and lock meters
+     */
+    public ImageRepo(ImageStorage storage, Integer stripedSize, Integer regionSize, Integer regionStripedSize,
+                     MeterRegistry registry) {
+        this(storage, stripedSize, regionSize, regionStripedSize, registry, BandExecutor.serial());
+    }
 
-    public ImageRepo(String storagePath, Integer stripedSize) {
-        this.STORAGE_PATH = storagePath;
+    /**
+     * @param storage           storage of images
+     * @param stripedSize       number of image lock stripes
+     * @param regionSize        side of a square region guarded by a single region lock
+     * @param regionStripedSize number of region lock stripes
+     * @param registry          registry of operation and lock meters
+     * @param bandExecutor      pool processing bands of large fragments
+     */
+    public ImageRepo(ImageStorage storage, Integer stripedSize, Integer regionSize, Integer regionStripedSize,
+                     MeterRegistry registry, BandExecutor bandExecutor) {
+        this(storage, new ImageIndex(storage), stripedSize, regionSize, regionStripedSize, registry, bandExecutor);
+    }
+
+    /**
+     * @param storage           storage of images
+     * @param index             index of images in {@code storage}, updated by the repository
+     * @param stripedSize       number of image lock stripes
+     * @param regionSize        side of a square region guarded by a single region lock
+     * @param regionStripedSize number of region lock stripes
+     * @param registry          registry of operation and lock meters
+     * @param bandExecutor      pool processing bands of large fragments
+     */
+    public ImageRepo(ImageStorage storage, ImageIndex index, Integer stripedSize, Integer regionSize,
+                     Integer regionStripedSize, MeterRegistry registry, BandExecutor bandExecutor) {
+        this(storage, index, stripedSize, regionSize, regionStripedSize, registry, bandExecutor,
+                new BufferPool(DEFAULT_BUFFER_POOL_BYTES, DEFAULT_MIN_BUFFER_SIZE, registry));
+    }
+
+    /**
+     * @param storage           storage of images
+     * @param index             index of images in {@code storage}, updated by the repository
+     * @param stripedSize       number of image lock stripes
+     * @param regionSize        side of a square region guarded by a single region lock
+     * @param regionStripedSize number of region lock stripes
+     * @param registry          registry of operation and lock meters
+     * @param bandExecutor      pool processing bands of large fragments
+     * @param bufferPool        pool of buffers for bands read ahead
+     */
+    public ImageRepo(ImageStorage storage, ImageIndex index, Integer stripedSize, Integer regionSize,
+                     Integer regionStripedSize, MeterRegistry registry, BandExecutor bandExecutor,
+                     BufferPool bufferPool) {
+        this.storage = storage;
+        this.index = index;
+        this.regionVersions = new RegionVersions(regionSize);
+        this.bandExecutor = bandExecutor;
+        this.bufferPool = bufferPool;
+        this.regionSize = regionSize;
+        this.metrics = new ImageRepoMetrics(registry);
         this.striped = Striped.lazyWeakReadWriteLock(stripedSize);
+        this.regionStriped = Striped.lazyWeakReadWriteLock(regionStripedSize);
+    }
+
+    /**
+     * Creates black image of specified size and its pyramid levels. Storage does not write pixels of a new image.
+     *
+     * @param width  image width
+     * @param height image height
+     * @return uniq created image identifier
+     */
+    public String createImage(int width, int height) {
+        long start = System.nanoTime();
+        String id = UUID.randomUUID().toString();
+        var locks = lockImage(id, true);
+        try {
+            storage.create(id, width, height);
+            createLevels(id, width, height);
+            index.add(id, width, height);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseLocks(locks);
+            ImageRepoMetrics.record(metrics.create, start);
+        }
+        return id;
+    }
+
+    /**
+     * Reads the whole image into memory.
+     *
+     * @param id image id
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public BufferedImage readImage(String id) {
+        Dimension size = getImageSize(id);
+        return getImagePart(id, 0, 0, size.width, size.height).toBufferedImage();
+    }
+
+    /**
+     * Looks up image dimensions in the index, sizes of pyramid levels are derived from the size of their image.
+     *
+     * @param id image id or level id
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public Dimension getImageSize(String id) {
+        var metadata = index.get(Pyramid.baseId(id));
+        int level = Pyramid.level(id);
+        if (level > Pyramid.levelCount(metadata.getWidth(), metadata.getHeight())) {
+            throw new ImageNotFoundException(id);
+        }
+        return Pyramid.levelSize(metadata.getWidth(), metadata.getHeight(), level);
+    }
+
+    /**
+     * Looks up image size and version in the index.
+     *
+     * @param id image id
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public ImageMetadata getMetadata(String id) {
+        return index.get(id);
+    }
+
+    /**
+     * Returns version of a fragment, which changes after every write intersecting the fragment.
+     * Fragments of pyramid levels have the version of the whole image, since levels are updated in background.
+     * The version is taken without locks: it may be older than pixels of the fragment read afterwards, never newer.
+     *
+     * @param id     image id or level id
+     * @param x      left column of fragment
+     * @param y      top row of fragment
+     * @param width  fragment width
+     * @param height fragment height
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public long getVersion(String id, int x, int y, int width, int height) {
+        var metadata = index.get(Pyramid.baseId(id));
+        if (Pyramid.level(id) > 0) {
+            return metadata.getVersion();
+        }
+        return regionVersions.get(id, metadata, x, y, width, height);
+    }
+
+    /**
+     * Returns written part of an area of image, pyramid levels are not tracked. Pixels are not read.
+     *
+     * @param id     image id
+     * @param x      left column of area
+     * @param y      top row of area
+     * @param width  area width
+     * @param height area height
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public ImageCoverage getCoverage(String id, int x, int y, int width, int height) {
+        return index.getCoverage(id, x, y, width, height);
+    }
+
+    /**
+     * Creates a lazily read fragment of image. Rows are streamed straight from storage
+     * under read locks of its regions when the fragment gets consumed, nothing else of the image is decoded.
+     * Bands of a large fragment are read ahead in parallel, a few bands at a time.
+     * A fragment of an area never written is black and does not touch storage at all.
+     *
+     * @param id     image id
+     * @param x      left column of fragment
+     * @param y      top row of fragment
+     * @param width  fragment width
+     * @param height fragment height
+     * @return fragment, parts of it outside of the image are black
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     * @throws ru.kontur.intern.exception.BufferPoolExhaustedException when the fragment is consumed,
+     *                                if there is no memory to read its bands ahead
+     */
+    public ImageFragment getImagePart(String id, int x, int y, int width, int height) {
+        index.get(Pyramid.baseId(id));
+        return new ImageFragment(width, height,
+                (top, bottom, bottomUp, consumer) -> readRows(id, x, y + top, width, bottom - top, bottomUp, consumer));
+    }
+
+    /**
+     * Streams rows of a fragment under read locks of its regions.
+     */
+    private void readRows(String id, int x, int y, int width, int height, boolean bottomUp,
+                          ImageFragment.RowConsumer consumer) throws IOException {
+        long start = System.nanoTime();
+        long[] bytes = {0};
+        var locks = lockRegions(id, x, y, width, height, false);
+        try {
+            //Writers mark coverage before they release locks, so it is up to date under the read locks
+            if (!isCovered(id, x, y, width, height)) {
+                for (int row = 0; row < height; row++) {
+                    consumer.accept(EMPTY_ROW, width);
+                }
+                metrics.blackReads.increment();
+                return;
+            }
+            try (var image = storage.open(id, false)) {
+                int storedWidth = Math.max(0, Math.min(width, image.getWidth() - x));
+                int storedBottom = storedWidth > 0 ? Math.max(y, Math.min(y + height, image.getHeight())) : y;
+                ImageFragment.RowConsumer countingConsumer = (pixels, blackPixels) -> {
+                    bytes[0] += pixels.remaining();
+                    consumer.accept(pixels, blackPixels);
+                };
+                if (bandExecutor.isParallel(width, height)) {
+                    readBands(id, x, y, storedWidth, storedBottom, width, y + height, bottomUp, countingConsumer);
+                    return;
+                }
+                if (bottomUp) {
+                    for (int row = y + height - 1; row >= storedBottom; row--) {
+                        consumer.accept(EMPTY_ROW, width);
+                    }
+                }
+                for (int i = 0; i < storedBottom - y; i++) {
+                    int row = bottomUp ? storedBottom - 1 - i : y + i;
+                    countingConsumer.accept(image.row(row, x, storedWidth), width - storedWidth);
+                }
+                if (!bottomUp) {
+                    for (int row = storedBottom; row < y + height; row++) {
+                        consumer.accept(EMPTY_ROW, width);
+                    }
+                }
+            }
+        } finally {
+            releaseLocks(locks);
+            metrics.bytesRead.increment(bytes[0]);
+            ImageRepoMetrics.record(metrics.read, start);
+        }
+    }
 
-        setup();
+    /**
+     * Overwrites a part of stored image with {@code source} placed at (x, y).
+     * Only rows covered by the fragment are written, parts of the fragment outside of image bounds are ignored.
+     * Rasters of 24-bit and int RGB images are copied directly, other images are converted with {@code getRGB}.
+     * Bands of a large fragment are written in parallel, unless the opened image is transactional:
+     * then the fragment is written through it as a single transaction, aborted if the write fails.
+     *
+     * @param id     image id
+     * @param x      left column of fragment
+     * @param y      top row of fragment
+     * @param source fragment to write
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public void writeImagePart(String id, int x, int y, BufferedImage source) {
+        index.get(Pyramid.baseId(id));
+        long start = System.nanoTime();
+        var locks = lockRegions(id, x, y, source.getWidth(), source.getHeight(), true);
+        try (var image = storage.open(id, true)) {
+            try {
+                if (!image.isTransactional() && bandExecutor.isParallel(source.getWidth(), source.getHeight())) {
+                    writeBands(id, x, y, source);
+                } else {
+                    write(image, x, y, source, 0, source.getHeight());
+                }
+            } catch (IOException | RuntimeException e) {
+                image.abort();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            written(id, x, y, source.getWidth(), source.getHeight());
+            releaseLocks(locks);
+            ImageRepoMetrics.record(metrics.write, start);
+        }
     }
 
-    private void setup() {
-        if (!Files.exists(Path.of(STORAGE_PATH))) {
+    /**
+     * Copies streamed fragment from {@code source} into stored image at (x, y). Parts outside of image bounds
+     * are skipped. A rejected stream leaves the image unchanged: rows are written as they arrive into
+     * a transactional image, which is aborted on failure, and only a single row is kept in memory;
+     * rows for other images are staged in memory until the whole stream is read.
+     *
+     * @param id     image id
+     * @param x      left column of fragment
+     * @param y      top row of fragment
+     * @param source reader positioned at the first row of fragment pixel data
+     * @throws ImageNotFoundException                                   if image can not be found by {@code id}
+     * @throws ru.kontur.intern.exception.IllegalImageFormatException if fragment pixel data is truncated
+     */
+    public void writeImagePart(String id, int x, int y, RowReader source) {
+        index.get(Pyramid.baseId(id));
+        long start = System.nanoTime();
+        var locks = lockRegions(id, x, y, source.getWidth(), source.getHeight(), true);
+        try (var image = storage.open(id, true)) {
+            if (!image.isTransactional()) {
+                write(image, x, y, source.getWidth(), stage(image, x, y, source));
+                return;
+            }
             try {
-                Files.createDirectory(Path.of(STORAGE_PATH));
-            } catch (IOException e) {
-                log.error(e.getMessage());
+                write(image, x, y, source);
+            } catch (IOException | RuntimeException e) {
+                image.abort();
+                throw e;
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            written(id, x, y, source.getWidth(), source.getHeight());
+            releaseLocks(locks);
+            ImageRepoMetrics.record(metrics.write, start);
         }
     }
 
     /**
-     * Reads image from disk
+     * Starts a batch of fragment writes into a single image. The image is locked exclusively and opened
+     * in storage once for the whole batch, instead of locking regions and opening the image for every fragment.
+     * Other operations on the image wait until the batch is closed.
      *
      * @param id image id
+     * @return batch which must be closed to release the image
+     * @throws ImageNotFoundException if image can not be found by {@code id}
      */
-    public BufferedImage readImage(String id) {
-        String imagePath = getImagePathById(id);
-        var lock = striped.get(id).readLock();
+    public Batch openBatch(String id) {
+        index.get(id);
+        var locks = lockImage(id, true);
         try {
-            acquireLock(lock);
-            return ImageIO.read(new File(imagePath));
-        } catch (Exception e) {
-            throw new ImageNotFoundException(imagePath);
-        } finally {
-            releaseLock(lock);
+            return new Batch(id, storage.open(id, true), locks);
+        } catch (IOException e) {
+            releaseLocks(locks);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            releaseLocks(locks);
+            throw e;
         }
     }
 
     /**
-     * Deletes image from disk.
+     * Deletes image and its pyramid levels from storage.
      *
      * @param id image id
      */
     public void deleteImage(String id) {
-        Path imagePath = Path.of(getImagePathById(id));
-        var lock = striped.get(id).writeLock();
+        long start = System.nanoTime();
+        var locks = lockImage(id, true);
         try {
-            acquireLock(lock);
-            if (Files.exists(imagePath)) {
-                Files.delete(imagePath);
-            }
-        } catch (Exception e) {
-            log.error(e.getMessage());
+            index.remove(id);
+            regionVersions.remove(id);
+            storage.delete(id);
+            deleteLevels(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         } finally {
-            releaseLock(lock);
+            releaseLocks(locks);
+            ImageRepoMetrics.record(metrics.delete, start);
         }
     }
 
     /**
-     * Saves image on disk.
+     * Saves image in storage.
      *
      * @param image image to save
      * @return uniq created image identifier
      * @throws NoAppropriateWriterException if image format does not match bmp RGB
      */
     public String saveImage(BufferedImage image) {
-        String id = UUID.randomUUID().toString();
-        var lock = striped.get(id).writeLock();
-        try {
-            acquireLock(lock);
-            saveImageToDisk(image, getImagePathById(id));
-        } catch (IOException e) {
-            log.error(e.getMessage());
-        } finally {
-            releaseLock(lock);
-        }
+        checkRgb(image);
+        String id = createImage(image.getWidth(), image.getHeight());
+        writeImagePart(id, 0, 0, image);
         return id;
     }
 
     /**
-     * Saves image with specified id and overrides previous image.
+     * Saves image with specified id and overrides previous image. Pyramid levels are reset to black.
      *
      * @param id    image id
      * @param image image to save
      * @throws NoAppropriateWriterException if image format does not match bmp RGB
      */
     public void updateImage(String id, BufferedImage image) {
-        String imagePath = getImagePathById(id);
-        var lock = striped.get(id).writeLock();
+        checkRgb(image);
+        var locks = lockImage(id, true);
+        try {
+            index.remove(id);
+            regionVersions.remove(id);
+            storage.delete(id);
+            deleteLevels(id);
+            storage.create(id, image.getWidth(), image.getHeight());
+            createLevels(id, image.getWidth(), image.getHeight());
+            index.add(id, image.getWidth(), image.getHeight());
+            writeImagePart(id, 0, 0, image);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseLocks(locks);
+        }
+    }
+
+    /**
+     * Checks a stored image or level, as listed by storage, against the index under the exclusive image lock.
+     * An image which is not indexed and levels of such an image or past the last level are leftovers of failed
+     * creates and deletes, they are deleted; a leftover image which can not be opened is quarantined instead.
+     * An indexed image which can not be opened or has another size is quarantined like by {@link #quarantine(String)}.
+     * Levels of a valid image which can not be opened, have another size or are missing are recreated black.
+     * Pixels are not read.
+     *
+     * @param storedId image id or level id
+     */
+    public ScrubStatus checkStored(String storedId) {
+        String id = Pyramid.baseId(storedId);
+        int level = Pyramid.level(storedId);
+        var locks = lockImage(id, true);
+        try {
+            Dimension stored;
+            try {
+                stored = storedSize(storedId);
+            } catch (ImageNotFoundException e) {
+                return ScrubStatus.MISSING;
+            }
+            Dimension expected = indexedSize(id, level);
+            if (expected == null) {
+                if (level == 0 && stored == null) {
+                    storage.quarantine(id);
+                    deleteLevels(id);
+                    log.warn("Quarantined unreadable image {} missing in the index", id);
+                    return ScrubStatus.QUARANTINED;
+                }
+                storage.delete(storedId);
+                if (level == 0) {
+                    deleteLevels(id);
+                }
+                log.info("Deleted image {} missing in the index", storedId);
+                return ScrubStatus.RECLAIMED;
+            }
+            if (!expected.equals(stored)) {
+                return quarantineLocked(storedId, expected);
+            }
+            if (level == 0 && repairLevels(id, expected)) {
+                return ScrubStatus.REPAIRED;
+            }
+            return ScrubStatus.VALID;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseLocks(locks);
+        }
+    }
+
+    /**
+     * Reads rows {@code [top, top + height)} of a stored image or level from the backing storage
+     * under read locks of their regions and drops them, so pixels are verified where they are kept
+     * and not served from a cache or pushed into it.
+     *
+     * @param storedId image id or level id
+     * @return number of read bytes
+     * @throws ImageNotFoundException if image can not be found by {@code storedId}
+     */
+    public long readStored(String storedId, int top, int height) throws IOException {
+        int width = getImageSize(storedId).width;
+        var locks = lockRegions(storedId, 0, top, width, height, false);
+        try (var image = storage.getBackingStorage().open(storedId, false)) {
+            long bytes = 0;
+            for (int row = top; row < top + height; row++) {
+                bytes += image.row(row, 0, width).remaining();
+            }
+            return bytes;
+        } finally {
+            releaseLocks(locks);
+        }
+    }
+
+    /**
+     * Takes a corrupt stored image out of service under the exclusive image lock. An image is removed from the index
+     * and quarantined in storage, its levels are deleted, so it is not found anymore.
+     * A level is recreated black, since its pixels are derived from the image.
+     *
+     * @param storedId image id or level id
+     * @return {@link ScrubStatus#QUARANTINED} for an image, {@link ScrubStatus#REPAIRED} for a level
+     * @throws ImageNotFoundException if image can not be found by {@code storedId}
+     */
+    public ScrubStatus quarantine(String storedId) {
+        var locks = lockImage(storedId, true);
+        try {
+            var metadata = index.get(Pyramid.baseId(storedId));
+            return quarantineLocked(storedId, Pyramid.levelSize(metadata.getWidth(), metadata.getHeight(),
+                    Pyramid.level(storedId)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseLocks(locks);
+        }
+    }
+
+    /**
+     * Reclaims space of a stored image or level besides its pixels under the exclusive image lock.
+     *
+     * @param storedId image id or level id
+     * @return number of reclaimed bytes
+     */
+    public long compact(String storedId) {
+        var locks = lockImage(storedId, true);
+        try {
+            return storage.compact(storedId);
+        } catch (ImageNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseLocks(locks);
+        }
+    }
+
+    /**
+     * Reads rows {@code [y, storedBottom)} in bands of region rows on the band executor,
+     * at most its parallelism bands ahead of the consumer, and passes them to the consumer in order,
+     * together with black rows {@code [storedBottom, fragmentBottom)} past the image.
+     * Buffers for all bands read ahead are taken from the pool by the calling thread before the first row is passed,
+     * black rows included, so a fragment fails for lack of memory before anything of it is written,
+     * and a buffer of a consumed band is reused for the next one.
+     * Buffers are returned once all bands are consumed or the read fails.
+     * Bands still being read are awaited before return, so no band outlives the locks of the fragment or its buffer.
+     *
+     * @param storedWidth    number of stored pixels in every row
+     * @param storedBottom   end of stored rows of the fragment
+     * @param width          fragment width
+     * @param fragmentBottom end of rows of the fragment
+     */
+    private void readBands(String id, int x, int y, int storedWidth, int storedBottom, int width,
+                           int fragmentBottom, boolean bottomUp, ImageFragment.RowConsumer consumer) throws IOException {
+        List<int[]> bands = new ArrayList<>();
+        for (int top = y; top < storedBottom; ) {
+            int bottom = Math.min(storedBottom, (top / regionSize + 1) * regionSize);
+            bands.add(new int[]{top, bottom});
+            top = bottom;
+        }
+        if (bottomUp) {
+            Collections.reverse(bands);
+        }
+        int rowBytes = storedWidth * BYTES_PER_PIXEL;
+        int bandBytes = Math.min(regionSize, storedBottom - y) * rowBytes;
+        Deque<ForkJoinTask<Void>> pending = new ArrayDeque<>();
+        Deque<BufferPool.Lease> leases = new ArrayDeque<>();
+        Deque<BufferPool.Lease> free = new ArrayDeque<>();
+        int submitted = 0;
         try {
-            acquireLock(lock);
-            saveImageToDisk(image, imagePath);
+            for (int i = Math.min(bandExecutor.getParallelism(), bands.size()); i > 0; i--) {
+                free.add(bufferPool.acquire(bandBytes));
+            }
+            if (bottomUp) {
+                for (int row = fragmentBottom - 1; row >= storedBottom; row--) {
+                    consumer.accept(EMPTY_ROW, width);
+                }
+            }
+            for (int[] band : bands) {
+                while (submitted < bands.size() && !free.isEmpty()) {
+                    int[] next = bands.get(submitted++);
+                    var lease = free.removeFirst();
+                    leases.add(lease);
+                    pending.add(bandExecutor.submit(() -> readBand(id, x, next[0], next[1], storedWidth,
+                            lease.getBuffer())));
+                }
+                join(pending.removeFirst());
+                var lease = leases.removeFirst();
+                free.add(lease);
+                var pixels = lease.getBuffer();
+                int rows = band[1] - band[0];
+                for (int i = 0; i < rows; i++) {
+                    int row = bottomUp ? rows - 1 - i : i;
+                    pixels.clear().position(row * rowBytes).limit((row + 1) * rowBytes);
+                    consumer.accept(pixels, width - storedWidth);
+                }
+            }
+            if (!bottomUp) {
+                for (int row = storedBottom; row < fragmentBottom; row++) {
+                    consumer.accept(EMPTY_ROW, width);
+                }
+            }
+        } finally {
+            for (var task : pending) {
+                task.cancel(false);
+                task.quietlyJoin();
+            }
+            for (var lease : leases) {
+                lease.close();
+            }
+            for (var lease : free) {
+                lease.close();
+            }
+        }
+    }
+
+    private Void readBand(String id, int x, int top, int bottom, int width, ByteBuffer pixels) {
+        pixels.clear();
+        try (var image = storage.open(id, false)) {
+            for (int row = top; row < bottom; row++) {
+                image.readRow(row, x, width, pixels);
+            }
         } catch (IOException e) {
-            log.error(e.getMessage());
+            throw new UncheckedIOException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Writes bands of region rows of {@code source} concurrently, each band into its own opened image.
+     * Bands never share a region, so they never share a block of storage either.
+     */
+    private void writeBands(String id, int x, int y, BufferedImage source) throws IOException {
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        try {
+            for (int top = 0; top < source.getHeight(); ) {
+                int from = top;
+                int to = Math.min(source.getHeight(), (Math.floorDiv(y + top, regionSize) + 1) * regionSize - y);
+                tasks.add(bandExecutor.submit(() -> {
+                    try (var image = storage.open(id, true)) {
+                        write(image, x, y, source, from, to);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                }));
+                top = to;
+            }
+            for (var task : tasks) {
+                join(task);
+            }
         } finally {
-            releaseLock(lock);
+            for (var task : tasks) {
+                task.cancel(false);
+                task.quietlyJoin();
+            }
+        }
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes rows {@code [fromRow, toRow)} of {@code source}.
+     */
+    private void write(StoredImage image, int x, int y, BufferedImage source, int fromRow, int toRow)
+            throws IOException {
+        int left = PixelCopy.clipStart(x, source.getWidth());
+        int right = PixelCopy.clipEnd(x, source.getWidth(), image.getWidth());
+        int top = Math.max(fromRow, PixelCopy.clipStart(y, source.getHeight()));
+        int bottom = Math.min(toRow, PixelCopy.clipEnd(y, source.getHeight(), image.getHeight()));
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int width = right - left;
+        metrics.bytesWritten.increment((double) width * (bottom - top) * BYTES_PER_PIXEL);
+        byte[] bgr = PixelCopy.bgrRaster(source);
+        if (bgr != null) {
+            for (int i = top; i < bottom; i++) {
+                image.writeRow(y + i, x + left, width, bgr, (i * source.getWidth() + left) * BYTES_PER_PIXEL);
+            }
+            return;
+        }
+        int[] rgb = PixelCopy.rgbRaster(source);
+        int[] pixels = rgb != null ? rgb : new int[width];
+        byte[] row = new byte[width * BYTES_PER_PIXEL];
+        for (int i = top; i < bottom; i++) {
+            int offset = i * source.getWidth() + left;
+            if (rgb == null) {
+                source.getRGB(left, i, width, 1, pixels, 0, width);
+                offset = 0;
+            }
+            PixelCopy.rgbToBgr(pixels, offset, row, 0, width);
+            image.writeRow(y + i, x + left, width, row, 0);
+        }
+    }
+
+    /**
+     * Reads all rows of {@code source}, so an invalid stream is rejected before anything is written.
+     *
+     * @return rows falling into the image from the top of the fragment, clipped to the image width
+     */
+    private byte[] stage(StoredImage image, int x, int y, RowReader source) throws IOException {
+        int width = Math.min(source.getWidth(), image.getWidth() - x);
+        int height = Math.min(source.getHeight(), image.getHeight() - y);
+        if (width <= 0 || height <= 0) {
+            return new byte[0];
+        }
+        int rowBytes = width * BYTES_PER_PIXEL;
+        byte[] rows = new byte[Math.multiplyExact(height, rowBytes)];
+        byte[] row = new byte[source.getRowSize()];
+        while (source.hasNextRow()) {
+            int fragmentRow = source.readRow(row);
+            if (fragmentRow < height) {
+                System.arraycopy(row, 0, rows, fragmentRow * rowBytes, rowBytes);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Writes rows staged by {@link #stage(StoredImage, int, int, RowReader)}.
+     */
+    private void write(StoredImage image, int x, int y, int sourceWidth, byte[] rows) throws IOException {
+        int width = Math.min(sourceWidth, image.getWidth() - x);
+        for (int offset = 0, targetRow = y; offset < rows.length; offset += width * BYTES_PER_PIXEL, targetRow++) {
+            image.writeRow(targetRow, x, width, rows, offset);
+        }
+        metrics.bytesWritten.increment(rows.length);
+    }
+
+    private void write(StoredImage image, int x, int y, RowReader source) throws IOException {
+        int width = Math.min(source.getWidth(), image.getWidth() - x);
+        byte[] row = new byte[source.getRowSize()];
+        long bytes = 0;
+        try {
+            while (width > 0 && source.hasNextRow()) {
+                int targetRow = y + source.readRow(row);
+                if (targetRow < image.getHeight()) {
+                    image.writeRow(targetRow, x, width, row, 0);
+                    bytes += width * BYTES_PER_PIXEL;
+                }
+            }
+        } finally {
+            metrics.bytesWritten.increment(bytes);
+        }
+    }
+
+    /**
+     * Gives new version to the image after a write into it or its level, and to the written regions of level 0,
+     * marks the written area of level 0 as covered. Called before the locks of the write are released.
+     */
+    private void written(String id, int x, int y, int width, int height) {
+        if (Pyramid.level(id) == 0) {
+            index.cover(id, x, y, width, height);
+        }
+        var metadata = index.touch(Pyramid.baseId(id));
+        if (metadata != null && Pyramid.level(id) == 0) {
+            regionVersions.update(id, metadata, x, y, width, height);
+        }
+    }
+
+    /**
+     * @return whether any pixel of the area of image or its level may have been written. Pixels of a level
+     * are computed from the image only, so an area of a level is black if the area of the image under it is black.
+     */
+    private boolean isCovered(String id, int x, int y, int width, int height) {
+        int level = Pyramid.level(id);
+        return index.isCovered(Pyramid.baseId(id), (long) x << level, (long) y << level,
+                (long) width << level, (long) height << level);
+    }
+
+    private ScrubStatus quarantineLocked(String storedId, Dimension size) throws IOException {
+        String id = Pyramid.baseId(storedId);
+        if (Pyramid.level(storedId) > 0) {
+            storage.delete(storedId);
+            storage.create(storedId, size.width, size.height);
+            log.warn("Recreated corrupt pyramid level {}", storedId);
+            return ScrubStatus.REPAIRED;
+        }
+        index.remove(id);
+        regionVersions.remove(id);
+        storage.quarantine(id);
+        deleteLevels(id);
+        log.warn("Quarantined corrupt image {}", id);
+        return ScrubStatus.QUARANTINED;
+    }
+
+    /**
+     * Recreates levels of the image which can not be opened, have another size or are missing.
+     *
+     * @return whether any level has been recreated
+     */
+    private boolean repairLevels(String id, Dimension size) throws IOException {
+        boolean repaired = false;
+        for (int level = 1; level <= Pyramid.levelCount(size.width, size.height); level++) {
+            String levelId = Pyramid.levelId(id, level);
+            var levelSize = Pyramid.levelSize(size.width, size.height, level);
+            Dimension stored;
+            try {
+                stored = storedSize(levelId);
+            } catch (ImageNotFoundException e) {
+                stored = null;
+            }
+            if (!levelSize.equals(stored)) {
+                storage.delete(levelId);
+                storage.create(levelId, levelSize.width, levelSize.height);
+                log.warn("Recreated broken pyramid level {}", levelId);
+                repaired = true;
+            }
+        }
+        return repaired;
+    }
+
+    /**
+     * @return size of the stored image, {@code null} if it can not be opened
+     * @throws ImageNotFoundException if there is no such image in storage
+     */
+    private Dimension storedSize(String storedId) {
+        try (var image = storage.open(storedId, false)) {
+            return new Dimension(image.getWidth(), image.getHeight());
+        } catch (IOException | UncheckedIOException | IllegalImageFormatException e) {
+            log.warn("Stored image {} can not be opened: {}", storedId, e.getMessage());
+            return null;
         }
     }
 
-    private void saveImageToDisk(BufferedImage target, String imagePath) throws IOException {
-        var isSuccess = ImageIO.write(target, "bmp", new File(imagePath));
-        if (!isSuccess) {
-            throw new NoAppropriateWriterException(target, "bmp");
+    /**
+     * @return size of the image or its level by the index, {@code null} if the image is not indexed
+     * or the level is past the last one
+     */
+    private Dimension indexedSize(String id, int level) {
+        ImageMetadata metadata;
+        try {
+            metadata = index.get(id);
+        } catch (ImageNotFoundException | UncheckedIOException | IllegalImageFormatException e) {
+            //Incomplete index fails to read the header of an unreadable image
+            return null;
+        }
+        if (level > Pyramid.levelCount(metadata.getWidth(), metadata.getHeight())) {
+            return null;
+        }
+        return Pyramid.levelSize(metadata.getWidth(), metadata.getHeight(), level);
+    }
+
+    private void createLevels(String id, int width, int height) throws IOException {
+        for (int level = 1; level <= Pyramid.levelCount(width, height); level++) {
+            var size = Pyramid.levelSize(width, height, level);
+            storage.create(Pyramid.levelId(id, level), size.width, size.height);
+        }
+    }
+
+    private void deleteLevels(String id) throws IOException {
+        for (int level = 1; storage.delete(Pyramid.levelId(id, level)); level++) {
+            log.debug("Deleted pyramid level {} of image {}", level, id);
         }
     }
 
-    private String getImagePathById(String id) {
-        return String.format("%s/%s.bmp", STORAGE_PATH, id);
+    private void checkRgb(BufferedImage image) {
+        if (image.getColorModel().hasAlpha()) {
+            throw new NoAppropriateWriterException(image, "bmp");
+        }
+    }
+
+    /**
+     * Acquires the image lock.
+     *
+     * @param write whether the lock is acquired exclusively
+     */
+    private HeldLocks lockImage(String id, boolean write) {
+        var imageLock = striped.get(Pyramid.baseId(id));
+        var lockMetrics = write ? metrics.imageWrite : metrics.imageRead;
+        var lock = write ? imageLock.writeLock() : imageLock.readLock();
+        acquireLock(lock, lockMetrics);
+        return new HeldLocks(List.of(lock), lockMetrics);
+    }
+
+    /**
+     * Acquires the image lock in shared mode and locks of all regions intersecting the fragment.
+     *
+     * @param write whether region locks are acquired exclusively
+     * @return acquired locks in acquisition order
+     */
+    private HeldLocks lockRegions(String id, int x, int y, int width, int height, boolean write) {
+        List<String> keys = new ArrayList<>();
+        for (int regionY = y / regionSize; regionY <= (y + height - 1) / regionSize; regionY++) {
+            for (int regionX = x / regionSize; regionX <= (x + width - 1) / regionSize; regionX++) {
+                keys.add(id + '/' + regionX + '/' + regionY);
+            }
+        }
+        var lockMetrics = write ? metrics.regionWrite : metrics.regionRead;
+        List<Lock> locks = new ArrayList<>(keys.size() + 1);
+        var imageLock = striped.get(Pyramid.baseId(id)).readLock();
+        acquireLock(imageLock, metrics.imageRead);
+        locks.add(imageLock);
+        //bulkGet returns stripes in ascending order, every thread acquires them in the same order
+        for (ReadWriteLock regionLock : regionStriped.bulkGet(keys)) {
+            var lock = write ? regionLock.writeLock() : regionLock.readLock();
+            acquireLock(lock, lockMetrics);
+            locks.add(lock);
+        }
+        return new HeldLocks(locks, lockMetrics);
+    }
+
+    private void releaseLocks(HeldLocks held) {
+        for (int i = held.locks.size() - 1; i >= 0; i--) {
+            releaseLock(held.locks.get(i));
+        }
+        ImageRepoMetrics.record(held.lockMetrics.hold, held.acquiredAt);
     }
 
     private void releaseLock(Lock lock) {
-        log.debug(Thread.currentThread() + " releases lock " + lock);
+        log.debug("{} releases lock {}", Thread.currentThread(), lock);
         lock.unlock();
     }
 
-    private void acquireLock(Lock lock) {
-        log.debug(Thread.currentThread() + " acquires lock " + lock);
+    private void acquireLock(Lock lock, ImageRepoMetrics.LockMetrics lockMetrics) {
+        log.debug("{} acquires lock {}", Thread.currentThread(), lock);
+        long start = System.nanoTime();
         lock.lock();
+        ImageRepoMetrics.record(lockMetrics.wait, start);
+    }
+
+    /**
+     * Locks acquired by a single operation, in acquisition order.
+     */
+    private static class HeldLocks {
+        final List<Lock> locks;
+        final ImageRepoMetrics.LockMetrics lockMetrics;
+        final long acquiredAt = System.nanoTime();
+
+        HeldLocks(List<Lock> locks, ImageRepoMetrics.LockMetrics lockMetrics) {
+            this.locks = locks;
+            this.lockMetrics = lockMetrics;
+        }
+    }
+
+    /**
+     * Fragment writes into an image opened by {@link #openBatch(String)}. Not thread-safe.
+     */
+    public class Batch implements Closeable {
+        private final String id;
+        private final StoredImage image;
+        private final HeldLocks locks;
+
+        private Batch(String id, StoredImage image, HeldLocks locks) {
+            this.id = id;
+            this.image = image;
+            this.locks = locks;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Writes the fragment, a failed write aborts the batch if its image is transactional.
+         *
+         * @see ImageRepo#writeImagePart(String, int, int, BufferedImage)
+         */
+        public void writeImagePart(int x, int y, BufferedImage source) throws IOException {
+            long start = System.nanoTime();
+            try {
+                write(image, x, y, source, 0, source.getHeight());
+            } catch (IOException | RuntimeException e) {
+                image.abort();
+                throw e;
+            } finally {
+                written(id, x, y, source.getWidth(), source.getHeight());
+                ImageRepoMetrics.record(metrics.write, start);
+            }
+        }
+
+        /**
+         * Stages rows of the fragment before writing them, so a rejected stream leaves the batch unaffected.
+         * A failed write aborts the batch if its image is transactional.
+         *
+         * @see ImageRepo#writeImagePart(String, int, int, RowReader)
+         */
+        public void writeImagePart(int x, int y, RowReader source) throws IOException {
+            long start = System.nanoTime();
+            try {
+                byte[] rows = stage(image, x, y, source);
+                try {
+                    write(image, x, y, source.getWidth(), rows);
+                } catch (IOException | RuntimeException e) {
+                    image.abort();
+                    throw e;
+                }
+            } finally {
+                written(id, x, y, source.getWidth(), source.getHeight());
+                ImageRepoMetrics.record(metrics.write, start);
+            }
+        }
+
+        /**
+         * Closes the image in storage and releases the image lock.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                image.close();
+            } finally {
+                releaseLocks(locks);
+            }
+        }
     }
 }
@@ -0,0 +1,83 @@
+package ru.kontur.intern.repo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of {@link ImageRepo}: duration of operations, pixel bytes moved to and from storage,
+ * reads of never written areas served without storage, and time spent waiting for and holding locks, tagged by lock level and mode.
+ * Individual stripes are not tagged, there may be thousands of them.
+ */
+class ImageRepoMetrics {
+    final Timer create;
+    final Timer read;
+    final Timer write;
+    final Timer delete;
+    final Counter bytesRead;
+    final Counter bytesWritten;
+    final Counter blackReads;
+    final LockMetrics imageRead;
+    final LockMetrics imageWrite;
+    final LockMetrics regionRead;
+    final LockMetrics regionWrite;
+
+    ImageRepoMetrics(MeterRegistry registry) {
+        create = operation(registry, "create");
+        read = operation(registry, "read");
+        write = operation(registry, "write");
+        delete = operation(registry, "delete");
+        bytesRead = bytes(registry, "read");
+        bytesWritten = bytes(registry, "written");
+        blackReads = Counter.builder("chartographer.repo.uncovered.reads")
+                .description("Fragment reads of never written areas, served as black without storage")
+                .register(registry);
+        imageRead = new LockMetrics(registry, "image", "read");
+        imageWrite = new LockMetrics(registry, "image", "write");
+        regionRead = new LockMetrics(registry, "region", "read");
+        regionWrite = new LockMetrics(registry, "region", "write");
+    }
+
+    /**
+     * Records time elapsed since {@code start}, taken from {@link System#nanoTime()}.
+     */
+    static void record(Timer timer, long start) {
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static Timer operation(MeterRegistry registry, String operation) {
+        return Timer.builder("chartographer.repo.operation")
+                .description("Duration of image repository operations, reads include consumption of the fragment")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static Counter bytes(MeterRegistry registry, String direction) {
+        return Counter.builder("chartographer.repo.pixel.bytes")
+                .description("Pixel bytes transferred between image repository and storage")
+                .baseUnit("bytes")
+                .tag("direction", direction)
+                .register(registry);
+    }
+
+    static class LockMetrics {
+        final Timer wait;
+        final Timer hold;
+
+        LockMetrics(MeterRegistry registry, String level, String mode) {
+            wait = Timer.builder("chartographer.lock.wait")
+                    .description("Time spent waiting for image and region locks")
+                    .tags("level", level, "mode", mode)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            hold = Timer.builder("chartographer.lock.hold")
+                    .description("Time image and region locks are held by an operation")
+                    .tags("level", level, "mode", mode)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ru.kontur.intern.repo;
+
+import java.awt.Dimension;
+
+/**
+ * Layout of downsampled copies of an image. Level 0 is the image itself,
+ * every next level is half the size of the previous one rounded up, down to a single pixel.
+ * Levels are kept in storage as separate images with ids derived from the image id.
+ */
+public final class Pyramid {
+    private static final char LEVEL_SEPARATOR = '@';
+
+    private Pyramid() {
+    }
+
+    /**
+     * @return id of the stored image of pyramid level, {@code id} itself for level 0
+     */
+    public static String levelId(String id, int level) {
+        return level == 0 ? id : id + LEVEL_SEPARATOR + level;
+    }
+
+    /**
+     * @return whether {@code id} may be an id of a stored pyramid level, ids of images never contain the separator
+     */
+    public static boolean isLevelId(String id) {
+        return id.indexOf(LEVEL_SEPARATOR) >= 0;
+    }
+
+    /**
+     * @return id of the image the pyramid level belongs to
+     */
+    public static String baseId(String levelId) {
+        int separator = levelId.lastIndexOf(LEVEL_SEPARATOR);
+        return separator < 0 ? levelId : levelId.substring(0, separator);
+    }
+
+    /**
+     * @return pyramid level of the stored image, 0 for the image itself
+     */
+    public static int level(String levelId) {
+        int separator = levelId.lastIndexOf(LEVEL_SEPARATOR);
+        return separator < 0 ? 0 : Integer.parseInt(levelId.substring(separator + 1));
+    }
+
+    /**
+     * @return number of levels above level 0
+     */
+    public static int levelCount(int width, int height) {
+        int levels = 0;
+        while (width > 1 || height > 1) {
+            width = half(width);
+            height = half(height);
+            levels++;
+        }
+        return levels;
+    }
+
+    public static Dimension levelSize(int width, int height, int level) {
+        for (int i = 0; i < level; i++) {
+            width = half(width);
+            height = half(height);
+        }
+        return new Dimension(width, height);
+    }
+
+    static int half(int length) {
+        return (length + 1) / 2;
+    }
+}
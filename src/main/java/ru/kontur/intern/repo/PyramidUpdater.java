@@ -0,0 +1,187 @@
+package ru.kontur.intern.repo;
+
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Keeps {@link Pyramid} levels of images up to date in a background thread.
+ * Written areas are collected per image and merged, so a burst of fragments is propagated once.
+ * Only cells of every level covering the written area are recomputed, each as an average of 2x2 pixels of
+ * the level below, in square chunks to bound memory usage.
+ * <p>
+ * Levels lag behind the image until the update is processed.
+ */
+@Log4j2
+public class PyramidUpdater implements Closeable {
+    private final ImageRepo imageRepo;
+    private final int chunkSize;
+    private final Map<String, Rectangle> pending = new LinkedHashMap<>();
+    private final ExecutorService executor;
+    private boolean draining;
+
+    /**
+     * @param imageRepo repository of images and their levels
+     * @param chunkSize side of a square chunk of level pixels recomputed at once
+     */
+    public PyramidUpdater(ImageRepo imageRepo, int chunkSize) {
+        this.imageRepo = imageRepo;
+        this.chunkSize = chunkSize;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "pyramid-updater");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules update of pyramid levels after the area of level 0 has been written.
+     *
+     * @param id     image id
+     * @param x      left column of written area, may be outside of the image
+     * @param y      top row of written area, may be outside of the image
+     * @param width  width of written area
+     * @param height height of written area
+     */
+    public synchronized void invalidate(String id, int x, int y, int width, int height) {
+        pending.merge(id, new Rectangle(x, y, width, height), Rectangle::union);
+        if (!draining) {
+            draining = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Waits until all scheduled updates are processed.
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (draining) {
+            wait();
+        }
+    }
+
+    /**
+     * Processes scheduled updates and stops the background thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.error("Pyramid updates are not finished in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Map.Entry<String, Rectangle> next;
+            synchronized (this) {
+                var iterator = pending.entrySet().iterator();
+                if (!iterator.hasNext()) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                next = iterator.next();
+                iterator.remove();
+            }
+            try {
+                update(next.getKey(), next.getValue());
+            } catch (ImageNotFoundException e) {
+                log.debug("Image {} is deleted before its pyramid is updated", next.getKey());
+            } catch (RuntimeException e) {
+                log.error("Failed to update pyramid of image {}: {}", next.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Recomputes the area of every level covering {@code dirty} area of level 0.
+     */
+    void update(String id, Rectangle dirty) {
+        var size = imageRepo.getImageSize(id);
+        var area = dirty.intersection(new Rectangle(size));
+        byte[] source = new byte[4 * chunkSize * chunkSize * BYTES_PER_PIXEL];
+        for (int level = 1; level <= Pyramid.levelCount(size.width, size.height) && !area.isEmpty(); level++) {
+            var sourceSize = Pyramid.levelSize(size.width, size.height, level - 1);
+            var targetSize = Pyramid.levelSize(size.width, size.height, level);
+            int left = area.x / 2;
+            int top = area.y / 2;
+            area = new Rectangle(left, top, Pyramid.half(area.x + area.width) - left,
+                    Pyramid.half(area.y + area.height) - top).intersection(new Rectangle(targetSize));
+            for (int y = area.y; y < area.y + area.height; y += chunkSize) {
+                for (int x = area.x; x < area.x + area.width; x += chunkSize) {
+                    int width = Math.min(chunkSize, area.x + area.width - x);
+                    int height = Math.min(chunkSize, area.y + area.height - y);
+                    downsample(id, level, sourceSize.width, sourceSize.height, x, y, width, height, source);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes a chunk of level pixels from the level below.
+     *
+     * @param sourceWidth  width of the level below
+     * @param sourceHeight height of the level below
+     * @param source       buffer for pixels of the level below
+     */
+    private void downsample(String id, int level, int sourceWidth, int sourceHeight,
+                            int x, int y, int width, int height, byte[] source) {
+        int sourceX = 2 * x;
+        int sourceY = 2 * y;
+        //The last column and row of odd sized level have no pair
+        int columns = Math.min(2 * width, sourceWidth - sourceX);
+        int rows = Math.min(2 * height, sourceHeight - sourceY);
+        int[] row = new int[1];
+        try {
+            imageRepo.getImagePart(Pyramid.levelId(id, level - 1), sourceX, sourceY, columns, rows)
+                    .readRows(false, (pixels, blackPixels) -> {
+                        int offset = row[0]++ * columns * BYTES_PER_PIXEL;
+                        int length = pixels.remaining();
+                        pixels.get(source, offset, length);
+                        //Never written areas come as black pixels only, the buffer keeps the previous chunk there
+                        Arrays.fill(source, offset + length, offset + length + blackPixels * BYTES_PER_PIXEL,
+                                (byte) 0);
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var target = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < height; i++) {
+            int rowCount = Math.min(2, rows - 2 * i);
+            for (int j = 0; j < width; j++) {
+                int columnCount = Math.min(2, columns - 2 * j);
+                for (int channel = 0; channel < BYTES_PER_PIXEL; channel++) {
+                    int sum = 0;
+                    for (int dy = 0; dy < rowCount; dy++) {
+                        for (int dx = 0; dx < columnCount; dx++) {
+                            sum += source[((2 * i + dy) * columns + 2 * j + dx) * BYTES_PER_PIXEL + channel] & 0xFF;
+                        }
+                    }
+                    int count = rowCount * columnCount;
+                    pixels[(i * width + j) * BYTES_PER_PIXEL + channel] = (byte) ((sum + count / 2) / count);
+                }
+            }
+        }
+        imageRepo.writeImagePart(Pyramid.levelId(id, level), x, y, target);
+    }
+}
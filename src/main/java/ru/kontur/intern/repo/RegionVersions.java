@@ -0,0 +1,86 @@
+package ru.kontur.intern.repo;
+
+import ru.kontur.intern.model.ImageMetadata;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Versions of square regions of images: a region has the version its image got after the last write into the region.
+ * Versions are kept in memory for a bounded number of recently used images. Regions of an image without
+ * kept versions start with the current version of the image, which is not older than the version of any region,
+ * so a fragment version may only change more often than its pixels, never less.
+ */
+class RegionVersions {
+    private static final int MAX_IMAGES = 10_000;
+
+    private final int regionSize;
+    private final Map<String, AtomicLongArray> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AtomicLongArray> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    RegionVersions(int regionSize) {
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Sets version of regions intersecting written area to the version of the image after the write.
+     */
+    void update(String id, ImageMetadata metadata, int x, int y, int width, int height) {
+        var versions = versions(id, metadata);
+        forEachRegion(metadata, x, y, width, height,
+                region -> versions.accumulateAndGet(region, metadata.getVersion(), Math::max));
+    }
+
+    /**
+     * @return the latest version of regions intersecting the area, 0 if the area is outside of the image
+     */
+    long get(String id, ImageMetadata metadata, int x, int y, int width, int height) {
+        var versions = versions(id, metadata);
+        long[] latest = {0};
+        forEachRegion(metadata, x, y, width, height, region -> latest[0] = Math.max(latest[0], versions.get(region)));
+        return latest[0];
+    }
+
+    synchronized void remove(String id) {
+        images.remove(id);
+    }
+
+    private synchronized AtomicLongArray versions(String id, ImageMetadata metadata) {
+        var versions = images.get(id);
+        if (versions == null) {
+            int rows = (metadata.getHeight() + regionSize - 1) / regionSize;
+            versions = new AtomicLongArray(rows * columns(metadata));
+            for (int i = 0; i < versions.length(); i++) {
+                versions.set(i, metadata.getVersion());
+            }
+            images.put(id, versions);
+        }
+        return versions;
+    }
+
+    private int columns(ImageMetadata metadata) {
+        return (metadata.getWidth() + regionSize - 1) / regionSize;
+    }
+
+    private void forEachRegion(ImageMetadata metadata, int x, int y, int width, int height, IntConsumer consumer) {
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(metadata.getWidth(), x + width);
+        int bottom = Math.min(metadata.getHeight(), y + height);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int columns = columns(metadata);
+        for (int row = top / regionSize; row <= (bottom - 1) / regionSize; row++) {
+            for (int column = left / regionSize; column <= (right - 1) / regionSize; column++) {
+                consumer.accept(row * columns + column);
+            }
+        }
+    }
+}
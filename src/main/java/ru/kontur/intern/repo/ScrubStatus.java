@@ -0,0 +1,27 @@
+package ru.kontur.intern.repo;
+
+/**
+ * Outcome of checking a stored image or pyramid level, see {@link ImageRepo#checkStored(String)}.
+ */
+public enum ScrubStatus {
+    /**
+     * Stored image matches the index
+     */
+    VALID,
+    /**
+     * Stored image is gone since it has been listed
+     */
+    MISSING,
+    /**
+     * Broken or missing pyramid levels are recreated black and have to be recomputed
+     */
+    REPAIRED,
+    /**
+     * Leftover of a failed create or delete is deleted
+     */
+    RECLAIMED,
+    /**
+     * Corrupt image is moved out of storage and the index
+     */
+    QUARANTINED
+}
@@ -0,0 +1,196 @@
+package ru.kontur.intern.repo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.exception.IllegalImageFormatException;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.storage.ImageStorage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Background worker which walks over every image and pyramid level in storage, one at a time, in passes
+ * started {@code interval} after the previous one ends. Every stored image is checked against the index by
+ * {@link ImageRepo#checkStored(String)}, then all of its pixels are read in bands under region read locks
+ * from the backing storage, bypassing the cache, so a corrupt image is quarantined and a corrupt level
+ * is recreated before a client stumbles upon it.
+ * At last leftovers of interrupted writes inside the image are reclaimed by {@link ImageRepo#compact(String)}.
+ * <p>
+ * The worker runs on a thread of the lowest priority and sleeps after every band to keep bytes it reads
+ * within {@code bytesPerSecond}, so it does not compete with requests for disk bandwidth.
+ * Every opened image is charged the size of its header.
+ */
+@Log4j2
+public class StorageScrubber implements Closeable {
+    /**
+     * Bytes of pixels read under region locks at once
+     */
+    private static final int BAND_BYTES = 1024 * 1024;
+
+    private final ImageRepo imageRepo;
+    private final ImageStorage storage;
+    private final PyramidUpdater pyramidUpdater;
+    private final long bytesPerSecond;
+    private final ScheduledExecutorService executor;
+    private final Map<ScrubStatus, Counter> images = new EnumMap<>(ScrubStatus.class);
+    private final Counter bytesRead;
+    private final Counter bytesReclaimed;
+    private final Counter passes;
+    private volatile int passSize;
+    private volatile int passPosition;
+
+    /**
+     * @param imageRepo      repository of stored images
+     * @param storage        storage listing images of the repository
+     * @param pyramidUpdater updater recomputing repaired levels
+     * @param bytesPerSecond limit of bytes read by the worker, positive
+     * @param interval       delay between passes, positive
+     * @param registry       registry of scrubbing meters
+     */
+    public StorageScrubber(ImageRepo imageRepo, ImageStorage storage, PyramidUpdater pyramidUpdater,
+                           long bytesPerSecond, Duration interval, MeterRegistry registry) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException(String.format("Scrubber rate must be positive: %s", bytesPerSecond));
+        }
+        if (interval.isZero() || interval.isNegative()) {
+            throw new IllegalArgumentException(String.format("Scrubber interval must be positive: %s", interval));
+        }
+        this.imageRepo = imageRepo;
+        this.storage = storage;
+        this.pyramidUpdater = pyramidUpdater;
+        this.bytesPerSecond = bytesPerSecond;
+        for (var status : ScrubStatus.values()) {
+            images.put(status, Counter.builder("chartographer.scrubber.images")
+                    .description("Stored images and pyramid levels checked by storage scrubber")
+                    .tag("status", status.name().toLowerCase())
+                    .register(registry));
+        }
+        bytesRead = Counter.builder("chartographer.scrubber.bytes")
+                .description("Bytes read by storage scrubber")
+                .baseUnit("bytes")
+                .tag("operation", "read")
+                .register(registry);
+        bytesReclaimed = Counter.builder("chartographer.scrubber.bytes")
+                .description("Bytes reclaimed by storage scrubber")
+                .baseUnit("bytes")
+                .tag("operation", "reclaimed")
+                .register(registry);
+        passes = Counter.builder("chartographer.scrubber.passes")
+                .description("Completed passes of storage scrubber over all stored images")
+                .register(registry);
+        Gauge.builder("chartographer.scrubber.progress", this,
+                        scrubber -> scrubber.passSize == 0 ? 1 : (double) scrubber.passPosition / scrubber.passSize)
+                .description("Part of stored images checked in the current pass")
+                .register(registry);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "storage-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::scheduledScrub, interval.toMillis(), interval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes a single pass over all images in storage on the calling thread.
+     */
+    public void scrub() throws IOException, InterruptedException {
+        List<String> ids = storage.list();
+        passSize = ids.size();
+        passPosition = 0;
+        for (String id : ids) {
+            try {
+                scrub(id);
+            } catch (RuntimeException e) {
+                log.error("Failed to scrub image {}: {}", id, e.getMessage());
+            }
+            passPosition++;
+        }
+        passes.increment();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scrub(String id) throws InterruptedException {
+        var status = imageRepo.checkStored(id);
+        throttle(BmpHeader.HEADER_SIZE);
+        if (status == ScrubStatus.VALID || status == ScrubStatus.REPAIRED) {
+            if (!readPixels(id)) {
+                status = imageRepo.quarantine(id);
+            }
+            long reclaimed = imageRepo.compact(id);
+            if (reclaimed > 0) {
+                bytesReclaimed.increment(reclaimed);
+                log.info("Reclaimed {} bytes of image {}", reclaimed, id);
+            }
+        }
+        if (status == ScrubStatus.REPAIRED) {
+            var size = imageRepo.getImageSize(Pyramid.baseId(id));
+            pyramidUpdater.invalidate(Pyramid.baseId(id), 0, 0, size.width, size.height);
+        }
+        images.get(status).increment();
+    }
+
+    /**
+     * Reads all pixels of the image in bands.
+     *
+     * @return whether the pixels are readable, an image deleted meanwhile is readable
+     */
+    private boolean readPixels(String id) throws InterruptedException {
+        try {
+            var size = imageRepo.getImageSize(id);
+            int bandRows = Math.max(1, BAND_BYTES / (size.width * BYTES_PER_PIXEL));
+            for (int top = 0; top < size.height; top += bandRows) {
+                long bytes = imageRepo.readStored(id, top, Math.min(bandRows, size.height - top));
+                bytesRead.increment(bytes);
+                throttle(bytes);
+            }
+            return true;
+        } catch (ImageNotFoundException e) {
+            return true;
+        } catch (IOException | UncheckedIOException | IllegalImageFormatException e) {
+            log.warn("Pixels of image {} can not be read: {}", id, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Sleeps for the time {@code bytes} take at the limit rate.
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+    private void scheduledScrub() {
+        try {
+            scrub();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.error("Storage scrub failed: {}", e.getMessage());
+        }
+    }
+}
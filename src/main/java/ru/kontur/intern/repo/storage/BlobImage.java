@@ -0,0 +1,227 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Image of {@link BlobImageStorage}. Like {@link CompressedTiledImage} only tiles of a single tile row are kept
+ * in memory: moving to another tile row uploads modified tiles and drops the fetched ones.
+ * <p>
+ * The first access to a tile fetches a single row of it, the next access outside of fetched rows fetches
+ * the rest of the tile in that direction. A fragment read top-down or bottom-up costs two ranged gets per tile
+ * and skips the rows of the tile on the other side of the fragment, a single row costs one get.
+ * A modified tile is fetched completely and uploaded as a whole, a tile which becomes black is deleted.
+ */
+class BlobImage implements StoredImage {
+    private final BlobStore store;
+    private final String prefix;
+    private final BmpHeader header;
+    private final int tileSize;
+    private final int partSize;
+    private final ByteBuffer blackTile;
+    /**
+     * Fetched tiles of the current tile row by column, {@code null} for black tiles missing in the store
+     */
+    private final Map<Integer, Tile> tiles = new HashMap<>();
+    private final Set<Integer> modified = new HashSet<>();
+    private int tileRow = -1;
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+    BlobImage(BlobStore store, String prefix, BmpHeader header, int tileSize, int partSize, ByteBuffer blackTile) {
+        this.store = store;
+        this.prefix = prefix;
+        this.header = header;
+        this.tileSize = tileSize;
+        this.partSize = partSize;
+        this.blackTile = blackTile;
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    @Override
+    public ByteBuffer row(int y, int x, int width) throws IOException {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        int firstTileX = x / tileSize;
+        int lastTileX = (x + width - 1) / tileSize;
+        if (width == 0 || firstTileX == lastTileX) {
+            return tileRow(getTile(firstTileX, tileY, y % tileSize, false), y % tileSize, x % tileSize, width);
+        }
+        if (rowBuffer.capacity() < width * BYTES_PER_PIXEL) {
+            rowBuffer = ByteBuffer.allocate(width * BYTES_PER_PIXEL);
+        }
+        rowBuffer.clear();
+        for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+            int start = Math.max(x, tileX * tileSize);
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            rowBuffer.put(tileRow(getTile(tileX, tileY, y % tileSize, false), y % tileSize, start % tileSize,
+                    end - start));
+        }
+        return rowBuffer.flip();
+    }
+
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        for (int start = x; start < x + width; ) {
+            int tileX = start / tileSize;
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            int srcOffset = offset + (start - x) * BYTES_PER_PIXEL;
+            int length = (end - start) * BYTES_PER_PIXEL;
+            Tile tile = getTile(tileX, tileY, y % tileSize, !isBlack(src, srcOffset, length));
+            if (tile != null) {
+                System.arraycopy(src, srcOffset, tile.pixels,
+                        ((y % tileSize) * tileSize + start % tileSize) * BYTES_PER_PIXEL, length);
+                modified.add(tileX);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Returns tile with {@code row} fetched or {@code null} if the tile is black and missing in the store.
+     *
+     * @param create whether missing tile should be allocated
+     */
+    private Tile getTile(int tileX, int tileY, int row, boolean create) throws IOException {
+        if (tileY != tileRow) {
+            flush();
+            tiles.clear();
+            tileRow = tileY;
+        }
+        Tile tile = tiles.get(tileX);
+        if (tile == null && !tiles.containsKey(tileX)) {
+            tile = new Tile(row, row);
+            try {
+                fetch(tileX, tile, row, row + 1);
+            } catch (NoSuchFileException e) {
+                tile = null;
+            }
+            tiles.put(tileX, tile);
+        } else if (tile != null && row < tile.from) {
+            fetch(tileX, tile, 0, tile.from);
+        } else if (tile != null && row >= tile.to) {
+            fetch(tileX, tile, tile.to, tileSize);
+        }
+        if (tile == null && create) {
+            tile = new Tile(0, tileSize);
+            tiles.put(tileX, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Fetches rows {@code [from, to)} of the tile adjacent to its fetched rows.
+     */
+    private void fetch(int tileX, Tile tile, int from, int to) throws IOException {
+        int rowBytes = tileSize * BYTES_PER_PIXEL;
+        store.get(tileKey(tileX, tileRow), (long) from * rowBytes, tile.pixels, from * rowBytes,
+                (to - from) * rowBytes);
+        tile.from = Math.min(tile.from, from);
+        tile.to = Math.max(tile.to, to);
+    }
+
+    /**
+     * Uploads modified tiles of the current tile row. An upload replaces the tile atomically,
+     * so a failure never leaves a partially written tile.
+     */
+    private void flush() throws IOException {
+        for (int tileX : modified) {
+            Tile tile = tiles.get(tileX);
+            //Rows outside of the written spans are uploaded as they are
+            if (tile.from > 0) {
+                fetch(tileX, tile, 0, tile.from);
+            }
+            if (tile.to < tileSize) {
+                fetch(tileX, tile, tile.to, tileSize);
+            }
+            String key = tileKey(tileX, tileRow);
+            if (isBlack(tile.pixels, 0, tile.pixels.length)) {
+                store.delete(key);
+                continue;
+            }
+            upload(key, tile.pixels);
+        }
+        modified.clear();
+    }
+
+    private void upload(String key, byte[] pixels) throws IOException {
+        var upload = store.upload(key);
+        try {
+            for (int offset = 0; offset < pixels.length; offset += partSize) {
+                upload.part(pixels, offset, Math.min(partSize, pixels.length - offset));
+            }
+            upload.complete();
+        } catch (IOException | RuntimeException e) {
+            try {
+                upload.abort();
+            } catch (IOException abortException) {
+                e.addSuppressed(abortException);
+            }
+            throw e;
+        }
+    }
+
+    private String tileKey(int tileX, int tileY) {
+        return String.format("%s%d-%d.tile", prefix, tileX, tileY);
+    }
+
+    private ByteBuffer tileRow(Tile tile, int row, int column, int width) {
+        int position = (row * tileSize + column) * BYTES_PER_PIXEL;
+        var buffer = tile == null ? blackTile.duplicate() : ByteBuffer.wrap(tile.pixels);
+        return buffer.position(position).limit(position + width * BYTES_PER_PIXEL).slice();
+    }
+
+    private void checkBounds(int y, int x, int width) {
+        if (y < 0 || y >= header.getHeight() || x < 0 || width < 0 || x + width > header.getWidth()) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+    }
+
+    private static boolean isBlack(byte[] src, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (src[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        tiles.clear();
+    }
+
+    /**
+     * Pixels of a tile with fetched rows {@code [from, to)}.
+     */
+    private class Tile {
+        private final byte[] pixels = new byte[tileSize * tileSize * BYTES_PER_PIXEL];
+        private int from;
+        private int to;
+
+        Tile(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
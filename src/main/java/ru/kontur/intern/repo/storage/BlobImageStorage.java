@@ -0,0 +1,107 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+import static ru.kontur.intern.bmp.BmpHeader.HEADER_SIZE;
+
+/**
+ * Stores images in a {@link BlobStore} laid out like {@link TiledImageStorage}: blob {@code <id>/header} holds
+ * BMP header of the image and blob {@code <id>/<tx>-<ty>.tile} raw top-down BGR rows of a square tile,
+ * missing tiles are black. Reads fetch only the rows of a tile they touch with ranged gets, modified tiles
+ * are uploaded whole in parts of at most {@code partSize} bytes, see {@link BlobImage}.
+ * <p>
+ * Images are not bound to the disk of the machine, the store may be shared by several instances.
+ */
+public class BlobImageStorage implements ImageStorage {
+    static final String HEADER_KEY = "header";
+    private static final String SEPARATOR = "/";
+
+    private final BlobStore store;
+    private final int tileSize;
+    private final int partSize;
+    private final ByteBuffer blackTile;
+
+    /**
+     * @param partSize size of upload parts, object stores usually require at least 5 MiB for all parts but the last
+     */
+    public BlobImageStorage(BlobStore store, int tileSize, int partSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException(String.format("Tile size must be positive: %s", tileSize));
+        }
+        if (partSize <= 0) {
+            throw new IllegalArgumentException(String.format("Part size must be positive: %s", partSize));
+        }
+        this.store = store;
+        this.tileSize = tileSize;
+        this.partSize = partSize;
+        this.blackTile = ByteBuffer.allocateDirect(tileSize * tileSize * BYTES_PER_PIXEL).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        byte[] header = BmpHeader.of(width, height).toByteArray();
+        var upload = store.upload(getPrefix(id) + HEADER_KEY);
+        upload.part(header, 0, header.length);
+        upload.complete();
+    }
+
+    @Override
+    public StoredImage open(String id, boolean writable) throws IOException {
+        return new BlobImage(store, getPrefix(id), readHeader(id), tileSize, partSize, blackTile);
+    }
+
+    /**
+     * Lists images by their header blobs.
+     */
+    @Override
+    public List<String> list() throws IOException {
+        return store.list("").stream()
+                .filter(key -> key.endsWith(SEPARATOR + HEADER_KEY))
+                .map(key -> key.substring(0, key.length() - SEPARATOR.length() - HEADER_KEY.length()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Deletes the header first, so the image is gone even if deleting its tiles fails.
+     */
+    @Override
+    public boolean delete(String id) throws IOException {
+        String prefix = getPrefix(id);
+        boolean existed = store.delete(prefix + HEADER_KEY);
+        for (String key : store.list(prefix)) {
+            store.delete(key);
+        }
+        return existed;
+    }
+
+    /**
+     * Nothing to force: a tile is durable once its upload is completed, which happens before the image is closed.
+     */
+    @Override
+    public void sync(String id) throws IOException {
+        readHeader(id);
+    }
+
+    private BmpHeader readHeader(String id) throws IOException {
+        String key = getPrefix(id) + HEADER_KEY;
+        byte[] header = new byte[HEADER_SIZE];
+        try {
+            store.get(key, 0, header, 0, header.length);
+        } catch (NoSuchFileException e) {
+            throw new ImageNotFoundException(key);
+        }
+        return BmpHeader.read(ByteBuffer.wrap(header));
+    }
+
+    private static String getPrefix(String id) {
+        return id + SEPARATOR;
+    }
+}
@@ -0,0 +1,63 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Object store with an S3-like contract: blobs are immutable and addressed by key, a blob is written by a multipart
+ * upload and becomes visible as a whole once the upload is completed, reads may fetch any byte range of a blob.
+ * Implementations must be thread-safe.
+ */
+public interface BlobStore {
+    /**
+     * Reads a byte range of a blob, like a GET with {@code Range: bytes=offset-(offset+length-1)}.
+     *
+     * @param key       blob key
+     * @param offset    index of the first byte in the blob
+     * @param dst       destination array
+     * @param dstOffset index of the first byte in {@code dst}
+     * @param length    number of bytes
+     * @throws java.nio.file.NoSuchFileException if there is no blob with {@code key}
+     * @throws java.io.EOFException              if the range is out of the blob
+     */
+    void get(String key, long offset, byte[] dst, int dstOffset, int length) throws IOException;
+
+    /**
+     * Starts a multipart upload, the blob is replaced on {@link Upload#complete()}.
+     *
+     * @param key blob key
+     */
+    Upload upload(String key) throws IOException;
+
+    /**
+     * @param prefix key prefix, empty for all blobs
+     * @return keys of blobs starting with {@code prefix}
+     */
+    List<String> list(String prefix) throws IOException;
+
+    /**
+     * @param key blob key
+     * @return whether the blob existed
+     */
+    boolean delete(String key) throws IOException;
+
+    /**
+     * Multipart upload in progress, must be either completed or aborted.
+     */
+    interface Upload {
+        /**
+         * Uploads the next part of the blob.
+         */
+        void part(byte[] src, int offset, int length) throws IOException;
+
+        /**
+         * Makes the blob of uploaded parts visible, replacing the previous one.
+         */
+        void complete() throws IOException;
+
+        /**
+         * Discards uploaded parts, the previous blob stays intact.
+         */
+        void abort() throws IOException;
+    }
+}
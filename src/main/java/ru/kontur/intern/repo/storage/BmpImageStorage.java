@@ -0,0 +1,98 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores every image as a single 24-bit BMP file {@code <id>.bmp}, rows are accessed through {@link MappedBmpImage}.
+ * New images are created as sparse files, so the filesystem allocates space only for written rows.
+ */
+public class BmpImageStorage implements ImageStorage {
+    private static final String SUFFIX = ".bmp";
+    private static final String QUARANTINE_DIRECTORY = "quarantine";
+
+    private final Path root;
+
+    public BmpImageStorage(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        var header = BmpHeader.of(width, height);
+        try (var channel = FileChannel.open(getImagePath(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header.toByteArray()));
+            //Writing the last byte extends the file without allocating blocks for the black pixel array
+            channel.write(ByteBuffer.allocate(1), header.getFileSize() - 1);
+        }
+    }
+
+    @Override
+    public StoredImage open(String id, boolean writable) throws IOException {
+        Path imagePath = getImagePath(id);
+        try {
+            return MappedBmpImage.open(imagePath, writable);
+        } catch (NoSuchFileException e) {
+            throw new ImageNotFoundException(imagePath.toString());
+        }
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .map(name -> name.substring(0, name.length() - SUFFIX.length()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        return Files.deleteIfExists(getImagePath(id));
+    }
+
+    /**
+     * Moves the BMP file into {@code quarantine/} directory of the root.
+     */
+    @Override
+    public boolean quarantine(String id) throws IOException {
+        Path quarantine = Files.createDirectories(root.resolve(QUARANTINE_DIRECTORY));
+        try {
+            Files.move(getImagePath(id), quarantine.resolve(id + SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forces the BMP file, pixels written through memory mappings are in the same page cache.
+     */
+    @Override
+    public void sync(String id) throws IOException {
+        Path imagePath = getImagePath(id);
+        try (var channel = FileChannel.open(imagePath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            throw new ImageNotFoundException(imagePath.toString());
+        }
+    }
+
+    private Path getImagePath(String id) {
+        return root.resolve(id + SUFFIX);
+    }
+}
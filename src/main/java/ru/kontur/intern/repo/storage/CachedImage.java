@@ -0,0 +1,101 @@
+package ru.kontur.intern.repo.storage;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Image of {@link CachingImageStorage}. Rows are served from cached blocks,
+ * the underlying image is opened only when a block has to be loaded.
+ */
+class CachedImage implements StoredImage {
+    private final CachingImageStorage cache;
+    @Getter
+    private final String id;
+    private final int width;
+    private final int height;
+    private StoredImage source;
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+    CachedImage(CachingImageStorage cache, String id, int width, int height) {
+        this.cache = cache;
+        this.id = id;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public ByteBuffer row(int y, int x, int width) throws IOException {
+        checkBounds(y, x, width);
+        int blockSize = cache.getBlockSize();
+        int firstBlockX = x / blockSize;
+        int lastBlockX = (x + width - 1) / blockSize;
+        if (width == 0 || firstBlockX == lastBlockX) {
+            return blockRow(cache.getBlock(this, firstBlockX, y / blockSize), y % blockSize, x % blockSize, width);
+        }
+        if (rowBuffer.capacity() < width * BYTES_PER_PIXEL) {
+            rowBuffer = ByteBuffer.allocate(width * BYTES_PER_PIXEL);
+        }
+        rowBuffer.clear();
+        for (int blockX = firstBlockX; blockX <= lastBlockX; blockX++) {
+            int start = Math.max(x, blockX * blockSize);
+            int end = Math.min(x + width, (blockX + 1) * blockSize);
+            rowBuffer.put(blockRow(cache.getBlock(this, blockX, y / blockSize), y % blockSize, start % blockSize, end - start));
+        }
+        return rowBuffer.flip();
+    }
+
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException {
+        checkBounds(y, x, width);
+        int blockSize = cache.getBlockSize();
+        for (int start = x; start < x + width; ) {
+            int blockX = start / blockSize;
+            int end = Math.min(x + width, (blockX + 1) * blockSize);
+            cache.writeBlock(this, blockX, y / blockSize, y % blockSize, start % blockSize,
+                    src, offset + (start - x) * BYTES_PER_PIXEL, end - start);
+            start = end;
+        }
+    }
+
+    /**
+     * Underlying image used to load blocks, opened on first miss.
+     */
+    StoredImage getSource() throws IOException {
+        if (source == null) {
+            source = cache.getDelegate().open(id, false);
+        }
+        return source;
+    }
+
+    private ByteBuffer blockRow(CachingImageStorage.Block block, int row, int column, int width) {
+        int position = (row * block.width + column) * BYTES_PER_PIXEL;
+        return ByteBuffer.wrap(block.data, position, width * BYTES_PER_PIXEL).slice();
+    }
+
+    private void checkBounds(int y, int x, int width) {
+        if (y < 0 || y >= height || x < 0 || width < 0 || x + width > this.width) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (source != null) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package ru.kontur.intern.repo.storage;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Keeps recently used square blocks of decoded pixels in memory in front of another storage.
+ * Blocks are evicted in least recently used order once their total size exceeds the byte budget.
+ * Writes go to cached blocks only and reach the underlying storage on eviction, periodic flush and close.
+ * <p>
+ * Blocks must be aligned with region locks of {@link ru.kontur.intern.repo.ImageRepo}:
+ * a block is modified only by the operation holding the write lock of its region.
+ * Pixels are copied into a block and it is marked dirty under the monitor once the block is checked to be still cached,
+ * so a block evicted by another region's miss in the meantime is loaded again instead of losing the write.
+ */
+@Log4j2
+public class CachingImageStorage implements ImageStorage {
+    private static final int MAX_CACHED_SIZES = 100_000;
+
+    private final ImageStorage delegate;
+    private final int blockSize;
+    private final long maxBytes;
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<BlockKey, Block> writingBack = new HashMap<>();
+    /**
+     * Number of write backs holding the image opened in the underlying storage
+     */
+    private final Map<String, Integer> openedForWriteBack = new HashMap<>();
+    private final Set<String> compacting = new HashSet<>();
+    private final Map<String, Dimension> sizes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Dimension> eldest) {
+            return size() > MAX_CACHED_SIZES;
+        }
+    };
+    private final ScheduledExecutorService flusher;
+    private long cachedBytes;
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingImageStorage(ImageStorage delegate, int blockSize, long maxBytes, Duration flushInterval) {
+        this(delegate, blockSize, maxBytes, flushInterval, Metrics.globalRegistry);
+    }
+
+    /**
+     * @param delegate      underlying storage
+     * @param blockSize     side of a cached block, the same as region lock size
+     * @param maxBytes      budget of cached pixel data
+     * @param flushInterval period of writing dirty blocks back to {@code delegate}
+     * @param registry      registry of cache meters
+     */
+    public CachingImageStorage(ImageStorage delegate, int blockSize, long maxBytes, Duration flushInterval,
+                               MeterRegistry registry) {
+        this.delegate = delegate;
+        this.blockSize = blockSize;
+        this.maxBytes = maxBytes;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "image-cache-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::scheduledFlush,
+                flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        FunctionCounter.builder("chartographer.cache.requests", this, CachingImageStorage::getHitCount)
+                .description("Pixel block cache lookups")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("chartographer.cache.requests", this, CachingImageStorage::getMissCount)
+                .description("Pixel block cache lookups")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("chartographer.cache.evictions", this, CachingImageStorage::getEvictionCount)
+                .description("Pixel blocks evicted from cache")
+                .register(registry);
+        Gauge.builder("chartographer.cache.size", this, CachingImageStorage::getCachedBytes)
+                .description("Pixel bytes held by cache")
+                .baseUnit("bytes")
+                .tag("state", "cached")
+                .register(registry);
+        Gauge.builder("chartographer.cache.size", this, CachingImageStorage::getDirtyBytes)
+                .description("Pixel bytes held by cache")
+                .baseUnit("bytes")
+                .tag("state", "dirty")
+                .register(registry);
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        delegate.create(id, width, height);
+        synchronized (this) {
+            sizes.put(id, new Dimension(width, height));
+        }
+    }
+
+    @Override
+    public StoredImage open(String id, boolean writable) throws IOException {
+        Dimension size;
+        synchronized (this) {
+            size = sizes.get(id);
+        }
+        if (size == null) {
+            try (var image = delegate.open(id, false)) {
+                size = new Dimension(image.getWidth(), image.getHeight());
+            }
+            synchronized (this) {
+                sizes.put(id, size);
+            }
+        }
+        return new CachedImage(this, id, size.width, size.height);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return delegate.list();
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        invalidate(id);
+        return delegate.delete(id);
+    }
+
+    @Override
+    public boolean quarantine(String id) throws IOException {
+        invalidate(id);
+        return delegate.quarantine(id);
+    }
+
+    /**
+     * Compacts the image in the underlying storage while no write back holds it opened.
+     * Write backs already writing the image are awaited, new ones wait until compaction ends.
+     */
+    @Override
+    public long compact(String id) throws IOException {
+        synchronized (this) {
+            awaitCompaction(id);
+            compacting.add(id);
+            boolean interrupted = false;
+            while (openedForWriteBack.containsKey(id)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            return delegate.compact(id);
+        } finally {
+            synchronized (this) {
+                compacting.remove(id);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes dirty blocks of the image back and forces the underlying storage.
+     * Write back of its blocks already started by other threads is awaited first.
+     */
+    @Override
+    public void sync(String id) throws IOException {
+        List<Block> dirty;
+        synchronized (this) {
+            awaitWriteBack(id);
+            dirty = blocks.values().stream()
+                    .filter(block -> block.key.id.equals(id) && block.dirty.get())
+                    .collect(Collectors.toList());
+            dirty.forEach(block -> writingBack.put(block.key, block));
+        }
+        if (!writeBack(dirty)) {
+            throw new IOException(String.format("Failed to write back blocks of image %s", id));
+        }
+        delegate.sync(id);
+    }
+
+    /**
+     * Writes all dirty blocks back to the underlying storage, blocks stay cached.
+     */
+    public void flush() {
+        List<Block> dirty;
+        synchronized (this) {
+            dirty = blocks.values().stream()
+                    .filter(block -> block.dirty.get() && !writingBack.containsKey(block.key))
+                    .collect(Collectors.toList());
+            dirty.forEach(block -> writingBack.put(block.key, block));
+        }
+        writeBack(dirty);
+    }
+
+    @Override
+    public ImageStorage getBackingStorage() {
+        return delegate.getBackingStorage();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        flush();
+        delegate.close();
+    }
+
+    ImageStorage getDelegate() {
+        return delegate;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Returns cached block, loading it from the underlying storage on miss.
+     */
+    Block getBlock(CachedImage image, int blockX, int blockY) throws IOException {
+        var key = new BlockKey(image.getId(), blockX, blockY);
+        Block cached;
+        List<Block> evicted = List.of();
+        synchronized (this) {
+            cached = blocks.get(key);
+            if (cached == null && (cached = writingBack.get(key)) != null) {
+                //Evicted block is being written back, reuse it instead of reading outdated pixels
+                evicted = insert(cached);
+            }
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            writeBack(evicted);
+            return cached;
+        }
+        misses.incrementAndGet();
+        var loaded = load(image, key);
+        synchronized (this) {
+            var block = blocks.get(key);
+            if (block != null) {
+                return block;
+            }
+            evicted = insert(loaded);
+        }
+        writeBack(evicted);
+        return loaded;
+    }
+
+    /**
+     * Copies {@code pixels} pixels into a row of cached block, loading it on miss, and marks the block dirty.
+     */
+    void writeBlock(CachedImage image, int blockX, int blockY, int row, int column, byte[] src, int offset, int pixels)
+            throws IOException {
+        while (true) {
+            var block = getBlock(image, blockX, blockY);
+            synchronized (this) {
+                if (blocks.get(block.key) == block) {
+                    System.arraycopy(src, offset, block.data, (row * block.width + column) * BYTES_PER_PIXEL,
+                            pixels * BYTES_PER_PIXEL);
+                    markDirty(block);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void markDirty(Block block) {
+        if (block.dirty.compareAndSet(false, true)) {
+            dirtyBytes.addAndGet(block.data.length);
+        }
+    }
+
+    private Block load(CachedImage image, BlockKey key) throws IOException {
+        int x = key.blockX * blockSize;
+        int y = key.blockY * blockSize;
+        var block = new Block(key, Math.min(blockSize, image.getWidth() - x), Math.min(blockSize, image.getHeight() - y));
+        var source = image.getSource();
+        for (int row = 0; row < block.height; row++) {
+            source.readRow(y + row, x, block.width, block.data, row * block.width * BYTES_PER_PIXEL);
+        }
+        return block;
+    }
+
+    /**
+     * Puts block into cache and evicts least recently used blocks over budget.
+     *
+     * @return evicted dirty blocks, they must be written back by the caller
+     */
+    private List<Block> insert(Block block) {
+        List<Block> evicted = new ArrayList<>();
+        blocks.put(block.key, block);
+        cachedBytes += block.data.length;
+        var iterator = blocks.values().iterator();
+        while (cachedBytes > maxBytes && blocks.size() > 1) {
+            var eldest = iterator.next();
+            iterator.remove();
+            cachedBytes -= eldest.data.length;
+            evictions.incrementAndGet();
+            if (eldest.dirty.get() && !writingBack.containsKey(eldest.key)) {
+                writingBack.put(eldest.key, eldest);
+                evicted.add(eldest);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Writes blocks registered in {@code writingBack} to the underlying storage and unregisters them.
+     * A block modified during write back stays dirty and gets written again later,
+     * right away if it has been evicted in the meantime.
+     *
+     * @return whether all blocks have been written, failed blocks are dirty again
+     */
+    private boolean writeBack(List<Block> dirty) {
+        boolean written = true;
+        while (!dirty.isEmpty()) {
+            List<Block> evicted = new ArrayList<>();
+            var byImage = dirty.stream().collect(Collectors.groupingBy(block -> block.key.id));
+            for (var entry : byImage.entrySet()) {
+                synchronized (this) {
+                    awaitCompaction(entry.getKey());
+                    openedForWriteBack.merge(entry.getKey(), 1, Integer::sum);
+                }
+                try (var image = delegate.open(entry.getKey(), true)) {
+                    for (Block block : entry.getValue()) {
+                        if (block.dirty.compareAndSet(true, false)) {
+                            dirtyBytes.addAndGet(-block.data.length);
+                        }
+                        int x = block.key.blockX * blockSize;
+                        int y = block.key.blockY * blockSize;
+                        for (int row = 0; row < block.height; row++) {
+                            image.writeRow(y + row, x, block.width, block.data, row * block.width * BYTES_PER_PIXEL);
+                        }
+                    }
+                } catch (ImageNotFoundException e) {
+                    log.debug("Dropping blocks of deleted image {}", entry.getKey());
+                    for (Block block : entry.getValue()) {
+                        if (block.dirty.compareAndSet(true, false)) {
+                            dirtyBytes.addAndGet(-block.data.length);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.error("Failed to write back blocks of image {}: {}", entry.getKey(), e.getMessage());
+                    restore(entry.getValue());
+                    written = false;
+                } finally {
+                    synchronized (this) {
+                        for (Block block : entry.getValue()) {
+                            writingBack.remove(block.key, block);
+                            if (block.dirty.get() && blocks.get(block.key) != block) {
+                                writingBack.put(block.key, block);
+                                evicted.add(block);
+                            }
+                        }
+                        openedForWriteBack.computeIfPresent(entry.getKey(), (id, count) -> count > 1 ? count - 1 : null);
+                        notifyAll();
+                    }
+                }
+            }
+            dirty = evicted;
+        }
+        return written;
+    }
+
+    /**
+     * Returns blocks which failed to be written back into cache, so their pixels are not lost.
+     */
+    private synchronized void restore(List<Block> failed) {
+        for (Block block : failed) {
+            markDirty(block);
+            if (!blocks.containsKey(block.key)) {
+                blocks.put(block.key, block);
+                cachedBytes += block.data.length;
+            }
+        }
+    }
+
+    /**
+     * Drops all blocks of the image without writing them and waits for write back of its blocks in progress.
+     */
+    private synchronized void invalidate(String id) {
+        var iterator = blocks.values().iterator();
+        while (iterator.hasNext()) {
+            var block = iterator.next();
+            if (block.key.id.equals(id)) {
+                iterator.remove();
+                cachedBytes -= block.data.length;
+                if (block.dirty.compareAndSet(true, false)) {
+                    dirtyBytes.addAndGet(-block.data.length);
+                }
+            }
+        }
+        sizes.remove(id);
+        awaitWriteBack(id);
+    }
+
+    /**
+     * Waits for write back of blocks of the image in progress, the caller must hold the monitor.
+     */
+    private void awaitWriteBack(String id) {
+        boolean interrupted = false;
+        while (writingBack.keySet().stream().anyMatch(key -> key.id.equals(id))) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until compaction of the image ends, the caller must hold the monitor.
+     */
+    private void awaitCompaction(String id) {
+        boolean interrupted = false;
+        while (compacting.contains(id)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+            log.debug("Image cache: {} bytes cached, {} bytes dirty, {} hits, {} misses, {} evictions",
+                    getCachedBytes(), getDirtyBytes(), getHitCount(), getMissCount(), getEvictionCount());
+        } catch (RuntimeException e) {
+            log.error("Image cache flush failed: {}", e.getMessage());
+        }
+    }
+
+    @Value
+    static class BlockKey {
+        String id;
+        int blockX;
+        int blockY;
+    }
+
+    static class Block {
+        final BlockKey key;
+        final int width;
+        final int height;
+        final byte[] data;
+        final AtomicBoolean dirty = new AtomicBoolean();
+
+        Block(BlockKey key, int width, int height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.data = new byte[width * height * BYTES_PER_PIXEL];
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Image of {@link TiledImageStorage} with compressed tiles. Tiles are decoded on first access and only tiles of
+ * a single tile row are kept in memory: rows are read and written in order, so moving to another tile row
+ * encodes modified tiles and drops the decoded ones. A tile which becomes black is removed from disk.
+ */
+class CompressedTiledImage implements StoredImage {
+    private final Path directory;
+    private final BmpHeader header;
+    private final int tileSize;
+    private final TileCodec codec;
+    private final ByteBuffer blackTile;
+    /**
+     * Decoded tiles of the current tile row by column, {@code null} for black tiles missing on disk
+     */
+    private final Map<Integer, byte[]> tiles = new HashMap<>();
+    private final Set<Integer> modified = new HashSet<>();
+    private int tileRow = -1;
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+    CompressedTiledImage(Path directory, BmpHeader header, int tileSize, TileCodec codec, ByteBuffer blackTile) {
+        this.directory = directory;
+        this.header = header;
+        this.tileSize = tileSize;
+        this.codec = codec;
+        this.blackTile = blackTile;
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    @Override
+    public ByteBuffer row(int y, int x, int width) throws IOException {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        int firstTileX = x / tileSize;
+        int lastTileX = (x + width - 1) / tileSize;
+        if (width == 0 || firstTileX == lastTileX) {
+            return tileRow(getTile(firstTileX, tileY, false), y % tileSize, x % tileSize, width);
+        }
+        if (rowBuffer.capacity() < width * BYTES_PER_PIXEL) {
+            rowBuffer = ByteBuffer.allocate(width * BYTES_PER_PIXEL);
+        }
+        rowBuffer.clear();
+        for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+            int start = Math.max(x, tileX * tileSize);
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            rowBuffer.put(tileRow(getTile(tileX, tileY, false), y % tileSize, start % tileSize, end - start));
+        }
+        return rowBuffer.flip();
+    }
+
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        for (int start = x; start < x + width; ) {
+            int tileX = start / tileSize;
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            int srcOffset = offset + (start - x) * BYTES_PER_PIXEL;
+            int length = (end - start) * BYTES_PER_PIXEL;
+            byte[] tile = getTile(tileX, tileY, !isBlack(src, srcOffset, length));
+            if (tile != null) {
+                System.arraycopy(src, srcOffset, tile, ((y % tileSize) * tileSize + start % tileSize) * BYTES_PER_PIXEL,
+                        length);
+                modified.add(tileX);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Returns decoded tile or {@code null} if the tile is black and missing on disk.
+     *
+     * @param create whether missing tile should be allocated
+     */
+    private byte[] getTile(int tileX, int tileY, boolean create) throws IOException {
+        if (tileY != tileRow) {
+            flush();
+            tiles.clear();
+            tileRow = tileY;
+        }
+        byte[] tile = tiles.get(tileX);
+        if (tile == null && !tiles.containsKey(tileX)) {
+            tile = readTile(tileX, tileY);
+            tiles.put(tileX, tile);
+        }
+        if (tile == null && create) {
+            tile = new byte[tileSize * tileSize * BYTES_PER_PIXEL];
+            tiles.put(tileX, tile);
+        }
+        return tile;
+    }
+
+    private byte[] readTile(int tileX, int tileY) throws IOException {
+        byte[] encoded;
+        try {
+            encoded = Files.readAllBytes(tilePath(tileX, tileY));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        byte[] tile = new byte[tileSize * tileSize * BYTES_PER_PIXEL];
+        codec.decode(encoded, tile);
+        return tile;
+    }
+
+    /**
+     * Encodes modified tiles of the current tile row. Tiles are replaced atomically,
+     * so a failure never leaves a partially written tile.
+     */
+    private void flush() throws IOException {
+        for (int tileX : modified) {
+            byte[] tile = tiles.get(tileX);
+            Path path = tilePath(tileX, tileRow);
+            if (isBlack(tile, 0, tile.length)) {
+                Files.deleteIfExists(path);
+                continue;
+            }
+            Path temporary = path.resolveSibling(path.getFileName() + TiledImageStorage.TEMPORARY_SUFFIX);
+            Files.write(temporary, codec.encode(tile));
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        modified.clear();
+    }
+
+    private Path tilePath(int tileX, int tileY) {
+        return directory.resolve(String.format("%d-%d.%s", tileX, tileY, codec.getName()));
+    }
+
+    private ByteBuffer tileRow(byte[] tile, int row, int column, int width) {
+        int position = (row * tileSize + column) * BYTES_PER_PIXEL;
+        var buffer = tile == null ? blackTile.duplicate() : ByteBuffer.wrap(tile);
+        return buffer.position(position).limit(position + width * BYTES_PER_PIXEL).slice();
+    }
+
+    private void checkBounds(int y, int x, int width) {
+        if (y < 0 || y >= header.getHeight() || x < 0 || width < 0 || x + width > header.getWidth()) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+    }
+
+    private static boolean isBlack(byte[] src, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (src[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        tiles.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses tiles with deflate. Level 1 already shrinks black and flat areas by two orders of magnitude,
+ * higher levels mostly cost time on noisy tiles.
+ */
+public class DeflateTileCodec implements TileCodec {
+    static final String NAME = "deflate";
+    static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    private final int level;
+
+    /**
+     * @param level deflate compression level, 0-9
+     */
+    public DeflateTileCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(byte[] pixels) {
+        var deflater = new Deflater(level);
+        try {
+            deflater.setInput(pixels);
+            deflater.finish();
+            //Incompressible data grows by a few bytes per 16 KB block
+            byte[] output = new byte[pixels.length + pixels.length / 1000 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decode(byte[] encoded, byte[] pixels) throws IOException {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(encoded);
+            int length = 0;
+            while (length < pixels.length && !inflater.finished()) {
+                int inflated = inflater.inflate(pixels, length, pixels.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != pixels.length || !inflater.finished()) {
+                throw new IOException(String.format("Corrupted tile: %s of %s bytes decoded", length, pixels.length));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted tile", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
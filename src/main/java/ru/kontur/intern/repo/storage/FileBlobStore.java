@@ -0,0 +1,107 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@link BlobStore} in a local directory: a blob is a file at the path of its key. Uploads are written into
+ * a temporary file which is atomically moved in place on completion. Stands in for an object store
+ * in tests and single machine deployments.
+ */
+public class FileBlobStore implements BlobStore {
+    private static final String UPLOAD_SUFFIX = ".upload";
+
+    private final Path root;
+
+    public FileBlobStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public void get(String key, long offset, byte[] dst, int dstOffset, int length) throws IOException {
+        try (var channel = FileChannel.open(getPath(key), StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.wrap(dst, dstOffset, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position() - dstOffset) < 0) {
+                    throw new EOFException(String.format("Range %s+%s is out of blob %s", offset, length, key));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Upload upload(String key) throws IOException {
+        Path path = getPath(key);
+        Files.createDirectories(path.getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + UPLOAD_SUFFIX);
+        OutputStream output = Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW);
+        return new Upload() {
+            @Override
+            public void part(byte[] src, int offset, int length) throws IOException {
+                output.write(src, offset, length);
+            }
+
+            @Override
+            public void complete() throws IOException {
+                output.close();
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            @Override
+            public void abort() throws IOException {
+                output.close();
+                Files.deleteIfExists(temporary);
+            }
+        };
+    }
+
+    /**
+     * Lists completed blobs, files of uploads in progress are skipped.
+     */
+    @Override
+    public List<String> list(String prefix) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"))
+                    .filter(key -> key.startsWith(prefix) && !key.endsWith(UPLOAD_SUFFIX))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Deletes the blob file and parent directories left empty.
+     */
+    @Override
+    public boolean delete(String key) throws IOException {
+        Path path = getPath(key);
+        if (!Files.deleteIfExists(path)) {
+            return false;
+        }
+        try {
+            for (Path parent = path.getParent(); !parent.equals(root); parent = parent.getParent()) {
+                Files.delete(parent);
+            }
+        } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+            //Other blobs share the directory or it has been removed concurrently
+        }
+        return true;
+    }
+
+    private Path getPath(String key) {
+        return root.resolve(key);
+    }
+}
@@ -0,0 +1,86 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Persistent layout of images. Implementations are not synchronized, callers coordinate access to a single image.
+ */
+public interface ImageStorage extends Closeable {
+    /**
+     * Creates black image of specified size.
+     *
+     * @param id     identifier of new image
+     * @param width  image width
+     * @param height image height
+     */
+    void create(String id, int width, int height) throws IOException;
+
+    /**
+     * Opens stored image for row level access.
+     *
+     * @param id       image identifier
+     * @param writable whether rows of image will be modified
+     * @throws ru.kontur.intern.exception.ImageNotFoundException if image can not be found by {@code id}
+     */
+    StoredImage open(String id, boolean writable) throws IOException;
+
+    /**
+     * Lists identifiers of all stored images, including pyramid levels, without reading their pixels.
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * Removes image with all its data.
+     *
+     * @param id image identifier
+     * @return whether image existed
+     */
+    boolean delete(String id) throws IOException;
+
+    /**
+     * Moves image out of stored images, so it is neither listed nor opened, keeping its data for inspection
+     * where the storage has a place for it. Storages which have not delete the image.
+     *
+     * @param id image identifier
+     * @return whether image existed
+     */
+    default boolean quarantine(String id) throws IOException {
+        return delete(id);
+    }
+
+    /**
+     * Reclaims space taken by the image besides its pixels, such as leftovers of interrupted writes.
+     * Must not be called while the image is opened.
+     *
+     * @param id image identifier
+     * @return number of reclaimed bytes
+     */
+    default long compact(String id) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Forces pixels written into the image so far to durable storage.
+     * May run concurrently with writes into the image, their pixels are not necessarily forced.
+     *
+     * @param id image identifier
+     * @throws ru.kontur.intern.exception.ImageNotFoundException if image can not be found by {@code id}
+     */
+    void sync(String id) throws IOException;
+
+    /**
+     * Returns the storage keeping pixels of this one, under caches and journals, where they can be verified.
+     */
+    default ImageStorage getBackingStorage() {
+        return this;
+    }
+
+    /**
+     * Releases resources and persists buffered data, called on application shutdown.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
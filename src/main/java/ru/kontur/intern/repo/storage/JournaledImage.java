@@ -0,0 +1,153 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+import static ru.kontur.intern.repo.storage.JournalingImageStorage.COMMIT;
+import static ru.kontur.intern.repo.storage.JournalingImageStorage.COMMIT_SIZE;
+import static ru.kontur.intern.repo.storage.JournalingImageStorage.ROW;
+import static ru.kontur.intern.repo.storage.JournalingImageStorage.ROW_HEADER_SIZE;
+
+/**
+ * Image of {@link JournalingImageStorage} opened for writing, a single journal transaction.
+ * Written rows are buffered and appended to the journal segment, on close the transaction is committed,
+ * forced and its rows are read back from the segment into the underlying image.
+ * Reads do not see rows written through this image before it is closed.
+ * An aborted transaction is never committed, its appended rows are dropped by replay.
+ */
+class JournaledImage implements StoredImage {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final JournalingImageStorage storage;
+    private final JournalingImageStorage.Segment segment;
+    private final StoredImage image;
+    private final long transaction;
+    private ByteBuffer buffer;
+    private long[] rows = new long[64];
+    private int rowCount;
+    private int appendedRowCount;
+    private boolean failed;
+    private boolean aborted;
+
+    JournaledImage(JournalingImageStorage storage, JournalingImageStorage.Segment segment, StoredImage image,
+                   long transaction) {
+        this.storage = storage;
+        this.segment = segment;
+        this.image = image;
+        this.transaction = transaction;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public ByteBuffer row(int y, int x, int width) throws IOException {
+        return image.row(y, x, width);
+    }
+
+    /**
+     * Appends the row to the transaction, bounds are checked now, so a committed row can always be applied.
+     */
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException {
+        if (y < 0 || y >= getHeight() || x < 0 || width < 0 || x + width > getWidth()) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+        int length = width * BYTES_PER_PIXEL;
+        reserve(ROW_HEADER_SIZE + length + Integer.BYTES);
+        if (rowCount == rows.length) {
+            rows = Arrays.copyOf(rows, 2 * rowCount);
+        }
+        int start = buffer.position();
+        rows[rowCount++] = start;
+        buffer.put(ROW).putLong(transaction).putInt(y).putInt(x).putInt(width).put(src, offset, length);
+        buffer.putInt(JournalingImageStorage.crc(buffer.array(), start, buffer.position() - start));
+    }
+
+    @Override
+    public boolean isTransactional() {
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Commits and applies written rows, then closes the underlying image.
+     * Nothing is committed if the transaction is aborted or rows have failed to be appended.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowCount > 0 && !failed && !aborted) {
+                reserve(COMMIT_SIZE);
+                int start = buffer.position();
+                buffer.put(COMMIT).putLong(transaction);
+                buffer.putInt(JournalingImageStorage.crc(buffer.array(), start, buffer.position() - start));
+                long end = append() + buffer.limit();
+                segment.force(end);
+                apply();
+            }
+        } finally {
+            try {
+                image.close();
+            } finally {
+                storage.release(segment);
+            }
+        }
+    }
+
+    /**
+     * Makes room for a record of {@code size} bytes, appending buffered records if needed.
+     */
+    private void reserve(int size) throws IOException {
+        if (buffer != null && buffer.remaining() < size) {
+            append();
+            buffer.clear();
+        }
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, size));
+        }
+    }
+
+    /**
+     * Appends buffered records to the segment and turns buffered row offsets into segment positions.
+     *
+     * @return segment position of the appended records
+     */
+    private long append() throws IOException {
+        long position;
+        try {
+            position = segment.append(buffer.flip());
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+        for (int i = appendedRowCount; i < rowCount; i++) {
+            rows[i] += position;
+        }
+        appendedRowCount = rowCount;
+        return position;
+    }
+
+    private void apply() throws IOException {
+        var record = new JournalingImageStorage.Record();
+        for (int i = 0; i < rowCount; i++) {
+            if (!record.read(segment.channel, rows[i])) {
+                throw new IOException(String.format("Journaled row is lost at %s of %s", rows[i], segment.path));
+            }
+            record.apply(image);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package ru.kontur.intern.repo.storage;
+
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Write-ahead journal in front of another storage. Rows written into an image opened for writing are appended
+ * to the journal of the image, and reach the underlying storage only after the journal is forced on close,
+ * so a crash never leaves a partially written fragment behind. Concurrent commits share a single fsync.
+ * <p>
+ * Journal of an image is a sequence of segment files {@code <id>.<seq>.journal} of row and commit records,
+ * every record ends with its CRC32. A background checkpoint seals the current segment, forces the underlying storage
+ * once all writes of the segment are applied and deletes the segment. Segments left by a crash are replayed on startup:
+ * committed writes are applied in commit order, uncommitted writes and a torn tail are dropped.
+ */
+@Log4j2
+public class JournalingImageStorage implements ImageStorage {
+    static final String SUFFIX = ".journal";
+    static final byte ROW = 1;
+    static final byte COMMIT = 2;
+    static final int ROW_HEADER_SIZE = 1 + Long.BYTES + 3 * Integer.BYTES;
+    static final int COMMIT_SIZE = 1 + Long.BYTES + Integer.BYTES;
+
+    private final ImageStorage delegate;
+    private final Path directory;
+    private final Map<String, Journal> journals = new HashMap<>();
+    private final AtomicLong segments;
+    private final AtomicLong transactions = new AtomicLong();
+    private final ScheduledExecutorService checkpointer;
+
+    /**
+     * Replays journal segments left in {@code directory} into {@code delegate} and starts background checkpoints.
+     *
+     * @param delegate           underlying storage
+     * @param directory          directory of journal segments
+     * @param checkpointInterval period of moving journaled writes into {@code delegate}
+     */
+    public JournalingImageStorage(ImageStorage delegate, Path directory, Duration checkpointInterval)
+            throws IOException {
+        this.delegate = delegate;
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.segments = new AtomicLong(replay());
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "image-journal-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::scheduledCheckpoint,
+                checkpointInterval.toMillis(), checkpointInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        delegate.create(id, width, height);
+    }
+
+    /**
+     * Opens image for writing as a journal transaction committed on close, unless it is aborted.
+     * Reads of the returned image see pixels committed before it has been opened.
+     */
+    @Override
+    public StoredImage open(String id, boolean writable) throws IOException {
+        var image = delegate.open(id, writable);
+        if (!writable) {
+            return image;
+        }
+        try {
+            return new JournaledImage(this, acquireSegment(id), image, transactions.incrementAndGet());
+        } catch (IOException | RuntimeException e) {
+            image.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return delegate.list();
+    }
+
+    /**
+     * Drops the journal of the image before deleting it, so its writes are never replayed into a new image
+     * with the same id.
+     */
+    @Override
+    public boolean delete(String id) throws IOException {
+        dropJournal(id);
+        return delegate.delete(id);
+    }
+
+    /**
+     * Drops the journal of the image like {@link #delete(String)}, writes of a quarantined image are not replayed.
+     */
+    @Override
+    public boolean quarantine(String id) throws IOException {
+        dropJournal(id);
+        return delegate.quarantine(id);
+    }
+
+    @Override
+    public long compact(String id) throws IOException {
+        return delegate.compact(id);
+    }
+
+    @Override
+    public void sync(String id) throws IOException {
+        delegate.sync(id);
+    }
+
+    /**
+     * Moves writes of every journal into the underlying storage and deletes segments which are no longer needed.
+     * Segments with writes still in progress are sealed and deleted by a later checkpoint.
+     */
+    public void checkpoint() {
+        Map<String, List<Segment>> applied = new HashMap<>();
+        synchronized (this) {
+            for (var entry : journals.entrySet()) {
+                var journal = entry.getValue();
+                if (journal.current != null) {
+                    journal.sealed.add(journal.current);
+                    journal.current = null;
+                }
+                var ready = journal.sealed.stream().filter(segment -> segment.writers == 0).collect(Collectors.toList());
+                if (!ready.isEmpty()) {
+                    applied.put(entry.getKey(), ready);
+                }
+            }
+        }
+        for (var entry : applied.entrySet()) {
+            String id = entry.getKey();
+            try {
+                delegate.sync(id);
+            } catch (ImageNotFoundException e) {
+                log.debug("Dropping journal of deleted image {}", id);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to checkpoint journal of image {}: {}", id, e.getMessage());
+                continue;
+            }
+            synchronized (this) {
+                var journal = journals.get(id);
+                if (journal != null) {
+                    journal.sealed.removeAll(entry.getValue());
+                    if (journal.sealed.isEmpty() && journal.current == null) {
+                        journals.remove(id);
+                    }
+                }
+            }
+            for (Segment segment : entry.getValue()) {
+                try {
+                    segment.delete();
+                } catch (IOException e) {
+                    log.error("Failed to delete journal segment {}: {}", segment.path, e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public ImageStorage getBackingStorage() {
+        return delegate.getBackingStorage();
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            if (!checkpointer.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.error("Journal checkpoint is not finished in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        delegate.close();
+    }
+
+    private void dropJournal(String id) throws IOException {
+        Journal journal;
+        synchronized (this) {
+            journal = journals.remove(id);
+        }
+        if (journal != null) {
+            for (Segment segment : journal.all()) {
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the current segment of the image journal registering a writer of it, creates the segment if needed.
+     */
+    private synchronized Segment acquireSegment(String id) throws IOException {
+        var journal = journals.computeIfAbsent(id, key -> new Journal());
+        if (journal.current == null) {
+            journal.current = new Segment(directory.resolve(id + "." + segments.incrementAndGet() + SUFFIX));
+        }
+        journal.current.writers++;
+        return journal.current;
+    }
+
+    /**
+     * Unregisters a writer of the segment after its writes are committed and applied.
+     */
+    synchronized void release(Segment segment) {
+        segment.writers--;
+    }
+
+    private void scheduledCheckpoint() {
+        try {
+            checkpoint();
+        } catch (RuntimeException e) {
+            log.error("Journal checkpoint failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Applies committed writes of all segments in {@code directory} and deletes them.
+     *
+     * @return the last segment number found
+     */
+    private long replay() throws IOException {
+        Map<String, TreeMap<Long, Path>> found = new HashMap<>();
+        long last = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                String stem = name.substring(0, name.length() - SUFFIX.length());
+                int separator = stem.lastIndexOf('.');
+                long number = Long.parseLong(stem.substring(separator + 1));
+                found.computeIfAbsent(stem.substring(0, separator), id -> new TreeMap<>()).put(number, file);
+                last = Math.max(last, number);
+            }
+        }
+        for (var entry : found.entrySet()) {
+            String id = entry.getKey();
+            try {
+                int replayed = 0;
+                for (Path segment : entry.getValue().values()) {
+                    replayed += replay(id, segment);
+                }
+                delegate.sync(id);
+                log.info("Replayed {} journaled writes of image {}", replayed, id);
+            } catch (ImageNotFoundException e) {
+                log.debug("Dropping journal of deleted image {}", id);
+            }
+            for (Path segment : entry.getValue().values()) {
+                Files.delete(segment);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Applies committed transactions of a segment in commit order.
+     *
+     * @return number of applied transactions
+     */
+    private int replay(String id, Path path) throws IOException {
+        Map<Long, List<Long>> uncommitted = new HashMap<>();
+        int applied = 0;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var record = new Record();
+            long position = 0;
+            while (record.read(channel, position)) {
+                if (record.type == ROW) {
+                    uncommitted.computeIfAbsent(record.transaction, key -> new ArrayList<>()).add(position);
+                } else {
+                    var rows = uncommitted.remove(record.transaction);
+                    if (rows != null) {
+                        apply(channel, rows, id);
+                        applied++;
+                    }
+                }
+                position += record.size();
+            }
+            if (position < channel.size()) {
+                log.warn("Dropping torn tail of journal segment {} at {} of {} bytes", path, position, channel.size());
+            }
+        }
+        return applied;
+    }
+
+    private void apply(FileChannel channel, List<Long> rows, String id) throws IOException {
+        var record = new Record();
+        try (var image = delegate.open(id, true)) {
+            for (long position : rows) {
+                if (!record.read(channel, position)) {
+                    throw new IOException(String.format("Journaled row of image %s is lost at %s", id, position));
+                }
+                record.apply(image);
+            }
+        }
+    }
+
+    static int crc(byte[] bytes, int offset, int length) {
+        var crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Segments of a single image journal, guarded by the storage monitor.
+     */
+    private static class Journal {
+        final List<Segment> sealed = new ArrayList<>();
+        Segment current;
+
+        List<Segment> all() {
+            var all = new ArrayList<>(sealed);
+            if (current != null) {
+                all.add(current);
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Append-only journal file. Records are appended under the segment monitor, so a record is never interleaved
+     * with another one, and forced in groups: a writer waiting for its commit gets it forced together with
+     * records appended by other writers in the meantime.
+     */
+    static class Segment {
+        final Path path;
+        final FileChannel channel;
+        private final Object forceLock = new Object();
+        private long written;
+        private long forced;
+        /**
+         * Writers which may still append or apply records, guarded by the storage monitor.
+         */
+        int writers;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Appends whole records, a failed append is discarded and overwritten by the next one.
+         *
+         * @return position of the first appended byte
+         */
+        synchronized long append(ByteBuffer records) throws IOException {
+            long position = written;
+            try {
+                while (records.hasRemaining()) {
+                    written += channel.write(records, written);
+                }
+            } catch (IOException e) {
+                written = position;
+                throw e;
+            }
+            return position;
+        }
+
+        /**
+         * Forces the segment at least up to {@code end}.
+         */
+        void force(long end) throws IOException {
+            synchronized (forceLock) {
+                if (forced >= end) {
+                    return;
+                }
+                long target;
+                synchronized (this) {
+                    target = written;
+                }
+                channel.force(false);
+                forced = target;
+            }
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Record of a segment read back: {@code [type][transaction]} followed by {@code [y][x][width][pixels]}
+     * for rows, and CRC32 of the preceding bytes.
+     */
+    static class Record {
+        private final ByteBuffer header = ByteBuffer.allocate(ROW_HEADER_SIZE);
+        private byte[] data = new byte[0];
+        byte type;
+        long transaction;
+        int y;
+        int x;
+        int width;
+
+        /**
+         * @return whether a valid record has been read, {@code false} at the end of segment or at a torn record
+         */
+        boolean read(FileChannel channel, long position) throws IOException {
+            if (!readFully(channel, header.clear().limit(COMMIT_SIZE - Integer.BYTES), position)) {
+                return false;
+            }
+            type = header.get(0);
+            transaction = header.getLong(1);
+            if (type == ROW) {
+                if (!readFully(channel, header.limit(ROW_HEADER_SIZE), position + header.position())) {
+                    return false;
+                }
+                y = header.getInt(COMMIT_SIZE - Integer.BYTES);
+                x = header.getInt(COMMIT_SIZE);
+                width = header.getInt(COMMIT_SIZE + Integer.BYTES);
+                if (width < 0 || width > (Integer.MAX_VALUE - Integer.BYTES) / BYTES_PER_PIXEL) {
+                    return false;
+                }
+            } else if (type == COMMIT) {
+                width = 0;
+            } else {
+                return false;
+            }
+            int length = width * BYTES_PER_PIXEL + Integer.BYTES;
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            if (!readFully(channel, ByteBuffer.wrap(data, 0, length), position + header.limit())) {
+                return false;
+            }
+            var crc = new CRC32();
+            crc.update(header.array(), 0, header.limit());
+            crc.update(data, 0, length - Integer.BYTES);
+            return (int) crc.getValue() == ByteBuffer.wrap(data, length - Integer.BYTES, Integer.BYTES).getInt();
+        }
+
+        long size() {
+            return (type == ROW ? ROW_HEADER_SIZE + (long) width * BYTES_PER_PIXEL : COMMIT_SIZE - Integer.BYTES)
+                    + Integer.BYTES;
+        }
+
+        void apply(StoredImage image) throws IOException {
+            image.writeRow(y, x, width, data, 0);
+        }
+
+        private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return false;
+                }
+                position += read;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Row level access to a 24-bit BMP file through memory mapped bands of scanlines.
+ * Only rows touched by an operation get mapped, so its cost depends on the fragment size, not on the image size.
+ */
+public class MappedBmpImage implements StoredImage {
+    private static final long MAX_BAND_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final BmpHeader header;
+    private final int stride;
+    private final int bandRows;
+    private MappedByteBuffer band;
+    private int bandFirstRow;
+    private int bandRowCount;
+
+    private MappedBmpImage(FileChannel channel, FileChannel.MapMode mode, BmpHeader header) {
+        this.channel = channel;
+        this.mode = mode;
+        this.header = header;
+        this.stride = header.getStride();
+        this.bandRows = (int) Math.max(1, MAX_BAND_SIZE / stride);
+    }
+
+    /**
+     * Opens BMP file and reads its header.
+     *
+     * @param path     path to BMP file
+     * @param writable whether rows can be modified
+     * @throws java.nio.file.NoSuchFileException if file does not exist
+     * @throws IOException                       if file is shorter than declared in header
+     */
+    public static MappedBmpImage open(Path path, boolean writable) throws IOException {
+        var channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            var buffer = ByteBuffer.allocate(BmpHeader.HEADER_SIZE);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException(String.format("Unexpected end of BMP header in %s", path));
+                }
+            }
+            var header = BmpHeader.read(buffer.flip());
+            if (channel.size() < header.getFileSize()) {
+                throw new EOFException(String.format("BMP file %s is truncated: expected %s bytes, actual %s",
+                        path, header.getFileSize(), channel.size()));
+            }
+            return new MappedBmpImage(channel,
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, header);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    /**
+     * Returns a view of pixels of a single row in BGR order, the view is backed by the mapped file.
+     */
+    @Override
+    public ByteBuffer row(int y, int x, int width) throws IOException {
+        if (y < 0 || y >= header.getHeight() || x < 0 || width < 0 || x + width > header.getWidth()) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+        int storedRow = header.getStoredRow(y);
+        if (band == null || storedRow < bandFirstRow || storedRow >= bandFirstRow + bandRowCount) {
+            mapBand(storedRow);
+        }
+        int position = (storedRow - bandFirstRow) * stride + x * BYTES_PER_PIXEL;
+        return band.duplicate().position(position).limit(position + width * BYTES_PER_PIXEL).slice();
+    }
+
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException {
+        row(y, x, width).put(src, offset, width * BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Maps a band of rows containing {@code storedRow}. Band grows in the direction of traversal,
+     * so both top-down and bottom-up scans remap once per band.
+     */
+    private void mapBand(int storedRow) throws IOException {
+        int first = band != null && storedRow < bandFirstRow
+                ? Math.max(0, storedRow - bandRows + 1)
+                : storedRow;
+        int count = Math.min(bandRows, header.getHeight() - first);
+        band = channel.map(mode, header.getDataOffset() + (long) first * stride, (long) count * stride);
+        bandFirstRow = first;
+        bandRowCount = count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        band = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,124 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Image of {@link MemoryImageStorage}. Tiles are shared by all open instances of the image,
+ * writers of disjoint spans of a tile write into disjoint bytes of the same buffer.
+ */
+class MemoryImage implements StoredImage {
+    private final Tiles tiles;
+    private final int tileSize;
+    private final ByteBuffer blackTile;
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+    MemoryImage(Tiles tiles, int tileSize, ByteBuffer blackTile) {
+        this.tiles = tiles;
+        this.tileSize = tileSize;
+        this.blackTile = blackTile;
+    }
+
+    @Override
+    public int getWidth() {
+        return tiles.header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return tiles.header.getHeight();
+    }
+
+    @Override
+    public ByteBuffer row(int y, int x, int width) {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        int firstTileX = x / tileSize;
+        int lastTileX = (x + width - 1) / tileSize;
+        if (width == 0 || firstTileX == lastTileX) {
+            return tileRow(getTile(firstTileX, tileY, false), y % tileSize, x % tileSize, width);
+        }
+        if (rowBuffer.capacity() < width * BYTES_PER_PIXEL) {
+            rowBuffer = ByteBuffer.allocate(width * BYTES_PER_PIXEL);
+        }
+        rowBuffer.clear();
+        for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+            int start = Math.max(x, tileX * tileSize);
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            rowBuffer.put(tileRow(getTile(tileX, tileY, false), y % tileSize, start % tileSize, end - start));
+        }
+        return rowBuffer.flip();
+    }
+
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        for (int start = x; start < x + width; ) {
+            int tileX = start / tileSize;
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            int srcOffset = offset + (start - x) * BYTES_PER_PIXEL;
+            int length = (end - start) * BYTES_PER_PIXEL;
+            var tile = getTile(tileX, tileY, !isBlack(src, srcOffset, length));
+            if (tile != blackTile) {
+                tileRow(tile, y % tileSize, start % tileSize, end - start).put(src, srcOffset, length);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Returns tile buffer or shared black tile if the tile has never been written.
+     *
+     * @param create whether missing tile should be allocated
+     */
+    private ByteBuffer getTile(int tileX, int tileY, boolean create) {
+        long key = (long) tileX << 32 | tileY;
+        if (create) {
+            return tiles.tiles.computeIfAbsent(key,
+                    missing -> ByteBuffer.allocateDirect(tileSize * tileSize * BYTES_PER_PIXEL));
+        }
+        return tiles.tiles.getOrDefault(key, blackTile);
+    }
+
+    private ByteBuffer tileRow(ByteBuffer tile, int row, int column, int width) {
+        int position = (row * tileSize + column) * BYTES_PER_PIXEL;
+        return tile.duplicate().position(position).limit(position + width * BYTES_PER_PIXEL).slice();
+    }
+
+    private void checkBounds(int y, int x, int width) {
+        if (y < 0 || y >= getHeight() || x < 0 || width < 0 || x + width > getWidth()) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+    }
+
+    private static boolean isBlack(byte[] src, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (src[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Size and allocated tiles of a stored image.
+     */
+    static class Tiles {
+        private final BmpHeader header;
+        private final Map<Long, ByteBuffer> tiles = new ConcurrentHashMap<>();
+
+        Tiles(BmpHeader header) {
+            this.header = header;
+        }
+    }
+}
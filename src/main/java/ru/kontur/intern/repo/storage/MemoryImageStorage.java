@@ -0,0 +1,78 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Keeps images in memory outside of the heap, nothing survives a restart. Pixels are split into square tiles
+ * of direct buffers allocated on the first non-black write, so like {@link TiledImageStorage} creating an image
+ * costs the same regardless of its size and a large sparse image takes memory only for its written tiles.
+ * Serves tests and deployments where images are a disposable cache.
+ */
+public class MemoryImageStorage implements ImageStorage {
+    private final int tileSize;
+    private final ByteBuffer blackTile;
+    private final Map<String, MemoryImage.Tiles> images = new ConcurrentHashMap<>();
+
+    public MemoryImageStorage(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException(String.format("Tile size must be positive: %s", tileSize));
+        }
+        this.tileSize = tileSize;
+        this.blackTile = ByteBuffer.allocateDirect(tileSize * tileSize * BYTES_PER_PIXEL).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        if (images.putIfAbsent(id, new MemoryImage.Tiles(BmpHeader.of(width, height))) != null) {
+            throw new FileAlreadyExistsException(id);
+        }
+    }
+
+    @Override
+    public StoredImage open(String id, boolean writable) {
+        var tiles = images.get(id);
+        if (tiles == null) {
+            throw new ImageNotFoundException(id);
+        }
+        return new MemoryImage(tiles, tileSize, blackTile);
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(images.keySet());
+    }
+
+    /**
+     * Drops tiles of the image, their memory is released once open images of it are collected.
+     */
+    @Override
+    public boolean delete(String id) {
+        return images.remove(id) != null;
+    }
+
+    /**
+     * Nothing to force, images are never durable.
+     */
+    @Override
+    public void sync(String id) {
+        if (!images.containsKey(id)) {
+            throw new ImageNotFoundException(id);
+        }
+    }
+
+    @Override
+    public void close() {
+        images.clear();
+    }
+}
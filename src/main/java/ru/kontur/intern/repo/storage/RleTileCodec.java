@@ -0,0 +1,94 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Run-length encoding of BGR pixels in PackBits style: a control byte {@code n >= 0} is followed by
+ * {@code n + 1} literal pixels, {@code n < 0} by a single pixel repeated {@code 1 - n} times.
+ * Much faster than deflate, shrinks black and flat areas about a hundred times,
+ * noise grows by less than one percent.
+ */
+public class RleTileCodec implements TileCodec {
+    static final String NAME = "rle";
+    private static final int MAX_RUN = 128;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(byte[] pixels) {
+        int count = pixels.length / BYTES_PER_PIXEL;
+        var output = new ByteArrayOutputStream(pixels.length / 16);
+        int literalStart = 0;
+        int i = 0;
+        while (i < count) {
+            int run = 1;
+            while (i + run < count && run < MAX_RUN && samePixel(pixels, i, i + run)) {
+                run++;
+            }
+            if (run > 1) {
+                writeLiterals(output, pixels, literalStart, i);
+                output.write(1 - run);
+                output.write(pixels, i * BYTES_PER_PIXEL, BYTES_PER_PIXEL);
+                i += run;
+                literalStart = i;
+            } else {
+                i++;
+                if (i - literalStart == MAX_RUN) {
+                    writeLiterals(output, pixels, literalStart, i);
+                    literalStart = i;
+                }
+            }
+        }
+        writeLiterals(output, pixels, literalStart, count);
+        return output.toByteArray();
+    }
+
+    @Override
+    public void decode(byte[] encoded, byte[] pixels) throws IOException {
+        int position = 0;
+        int length = 0;
+        while (position < encoded.length) {
+            int control = encoded[position++];
+            int bytes = (control >= 0 ? control + 1 : 1) * BYTES_PER_PIXEL;
+            int total = (control >= 0 ? control + 1 : 1 - control) * BYTES_PER_PIXEL;
+            if (position + bytes > encoded.length || length + total > pixels.length) {
+                throw new IOException("Corrupted tile: run out of bounds");
+            }
+            if (control >= 0) {
+                System.arraycopy(encoded, position, pixels, length, bytes);
+            } else {
+                for (int j = 0; j < total; j += BYTES_PER_PIXEL) {
+                    System.arraycopy(encoded, position, pixels, length + j, BYTES_PER_PIXEL);
+                }
+            }
+            position += bytes;
+            length += total;
+        }
+        if (length != pixels.length) {
+            throw new IOException(String.format("Corrupted tile: %s of %s bytes decoded", length, pixels.length));
+        }
+    }
+
+    private static boolean samePixel(byte[] pixels, int a, int b) {
+        int i = a * BYTES_PER_PIXEL;
+        int j = b * BYTES_PER_PIXEL;
+        return pixels[i] == pixels[j] && pixels[i + 1] == pixels[j + 1] && pixels[i + 2] == pixels[j + 2];
+    }
+
+    /**
+     * Writes pixels {@code [from, to)} as literal runs.
+     */
+    private static void writeLiterals(ByteArrayOutputStream output, byte[] pixels, int from, int to) {
+        for (int start = from; start < to; start += MAX_RUN) {
+            int length = Math.min(MAX_RUN, to - start);
+            output.write(length - 1);
+            output.write(pixels, start * BYTES_PER_PIXEL, length * BYTES_PER_PIXEL);
+        }
+    }
+}
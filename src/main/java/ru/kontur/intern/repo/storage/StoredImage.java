@@ -0,0 +1,65 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Opened image with row level access to its pixels. Pixels are 24-bit BGR, rows are counted from the top.
+ * Instances are not thread-safe and must be closed after use.
+ */
+public interface StoredImage extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns pixels of a single row span in BGR order.
+     * The buffer may be a view of storage and stays valid only until the next call on this image.
+     *
+     * @param y     row index
+     * @param x     first column
+     * @param width number of pixels
+     */
+    ByteBuffer row(int y, int x, int width) throws IOException;
+
+    /**
+     * Overwrites pixels of a single row span with BGR bytes from {@code src}.
+     *
+     * @param y      row index
+     * @param x      first column
+     * @param width  number of pixels
+     * @param src    source of BGR bytes
+     * @param offset index of the first byte in {@code src}
+     */
+    void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException;
+
+    /**
+     * Copies pixels of a single row span into {@code dst} in BGR order.
+     */
+    default void readRow(int y, int x, int width, byte[] dst, int offset) throws IOException {
+        row(y, x, width).get(dst, offset, width * 3);
+    }
+
+    /**
+     * Copies pixels of a single row span into {@code dst} at its position in BGR order, advancing the position.
+     */
+    default void readRow(int y, int x, int width, ByteBuffer dst) throws IOException {
+        dst.put(row(y, x, width));
+    }
+
+    /**
+     * Whether rows written through this image are applied all at once on close,
+     * so a failed write can be discarded with {@link #abort()}.
+     */
+    default boolean isTransactional() {
+        return false;
+    }
+
+    /**
+     * Discards rows written through a transactional image, nothing is applied on close.
+     * Rows written through other images are already applied and stay.
+     */
+    default void abort() throws IOException {
+    }
+}
@@ -0,0 +1,41 @@
+package ru.kontur.intern.repo.storage;
+
+import java.io.IOException;
+
+/**
+ * Compression of tile pixels of {@link TiledImageStorage}. Tiles are encoded independently,
+ * so a fragment still touches only the tiles it intersects. Implementations must be thread-safe.
+ */
+public interface TileCodec {
+    /**
+     * @return name of the codec, used as the extension of tile files
+     */
+    String getName();
+
+    /**
+     * @param pixels raw BGR rows of a tile
+     * @return encoded tile
+     */
+    byte[] encode(byte[] pixels);
+
+    /**
+     * @param encoded encoded tile
+     * @param pixels  destination for raw BGR rows, its length is the exact size of the tile
+     * @throws IOException if {@code encoded} is corrupted
+     */
+    void decode(byte[] encoded, byte[] pixels) throws IOException;
+
+    /**
+     * @param name {@code deflate} or {@code rle}
+     */
+    static TileCodec of(String name) {
+        switch (name) {
+            case DeflateTileCodec.NAME:
+                return new DeflateTileCodec(DeflateTileCodec.DEFAULT_LEVEL);
+            case RleTileCodec.NAME:
+                return new RleTileCodec();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown tile codec: %s", name));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Image of {@link TiledImageStorage}. Tiles are memory mapped on first access and stay mapped until the image is closed.
+ */
+class TiledImage implements StoredImage {
+    private final Path directory;
+    private final BmpHeader header;
+    private final int tileSize;
+    private final ByteBuffer blackTile;
+    private final boolean writable;
+    private final Map<Long, ByteBuffer> tiles = new HashMap<>();
+    private ByteBuffer rowBuffer = ByteBuffer.allocate(0);
+
+    TiledImage(Path directory, BmpHeader header, int tileSize, ByteBuffer blackTile, boolean writable) {
+        this.directory = directory;
+        this.header = header;
+        this.tileSize = tileSize;
+        this.blackTile = blackTile;
+        this.writable = writable;
+    }
+
+    @Override
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    @Override
+    public ByteBuffer row(int y, int x, int width) throws IOException {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        int firstTileX = x / tileSize;
+        int lastTileX = (x + width - 1) / tileSize;
+        if (width == 0 || firstTileX == lastTileX) {
+            return tileRow(getTile(firstTileX, tileY, false), y % tileSize, x % tileSize, width);
+        }
+        if (rowBuffer.capacity() < width * BYTES_PER_PIXEL) {
+            rowBuffer = ByteBuffer.allocate(width * BYTES_PER_PIXEL);
+        }
+        rowBuffer.clear();
+        for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+            int start = Math.max(x, tileX * tileSize);
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            rowBuffer.put(tileRow(getTile(tileX, tileY, false), y % tileSize, start % tileSize, end - start));
+        }
+        return rowBuffer.flip();
+    }
+
+    @Override
+    public void writeRow(int y, int x, int width, byte[] src, int offset) throws IOException {
+        checkBounds(y, x, width);
+        int tileY = y / tileSize;
+        for (int start = x; start < x + width; ) {
+            int tileX = start / tileSize;
+            int end = Math.min(x + width, (tileX + 1) * tileSize);
+            int srcOffset = offset + (start - x) * BYTES_PER_PIXEL;
+            int length = (end - start) * BYTES_PER_PIXEL;
+            var tile = getTile(tileX, tileY, !isBlack(src, srcOffset, length));
+            if (tile != blackTile) {
+                tileRow(tile, y % tileSize, start % tileSize, end - start).put(src, srcOffset, length);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Returns mapped tile or shared black tile if the tile has never been written.
+     *
+     * @param create whether missing tile should be allocated
+     */
+    private ByteBuffer getTile(int tileX, int tileY, boolean create) throws IOException {
+        long key = (long) tileX << 32 | tileY;
+        var tile = tiles.get(key);
+        if (tile != null && (tile != blackTile || !create)) {
+            return tile;
+        }
+        Path tilePath = directory.resolve(String.format("%d-%d.tile", tileX, tileY));
+        if (create || Files.exists(tilePath)) {
+            tile = mapTile(tilePath);
+        } else {
+            tile = blackTile;
+        }
+        tiles.put(key, tile);
+        return tile;
+    }
+
+    private ByteBuffer mapTile(Path tilePath) throws IOException {
+        long tileBytes = (long) tileSize * tileSize * BYTES_PER_PIXEL;
+        if (writable) {
+            try (var channel = FileChannel.open(tilePath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, tileBytes);
+            }
+        }
+        try (var channel = FileChannel.open(tilePath, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, tileBytes);
+        }
+    }
+
+    private ByteBuffer tileRow(ByteBuffer tile, int row, int column, int width) {
+        int position = (row * tileSize + column) * BYTES_PER_PIXEL;
+        return tile.duplicate().position(position).limit(position + width * BYTES_PER_PIXEL).slice();
+    }
+
+    private void checkBounds(int y, int x, int width) {
+        if (y < 0 || y >= header.getHeight() || x < 0 || width < 0 || x + width > header.getWidth()) {
+            throw new IndexOutOfBoundsException(String.format("Row span out of image: y=%s, x=%s, width=%s", y, x, width));
+        }
+    }
+
+    private static boolean isBlack(byte[] src, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (src[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        tiles.clear();
+    }
+}
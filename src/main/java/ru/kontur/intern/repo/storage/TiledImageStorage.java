@@ -0,0 +1,177 @@
+package ru.kontur.intern.repo.storage;
+
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.exception.ImageNotFoundException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static ru.kontur.intern.bmp.BmpHeader.BYTES_PER_PIXEL;
+
+/**
+ * Stores every image as a directory {@code <id>/} with BMP header of the image and square tiles of its pixels.
+ * Tile {@code <tx>-<ty>.tile} holds raw top-down BGR rows and is created on the first non-black write into it,
+ * missing tiles are black. Creating an image costs the same regardless of its size,
+ * reads and writes touch only the tiles intersecting a fragment.
+ * <p>
+ * With a {@link TileCodec} tiles are stored compressed as {@code <tx>-<ty>.<codec>} files instead,
+ * which shrinks images with large black or flat areas by an order of magnitude at the cost of decoding on access.
+ */
+public class TiledImageStorage implements ImageStorage {
+    static final String HEADER_FILE = "header";
+    /**
+     * Suffix of encoded tiles written before they replace the tile
+     */
+    static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String QUARANTINE_DIRECTORY = "quarantine";
+
+    private final Path root;
+    private final int tileSize;
+    private final TileCodec codec;
+    private final ByteBuffer blackTile;
+
+    public TiledImageStorage(Path root, int tileSize) throws IOException {
+        this(root, tileSize, null);
+    }
+
+    /**
+     * @param codec codec of tile files, {@code null} for raw memory mapped tiles
+     */
+    public TiledImageStorage(Path root, int tileSize, TileCodec codec) throws IOException {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException(String.format("Tile size must be positive: %s", tileSize));
+        }
+        this.root = root;
+        this.tileSize = tileSize;
+        this.codec = codec;
+        this.blackTile = ByteBuffer.allocateDirect(tileSize * tileSize * BYTES_PER_PIXEL).asReadOnlyBuffer();
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        Path directory = Files.createDirectory(getImageDirectory(id));
+        Files.write(directory.resolve(HEADER_FILE), BmpHeader.of(width, height).toByteArray());
+    }
+
+    @Override
+    public StoredImage open(String id, boolean writable) throws IOException {
+        Path directory = getImageDirectory(id);
+        try {
+            var header = BmpHeader.read(ByteBuffer.wrap(Files.readAllBytes(directory.resolve(HEADER_FILE))));
+            if (codec != null) {
+                return new CompressedTiledImage(directory, header, tileSize, codec, blackTile);
+            }
+            return new TiledImage(directory, header, tileSize, blackTile, writable);
+        } catch (NoSuchFileException e) {
+            throw new ImageNotFoundException(directory.toString());
+        }
+    }
+
+    /**
+     * Lists image directories, other directories in the root have no header.
+     */
+    @Override
+    public List<String> list() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(directory -> Files.exists(directory.resolve(HEADER_FILE)))
+                    .map(directory -> directory.getFileName().toString())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        Path directory = getImageDirectory(id);
+        if (!Files.exists(directory)) {
+            return false;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the image directory into {@code quarantine/} directory of the root, which has no header and is not listed.
+     */
+    @Override
+    public boolean quarantine(String id) throws IOException {
+        Path quarantine = Files.createDirectories(root.resolve(QUARANTINE_DIRECTORY));
+        Path target = quarantine.resolve(id);
+        if (!Files.exists(getImageDirectory(id))) {
+            return false;
+        }
+        if (Files.exists(target)) {
+            //Left by an earlier quarantine of the same id
+            try (Stream<Path> files = Files.walk(target)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.move(getImageDirectory(id), target);
+        return true;
+    }
+
+    /**
+     * Deletes encoded tiles left by writes interrupted before they replaced the tile.
+     */
+    @Override
+    public long compact(String id) throws IOException {
+        List<Path> leftovers;
+        try (Stream<Path> files = Files.list(getImageDirectory(id))) {
+            leftovers = files.filter(file -> file.getFileName().toString().endsWith(TEMPORARY_SUFFIX))
+                    .collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            throw new ImageNotFoundException(getImageDirectory(id).toString());
+        }
+        long reclaimed = 0;
+        for (Path file : leftovers) {
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                reclaimed += size;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Forces every tile file of the image and its directory, so renamed compressed tiles are durable as well.
+     */
+    @Override
+    public void sync(String id) throws IOException {
+        Path directory = getImageDirectory(id);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            throw new ImageNotFoundException(directory.toString());
+        }
+        for (Path file : files) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                //Black tile deleted or temporary file renamed by a concurrent write
+            }
+        }
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path getImageDirectory(String id) {
+        return root.resolve(id);
+    }
+}
@@ -0,0 +1,220 @@
+package ru.kontur.intern.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.exception.AdmissionRejectedException;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits heavy requests by their estimated cost in bytes of pixels they move. Two limits apply:
+ * a token bucket of every client, refilled at {@code clientBytesPerSecond} up to {@code clientBurstBytes},
+ * so a single client can not take the whole server, and a budget of bytes of all admitted requests in flight,
+ * so the server is not overcommitted when many clients come at once.
+ * <p>
+ * A request which does not fit waits for at most {@code maxWait}, then it is rejected with the time after which
+ * a retry is likely to be admitted. A request costing more than a limit is charged the limit,
+ * so it is admitted once the bucket is full or nothing else is in flight.
+ * Buckets are kept for a bounded number of recently seen clients.
+ */
+@Log4j2
+public class AdmissionControl {
+    private static final int MAX_CLIENTS = 10_000;
+
+    private final long maxInFlightBytes;
+    private final long clientBytesPerSecond;
+    private final long clientBurstBytes;
+    private final long maxWaitNanos;
+    private final Map<String, TokenBucket> clients = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+    private final Timer wait;
+    private final Counter clientRejections;
+    private final Counter overloadRejections;
+    /**
+     * Guards bytes in flight. A lock instead of the monitor, so requests waiting for the budget
+     * do not pin carrier threads when requests run on virtual threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long inFlightBytes;
+
+    /**
+     * @param maxInFlightBytes     limit of bytes of all admitted requests
+     * @param clientBytesPerSecond refill rate of client buckets
+     * @param clientBurstBytes     capacity of client buckets
+     * @param maxWait              longest time a request waits to be admitted
+     * @param registry             registry of admission meters
+     */
+    public AdmissionControl(long maxInFlightBytes, long clientBytesPerSecond, long clientBurstBytes,
+                            Duration maxWait, MeterRegistry registry) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.clientBytesPerSecond = clientBytesPerSecond;
+        this.clientBurstBytes = clientBurstBytes;
+        this.maxWaitNanos = maxWait.toNanos();
+        wait = Timer.builder("chartographer.admission.wait")
+                .description("Time requests wait to be admitted, rejected requests included")
+                .publishPercentileHistogram()
+                .register(registry);
+        clientRejections = rejections(registry, "client");
+        overloadRejections = rejections(registry, "overload");
+        Gauge.builder("chartographer.admission.in-flight", this, AdmissionControl::getInFlightBytes)
+                .description("Estimated bytes of admitted requests in flight")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Waits until the request fits into the bucket of the client and the budget of bytes in flight.
+     *
+     * @param client address or other identity of the client
+     * @param bytes  estimated cost of the request
+     * @return permit which must be closed once the response is written
+     * @throws AdmissionRejectedException if the request does not fit within the wait time
+     */
+    public Permit admit(String client, long bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        long clientCost = Math.min(bytes, clientBurstBytes);
+        TokenBucket bucket;
+        synchronized (clients) {
+            bucket = clients.computeIfAbsent(client, key -> new TokenBucket(start));
+        }
+        long delay = bucket.reserve(clientCost, start);
+        if (delay > maxWaitNanos) {
+            clientRejections.increment();
+            wait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw new AdmissionRejectedException(String.format(
+                    "Client %s exceeds its rate: Requested bytes=%s, Rate=%s bytes/s", client, bytes,
+                    clientBytesPerSecond), seconds(delay));
+        }
+        boolean admitted = false;
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+            var permit = acquire(bytes, start + maxWaitNanos);
+            admitted = true;
+            return permit;
+        } finally {
+            //Tokens of a request which is not served are given back
+            if (!admitted) {
+                bucket.refund(clientCost);
+            }
+            wait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public long getInFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit acquire(long bytes, long deadline) throws InterruptedException {
+        long cost = Math.min(bytes, maxInFlightBytes);
+        lock.lock();
+        try {
+            while (inFlightBytes + cost > maxInFlightBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    overloadRejections.increment();
+                    log.debug("Rejecting request of {} bytes, {} bytes are in flight", bytes, inFlightBytes);
+                    throw new AdmissionRejectedException(String.format(
+                            "Server is overloaded: Requested bytes=%s, Bytes in flight=%s, Limit=%s", bytes,
+                            inFlightBytes, maxInFlightBytes), seconds(maxWaitNanos));
+                }
+                released.awaitNanos(remaining);
+            }
+            inFlightBytes += cost;
+            return new Permit(cost);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long cost) {
+        lock.lock();
+        try {
+            inFlightBytes -= cost;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long seconds(long nanos) {
+        return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static Counter rejections(MeterRegistry registry, String reason) {
+        return Counter.builder("chartographer.admission.rejected")
+                .description("Requests rejected by admission control")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    /**
+     * Bytes of admitted request counted in flight until the permit is closed.
+     */
+    public final class Permit implements AutoCloseable {
+        private long cost;
+
+        private Permit(long cost) {
+            this.cost = cost;
+        }
+
+        /**
+         * Releases bytes of the request, repeated calls do nothing.
+         */
+        @Override
+        public void close() {
+            if (cost > 0) {
+                release(cost);
+                cost = 0;
+            }
+        }
+    }
+
+    /**
+     * Bytes a client may take, tokens go below zero for requests waiting for the refill.
+     */
+    private class TokenBucket {
+        private double tokens = clientBurstBytes;
+        private long refilledAt;
+
+        TokenBucket(long now) {
+            this.refilledAt = now;
+        }
+
+        /**
+         * Takes {@code cost} tokens, unless they are refilled later than the longest wait.
+         *
+         * @return time until the tokens are refilled
+         */
+        synchronized long reserve(long cost, long now) {
+            tokens = Math.min(clientBurstBytes, tokens + (now - refilledAt) * (double) clientBytesPerSecond / 1e9);
+            refilledAt = now;
+            long delay = tokens >= cost ? 0 : (long) ((cost - tokens) * 1e9 / clientBytesPerSecond);
+            if (delay <= maxWaitNanos) {
+                tokens -= cost;
+            }
+            return delay;
+        }
+
+        synchronized void refund(long cost) {
+            tokens = Math.min(clientBurstBytes, tokens + cost);
+        }
+    }
+}
@@ -1,18 +1,59 @@
 package ru.kontur.intern.service;
 
-import lombok.AllArgsConstructor;
+import com.google.common.io.ByteStreams;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.bmp.BmpReader;
+import ru.kontur.intern.bmp.RawRgbReader;
+import ru.kontur.intern.bmp.RowReader;
+import ru.kontur.intern.exception.IllegalImageFormatException;
 import ru.kontur.intern.exception.IllegalImageSizeException;
 import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.exception.LevelOutOfRangeException;
 import ru.kontur.intern.exception.OffsetOutOfRangeException;
+import ru.kontur.intern.model.EncodedFragment;
+import ru.kontur.intern.model.FragmentResult;
+import ru.kontur.intern.model.ImageCoverage;
+import ru.kontur.intern.model.ImageFragment;
 import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.Pyramid;
+import ru.kontur.intern.repo.PyramidUpdater;
 
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kontur.intern.config.ImageSizeConfig.FULL_IMAGE_HEIGHT_LIMIT;
+import static ru.kontur.intern.config.ImageSizeConfig.FULL_IMAGE_WIDTH_LIMIT;
 
 @Service
-@AllArgsConstructor
 public class ImageService {
     private ImageRepo imageRepo;
+    private PyramidUpdater pyramidUpdater;
+    private final Timer decodeTimer;
+
+    public ImageService(ImageRepo imageRepo, PyramidUpdater pyramidUpdater, MeterRegistry meterRegistry) {
+        this.imageRepo = imageRepo;
+        this.pyramidUpdater = pyramidUpdater;
+        //24-bit BMP and raw RGB are not decoded, their rows are copied by repository as they arrive
+        this.decodeTimer = Timer.builder("chartographer.image.decode")
+                .description("Time to decode uploaded fragments in formats other than 24-bit BMP and raw RGB")
+                .tag("decoder", "imageio")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
     /**
      * Creates an image with a specified size and fills it with black (0,0,0) color.
@@ -22,8 +63,7 @@ public class ImageService {
      * @return uniq created image identifier
      */
     public String createImage(int width, int height) {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        return imageRepo.saveImage(image);
+        return imageRepo.createImage(width, height);
     }
 
     /**
@@ -44,16 +84,171 @@ public class ImageService {
         if (source.getHeight() != height || source.getWidth() != width) {
             throw new IllegalImageSizeException(source.getWidth(), width, source.getHeight(), height);
         } else {
-            var target = imageRepo.readImage(targetId);
-            target.getGraphics().drawImage(source, x, y, null);
-            imageRepo.updateImage(targetId, target);
+            checkImageId(targetId);
+            imageRepo.writeImagePart(targetId, x, y, source);
+            pyramidUpdater.invalidate(targetId, x, y, width, height);
         }
     }
 
+    /**
+     * Copies BMP or raw RGB fragment from {@code source} stream into the target image with specified offset
+     * without decoding it as a whole, a rejected stream leaves the target image unchanged. Fragments outside
+     * of target image dimension gets ignored. Streams in other formats, like PNG, are decoded with ImageIO.
+     *
+     * @param targetId Id of target image
+     * @param width    width of source image
+     * @param height   height of source image
+     * @param x        width offset
+     * @param y        height offset
+     * @param source   stream of source image
+     * @throws ImageNotFoundException      if target image can not be found by {@code id}
+     * @throws IllegalImageSizeException   if source image dimensions do not match width and height params
+     * @throws IllegalImageFormatException if source stream is not a readable image
+     */
+    public void insertImage(String targetId, int width, int height, int x, int y, InputStream source)
+            throws IOException {
+        checkImageId(targetId);
+        insertImage(source, width, height,
+                reader -> imageRepo.writeImagePart(targetId, x, y, reader),
+                image -> imageRepo.writeImagePart(targetId, x, y, image));
+        pyramidUpdater.invalidate(targetId, x, y, width, height);
+    }
+
+    /**
+     * Inserts a batch of fragments into the target image under a single lock, opening the image in storage once.
+     * The batch is a stream of records, every record is five big-endian 32-bit integers
+     * {@code x, y, width, height, length} followed by {@code length} bytes of the fragment image.
+     * Fragments are validated like single uploads; an invalid fragment is skipped and does not affect the others.
+     *
+     * @param targetId Id of target image
+     * @param source   stream of batch records
+     * @return result of every record in the order of the stream
+     * @throws ImageNotFoundException if target image can not be found by {@code id}
+     */
+    public List<FragmentResult> insertImages(String targetId, InputStream source) throws IOException {
+        checkImageId(targetId);
+        var input = new DataInputStream(new BufferedInputStream(source));
+        List<FragmentResult> results = new ArrayList<>();
+        try (var batch = imageRepo.openBatch(targetId)) {
+            for (int index = 0; !isEnd(input); index++) {
+                int x;
+                int y;
+                int width;
+                int height;
+                int length;
+                try {
+                    x = input.readInt();
+                    y = input.readInt();
+                    width = input.readInt();
+                    height = input.readInt();
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    results.add(new FragmentResult(index, 0, 0, 0, 0, HttpStatus.BAD_REQUEST.value(),
+                            "Batch record header is truncated"));
+                    break;
+                }
+                if (length < 0) {
+                    results.add(new FragmentResult(index, x, y, width, height, HttpStatus.BAD_REQUEST.value(),
+                            String.format("Negative fragment length: %s", length)));
+                    break;
+                }
+                var fragment = ByteStreams.limit(input, length);
+                results.add(insertImage(batch, index, x, y, width, height, fragment));
+                ByteStreams.exhaust(fragment);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Inserts fragments held in memory into the target image under a single lock, opening the image once.
+     * Fragments are validated like single uploads and applied in the order of the list;
+     * an invalid fragment is skipped and does not affect the others.
+     *
+     * @param targetId  Id of target image
+     * @param fragments fragments to insert
+     * @return result of every fragment in the order of {@code fragments}
+     * @throws ImageNotFoundException if target image can not be found by {@code id}
+     */
+    public List<FragmentResult> insertImages(String targetId, List<EncodedFragment> fragments) throws IOException {
+        checkImageId(targetId);
+        List<FragmentResult> results = new ArrayList<>(fragments.size());
+        try (var batch = imageRepo.openBatch(targetId)) {
+            for (int i = 0; i < fragments.size(); i++) {
+                var fragment = fragments.get(i);
+                results.add(insertImage(batch, i, fragment.getX(), fragment.getY(), fragment.getWidth(),
+                        fragment.getHeight(), new ByteArrayInputStream(fragment.getContent())));
+            }
+        }
+        return results;
+    }
+
+    private FragmentResult insertImage(ImageRepo.Batch batch, int index, int x, int y, int width, int height,
+                                       InputStream source) throws IOException {
+        String error = null;
+        if (width < 1 || width > FULL_IMAGE_WIDTH_LIMIT || height < 1 || height > FULL_IMAGE_HEIGHT_LIMIT) {
+            error = String.format("Fragment size out of range: width=%s, height=%s", width, height);
+        } else if (x < 0 || y < 0) {
+            error = String.format("Negative fragment offset: x=%s, y=%s", x, y);
+        } else {
+            try {
+                insertImage(source, width, height,
+                        reader -> batch.writeImagePart(x, y, reader),
+                        image -> batch.writeImagePart(x, y, image));
+                pyramidUpdater.invalidate(batch.getId(), x, y, width, height);
+            } catch (IllegalImageSizeException | IllegalImageFormatException e) {
+                error = e.getMessage();
+            }
+        }
+        var status = error == null ? HttpStatus.OK : HttpStatus.BAD_REQUEST;
+        return new FragmentResult(index, x, y, width, height, status.value(), error);
+    }
+
+    /**
+     * Opens {@code source} as a stream of raw RGB or 24-bit BMP rows or decodes it with ImageIO
+     * if it is in another format, checks its size and passes it to the corresponding writer.
+     */
+    private void insertImage(InputStream source, int width, int height,
+                             FragmentWriter<RowReader> streamWriter, FragmentWriter<BufferedImage> imageWriter)
+            throws IOException {
+        var input = new BufferedInputStream(source);
+        input.mark(BmpHeader.HEADER_SIZE);
+        boolean rawRgb = RawRgbReader.hasMagic(input.readNBytes(RawRgbReader.MAGIC.length));
+        input.reset();
+        RowReader reader;
+        try {
+            reader = rawRgb ? RawRgbReader.open(input) : BmpReader.open(input);
+        } catch (IllegalImageFormatException e) {
+            input.reset();
+            long start = System.nanoTime();
+            var image = ImageIO.read(input);
+            decodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (image == null) {
+                throw e;
+            }
+            if (image.getHeight() != height || image.getWidth() != width) {
+                throw new IllegalImageSizeException(image.getWidth(), width, image.getHeight(), height);
+            }
+            imageWriter.write(image);
+            return;
+        }
+        if (reader.getHeight() != height || reader.getWidth() != width) {
+            throw new IllegalImageSizeException(reader.getWidth(), width, reader.getHeight(), height);
+        }
+        streamWriter.write(reader);
+    }
+
+    private static boolean isEnd(InputStream input) throws IOException {
+        input.mark(1);
+        boolean end = input.read() < 0;
+        input.reset();
+        return end;
+    }
+
     /**
      * Gets a fragment of image with a specified id.
      * Returns as much of the source image as is currently available.
-     * The image is drawn with its top-left corner at (x, y) in this graphics context's coordinate space.
+     * The fragment has its top-left corner at (x, y) of the source image and is read lazily when written out.
      * Fills extra space with black (0,0,0) color if fragment size is larger than source image
      *
      * @param id     source image identifier
@@ -64,19 +259,87 @@ public class ImageService {
      * @throws ImageNotFoundException    if source image can not be found by {@code id}
      * @throws OffsetOutOfRangeException if fragment offset out of source image dimensions
      */
-    public BufferedImage getImagePart(String id, int width, int height, int x, int y) {
-        BufferedImage sourceImage = imageRepo.readImage(id);
-        if (x >= sourceImage.getWidth() || y >= sourceImage.getHeight()) {
-            throw new OffsetOutOfRangeException(sourceImage.getWidth(), x, sourceImage.getHeight(), y);
+    public ImageFragment getImagePart(String id, int width, int height, int x, int y) {
+        return getImagePart(id, width, height, x, y, 0);
+    }
+
+    /**
+     * Gets a fragment of a downsampled copy of image with a specified id. Level 0 is the image itself,
+     * every next level is half the size of the previous one, coordinates and size of fragment are given in pixels
+     * of the level. Levels are updated in background and may lag behind recent inserts.
+     *
+     * @param id     source image identifier
+     * @param width  width of fragment
+     * @param height height of fragment
+     * @param x      width offset
+     * @param y      height offset
+     * @param level  pyramid level
+     * @throws ImageNotFoundException    if source image can not be found by {@code id}
+     * @throws LevelOutOfRangeException  if image has no such level
+     * @throws OffsetOutOfRangeException if fragment offset out of level dimensions
+     */
+    public ImageFragment getImagePart(String id, int width, int height, int x, int y, int level) {
+        checkImageId(id);
+        Dimension imageSize = imageRepo.getImageSize(id);
+        int levelCount = Pyramid.levelCount(imageSize.width, imageSize.height);
+        if (level > levelCount) {
+            throw new LevelOutOfRangeException(levelCount, level);
+        }
+        Dimension sourceSize = Pyramid.levelSize(imageSize.width, imageSize.height, level);
+        if (x >= sourceSize.width || y >= sourceSize.height) {
+            throw new OffsetOutOfRangeException(sourceSize.width, x, sourceSize.height, y);
         }
 
-        BufferedImage imagePart = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        return imageRepo.getImagePart(Pyramid.levelId(id, level), x, y, width, height);
+    }
+
+    /**
+     * Returns version of a fragment of image or its pyramid level, which changes after every insert
+     * intersecting the fragment. Pixels are not read.
+     *
+     * @param id     source image identifier
+     * @param width  width of fragment
+     * @param height height of fragment
+     * @param x      width offset
+     * @param y      height offset
+     * @param level  pyramid level
+     * @throws ImageNotFoundException if source image can not be found by {@code id}
+     */
+    public long getVersion(String id, int width, int height, int x, int y, int level) {
+        checkImageId(id);
+        return imageRepo.getVersion(Pyramid.levelId(id, level), x, y, width, height);
+    }
+
+    /**
+     * Returns how much of an area of image has been written, without reading pixels.
+     * The area defaults to the rest of the image from its offset.
+     *
+     * @param id     image identifier
+     * @param x      width offset
+     * @param y      height offset
+     * @param width  width of area, {@code null} for the rest of the image
+     * @param height height of area, {@code null} for the rest of the image
+     * @throws ImageNotFoundException    if image can not be found by {@code id}
+     * @throws OffsetOutOfRangeException if area offset out of image dimensions
+     */
+    public ImageCoverage getCoverage(String id, int x, int y, Integer width, Integer height) {
+        checkImageId(id);
+        Dimension imageSize = imageRepo.getImageSize(id);
+        if (x >= imageSize.width || y >= imageSize.height) {
+            throw new OffsetOutOfRangeException(imageSize.width, x, imageSize.height, y);
+        }
+        return imageRepo.getCoverage(id, x, y, width != null ? width : imageSize.width - x,
+                height != null ? height : imageSize.height - y);
+    }
 
-        int sourceWidth = Math.min(width, sourceImage.getWidth() - x);
-        int sourceHeight = Math.min(height, sourceImage.getHeight() - y);
-        imagePart.getGraphics().drawImage(sourceImage.getSubimage(x, y, sourceWidth, sourceHeight),
-                0, 0, null);
-        return imagePart;
+    /**
+     * @param id image identifier
+     * @return size of the image
+     * @throws ImageNotFoundException if image can not be found by {@code id}
+     */
+    public Dimension getImageSize(String id) {
+        checkImageId(id);
+        return imageRepo.getImageSize(id);
     }
 
     /**
@@ -85,6 +348,24 @@ public class ImageService {
      * @param id image identifier
      */
     public void deleteImage(String id) {
+        checkImageId(id);
         imageRepo.deleteImage(id);
     }
+
+    /**
+     * Pyramid levels are stored as images too, but they are kept up to date by {@link PyramidUpdater} only
+     * and are read through {@code level} of their image, so their ids do not name images for clients.
+     *
+     * @throws ImageNotFoundException if {@code id} is an id of a pyramid level
+     */
+    private static void checkImageId(String id) {
+        if (Pyramid.isLevelId(id)) {
+            throw new ImageNotFoundException(id);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FragmentWriter<T> {
+        void write(T fragment) throws IOException;
+    }
 }
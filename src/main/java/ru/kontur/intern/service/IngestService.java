@@ -0,0 +1,372 @@
+package ru.kontur.intern.service;
+
+import lombok.extern.log4j.Log4j2;
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.exception.ChartaQueueFullException;
+import ru.kontur.intern.exception.IllegalImageFormatException;
+import ru.kontur.intern.exception.IllegalImageSizeException;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.exception.IngestOverloadedException;
+import ru.kontur.intern.exception.OperationNotFoundException;
+import ru.kontur.intern.model.EncodedFragment;
+import ru.kontur.intern.model.FragmentResult;
+import ru.kontur.intern.model.IngestOperation;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inserts fragments asynchronously. Uploads are buffered in memory and queued per image in arrival order;
+ * a queue is drained by a single worker at a time, so fragments of an image are applied in the order they came.
+ * Everything queued for an image by the time the worker gets to it is applied in one pass under a single lock,
+ * and a fragment entirely covered by a later one in the same pass is not written at all.
+ * <p>
+ * Memory held by queued uploads and the length of every queue are bounded, uploads over the bounds are rejected.
+ */
+@Log4j2
+public class IngestService implements Closeable {
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_OPERATIONS = 100_000;
+
+    private final ImageService imageService;
+    private final long maxQueuedBytes;
+    private final int maxQueuedPerCharta;
+    private final ExecutorService executor;
+    private final Map<String, ChartaQueue> queues = new HashMap<>();
+    private final Map<String, IngestOperation> operations = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IngestOperation> eldest) {
+            return size() > MAX_OPERATIONS;
+        }
+    };
+    /**
+     * Guards queues, operations and queued bytes. A lock instead of the monitor, so threads waiting
+     * in {@link #awaitApplied(String)} do not pin carrier threads when requests run on virtual threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition applied = lock.newCondition();
+    private long queuedBytes;
+
+    /**
+     * @param imageService       service applying fragments
+     * @param threads            number of images drained concurrently
+     * @param maxQueuedBytes     limit of memory held by queued uploads
+     * @param maxQueuedPerCharta limit of fragments queued for a single image
+     */
+    public IngestService(ImageService imageService, int threads, long maxQueuedBytes, int maxQueuedPerCharta) {
+        this.imageService = imageService;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxQueuedPerCharta = maxQueuedPerCharta;
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "ingest-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the fragment and queues it for insertion into the target image.
+     * Size of 24-bit BMP fragments is checked right away, other formats are checked when decoded.
+     *
+     * @param targetId Id of target image
+     * @param width    width of source image
+     * @param height   height of source image
+     * @param x        width offset
+     * @param y        height offset
+     * @param source   stream of source image
+     * @return queued operation
+     * @throws ImageNotFoundException     if target image can not be found by {@code id}
+     * @throws IllegalImageSizeException  if BMP dimensions do not match width and height params
+     * @throws IngestOverloadedException  if queued uploads take all the memory given to them
+     * @throws ChartaQueueFullException   if too many fragments are queued for the target image
+     */
+    public IngestOperation submit(String targetId, int width, int height, int x, int y, InputStream source)
+            throws IOException {
+        imageService.getImageSize(targetId);
+        byte[] content = read(source);
+        boolean complete;
+        try {
+            complete = checkBmp(content, width, height);
+        } catch (RuntimeException e) {
+            release(content.length);
+            throw e;
+        }
+        var operation = new IngestOperation(UUID.randomUUID().toString(), targetId, x, y, width, height);
+        var fragment = new QueuedFragment(operation, new EncodedFragment(x, y, width, height, content), complete);
+        lock.lock();
+        try {
+            var queue = queues.computeIfAbsent(targetId, id -> new ChartaQueue());
+            int queued = (int) (queue.enqueued - queue.applied);
+            if (queued >= maxQueuedPerCharta) {
+                queuedBytes -= content.length;
+                throw new ChartaQueueFullException(targetId, queued);
+            }
+            queue.fragments.add(fragment);
+            queue.enqueued++;
+            operations.put(operation.getId(), operation);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                executor.execute(() -> drain(targetId, queue));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return operation;
+    }
+
+    /**
+     * @param id operation id
+     * @throws OperationNotFoundException if operation is unknown or forgotten
+     */
+    public IngestOperation getOperation(String id) {
+        lock.lock();
+        try {
+            var operation = operations.get(id);
+            if (operation == null) {
+                throw new OperationNotFoundException(id);
+            }
+            return operation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every fragment queued for the image before the call is applied,
+     * so a read that follows sees all accepted uploads.
+     *
+     * @param id image identifier
+     */
+    public void awaitApplied(String id) throws InterruptedException {
+        lock.lock();
+        try {
+            var queue = queues.get(id);
+            if (queue == null) {
+                return;
+            }
+            long target = queue.enqueued;
+            while (queue.applied < target) {
+                applied.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies queued fragments and stops the workers.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.error("Queued fragments are not applied in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the whole stream, reserving memory for it as it arrives.
+     */
+    private byte[] read(InputStream source) throws IOException {
+        var output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[READ_CHUNK_SIZE];
+        long reserved = 0;
+        try {
+            int read;
+            while ((read = source.read(chunk)) >= 0) {
+                reserve(read);
+                reserved += read;
+                output.write(chunk, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
+        }
+        return output.toByteArray();
+    }
+
+    private void reserve(long bytes) {
+        lock.lock();
+        try {
+            if (queuedBytes + bytes > maxQueuedBytes) {
+                throw new IngestOverloadedException(queuedBytes, maxQueuedBytes);
+            }
+            queuedBytes += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long bytes) {
+        lock.lock();
+        try {
+            queuedBytes -= bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks size of 24-bit BMP fragment.
+     *
+     * @return whether the fragment is a 24-bit BMP with all of its pixels present
+     * @throws IllegalImageSizeException if BMP dimensions do not match width and height params
+     */
+    private static boolean checkBmp(byte[] content, int width, int height) {
+        BmpHeader header;
+        try {
+            header = BmpHeader.read(ByteBuffer.wrap(content));
+        } catch (IllegalImageFormatException e) {
+            //Other formats are decoded by the worker
+            return false;
+        }
+        if (header.getHeight() != height || header.getWidth() != width) {
+            throw new IllegalImageSizeException(header.getWidth(), width, header.getHeight(), height);
+        }
+        return content.length >= header.getFileSize();
+    }
+
+    private void drain(String id, ChartaQueue queue) {
+        while (true) {
+            List<QueuedFragment> group;
+            lock.lock();
+            try {
+                if (queue.fragments.isEmpty()) {
+                    queue.scheduled = false;
+                    queues.remove(id);
+                    return;
+                }
+                group = new ArrayList<>(queue.fragments);
+                queue.fragments.clear();
+            } finally {
+                lock.unlock();
+            }
+            long bytes = 0;
+            for (var fragment : group) {
+                bytes += fragment.fragment.getContent().length;
+            }
+            try {
+                apply(id, group);
+            } finally {
+                lock.lock();
+                try {
+                    queuedBytes -= bytes;
+                    queue.applied += group.size();
+                    applied.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies fragments in a single pass, skipping ones overwritten by a later complete BMP fragment.
+     * A skipped fragment gets the outcome of the fragment it is covered by.
+     */
+    private void apply(String id, List<QueuedFragment> group) {
+        int[] coveredBy = new int[group.size()];
+        List<EncodedFragment> fragments = new ArrayList<>();
+        List<Integer> written = new ArrayList<>();
+        for (int i = 0; i < group.size(); i++) {
+            coveredBy[i] = coveringFragment(group, i);
+            if (coveredBy[i] < 0) {
+                fragments.add(group.get(i).fragment);
+                written.add(i);
+            }
+        }
+        log.debug("Applying {} fragments of image {}, {} overwritten", fragments.size(), id,
+                group.size() - fragments.size());
+        try {
+            List<FragmentResult> results = imageService.insertImages(id, fragments);
+            for (int i = 0; i < results.size(); i++) {
+                var result = results.get(i);
+                var operation = group.get(written.get(i)).operation;
+                if (result.getError() == null) {
+                    operation.complete();
+                } else {
+                    operation.fail(result.getError());
+                }
+            }
+        } catch (ImageNotFoundException e) {
+            written.forEach(i -> group.get(i).operation.fail(
+                    String.format("Image not found by id: %s", e.getMessage())));
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to apply fragments of image {}: {}", id, e.getMessage());
+            written.forEach(i -> group.get(i).operation.fail("Internal server error, please report"));
+        }
+        for (int i = group.size() - 1; i >= 0; i--) {
+            if (coveredBy[i] >= 0) {
+                var covering = group.get(coveredBy[i]).operation;
+                if (covering.getStatus() == IngestOperation.Status.DONE) {
+                    group.get(i).operation.complete();
+                } else {
+                    group.get(i).operation.fail(covering.getError());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return index of the first later complete BMP fragment covering fragment {@code index}, -1 if there is none
+     */
+    private static int coveringFragment(List<QueuedFragment> group, int index) {
+        var area = bounds(group.get(index).fragment);
+        for (int i = index + 1; i < group.size(); i++) {
+            if (group.get(i).complete && bounds(group.get(i).fragment).contains(area)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Rectangle bounds(EncodedFragment fragment) {
+        return new Rectangle(fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight());
+    }
+
+    /**
+     * Fragment waiting in a queue.
+     * {@code complete} fragments are known to overwrite their whole area when applied.
+     */
+    private static class QueuedFragment {
+        final IngestOperation operation;
+        final EncodedFragment fragment;
+        final boolean complete;
+
+        QueuedFragment(IngestOperation operation, EncodedFragment fragment, boolean complete) {
+            this.operation = operation;
+            this.fragment = fragment;
+            this.complete = complete;
+        }
+    }
+
+    private static class ChartaQueue {
+        private final Deque<QueuedFragment> fragments = new ArrayDeque<>();
+        private long enqueued;
+        private long applied;
+        private boolean scheduled;
+    }
+}
@@ -1,5 +1,7 @@
 package ru.kontur.intern;
 
+import com.jayway.jsonpath.JsonPath;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
@@ -7,9 +9,13 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.test.web.servlet.MockMvc;
 
+import javax.imageio.ImageIO;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -19,15 +25,20 @@ import java.util.Comparator;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest(args = "src/test/resources/test")
+//Stored files are checked on disk, so fragments are written through without the cache and journal
+@SpringBootTest(args = "target/test-storage/integrational",
+        properties = {"storage.cache.max-bytes=0", "storage.journal.enabled=false"})
 @AutoConfigureMockMvc
 class IntegrationalTest {
     @Autowired
     private MockMvc mockMvc;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
-    private static final String TEMP_FOLDER_PATH = "src/test/resources/test";
+    private static final String TEMP_FOLDER_PATH = "target/test-storage/integrational";
 
     @AfterAll
     static void cleanUp() throws IOException {
@@ -80,6 +91,132 @@ class IntegrationalTest {
         Assertions.assertTrue(IOUtils.contentEquals(expectedOutput, actualOutput));
     }
 
+    @Test
+    void insertImagesBatchReturnsResultPerFragment() throws Exception {
+        String imageId = createImage(40, 40);
+        var content = Files.readAllBytes(Path.of("src/test/resources/TestImage/input/input1.bmp"));
+        var batch = new ByteArrayOutputStream();
+        var output = new DataOutputStream(batch);
+        //Wrong size, skipped
+        output.writeInt(20);
+        output.writeInt(0);
+        output.writeInt(10);
+        output.writeInt(10);
+        output.writeInt(content.length);
+        output.write(content);
+        output.writeInt(0);
+        output.writeInt(0);
+        output.writeInt(20);
+        output.writeInt(40);
+        output.writeInt(content.length);
+        output.write(content);
+
+        mockMvc.perform(post(String.format("/chartas/%s/batch/", imageId))
+                        .content(batch.toByteArray())
+                        .contentType("application/octet-stream"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].status").value(400))
+                .andExpect(jsonPath("$[1].status").value(200))
+                .andExpect(jsonPath("$[1].error").doesNotExist());
+
+        var responseContent = this.mockMvc.perform(get(String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 40, 40, 0, 0)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        var expectedOutput = Files.newInputStream(Path.of("src/test/resources/TestImage/output/output1.bmp"));
+        Assertions.assertTrue(IOUtils.contentEquals(expectedOutput, new ByteArrayInputStream(responseContent)));
+    }
+
+    @Test
+    void insertImagesBatchNotFound() throws Exception {
+        mockMvc.perform(post("/chartas/missing/batch/")
+                        .content(new byte[0])
+                        .contentType("application/octet-stream"))
+                .andDo(print())
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void insertImageAsyncIsVisibleToNextRead() throws Exception {
+        String imageId = createImage(40, 40);
+        var content = Files.readAllBytes(Path.of("src/test/resources/TestImage/input/input1.bmp"));
+
+        var operationId = JsonPath.<String>read(mockMvc.perform(post(String.format("/chartas/%s/", imageId))
+                        .content(content)
+                        .contentType("image/bmp")
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("async", "true"))
+                .andDo(print())
+                .andExpect(status().isAccepted())
+                .andReturn().getResponse().getContentAsString(), "$.id");
+        var response = mockMvc.perform(get(String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 20, 40, 0, 0)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+
+        var expected = ImageIO.read(new ByteArrayInputStream(content));
+        var actual = ImageIO.read(new ByteArrayInputStream(response));
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 20; x++) {
+                Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+        mockMvc.perform(get(String.format("/operations/%s/", operationId)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.chartaId").value(imageId))
+                .andExpect(jsonPath("$.status").value("DONE"));
+    }
+
+    @Test
+    void fragmentIsNotModifiedByInsertIntoOtherRegion() throws Exception {
+        String imageId = createImage(1024, 1024);
+        var content = Files.readAllBytes(Path.of("src/test/resources/TestImage/input/input1.bmp"));
+        String fragment = String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 100, 100, 0, 0);
+        String etag = mockMvc.perform(get(fragment))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(post(String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 20, 40, 600, 600))
+                        .content(content)
+                        .contentType("image/bmp"))
+                .andExpect(status().isOk());
+        mockMvc.perform(get(fragment).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified());
+
+        mockMvc.perform(post(String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 20, 40, 50, 50))
+                        .content(content)
+                        .contentType("image/bmp"))
+                .andExpect(status().isOk());
+        var changed = mockMvc.perform(get(fragment).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse();
+        Assertions.assertNotEquals(etag, changed.getHeader(HttpHeaders.ETAG));
+    }
+
+    @Test
+    void requestsAreMetered() throws Exception {
+        String imageId = createImage(20, 40);
+        var content = Files.readAllBytes(Path.of("src/test/resources/TestImage/input/input1.bmp"));
+        mockMvc.perform(post(String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 20, 40, 0, 0))
+                        .content(content)
+                        .contentType("image/bmp"))
+                .andExpect(status().isOk());
+        mockMvc.perform(get(String.format("/chartas/%s/?width=%d&height=%d&x=%d&y=%d", imageId, 20, 40, 0, 0)))
+                .andExpect(status().isOk());
+
+        Assertions.assertTrue(meterRegistry.get("chartographer.repo.operation").tag("operation", "write").timer().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("chartographer.repo.operation").tag("operation", "read").timer().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("chartographer.repo.pixel.bytes").tag("direction", "written").counter().count() >= 20 * 40 * 3);
+        Assertions.assertTrue(meterRegistry.get("chartographer.lock.wait").tag("level", "region").tag("mode", "write").timer().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("chartographer.lock.hold").tag("level", "image").tag("mode", "write").timer().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("chartographer.image.encode").tag("format", "bmp").timer().count() > 0);
+        Assertions.assertTrue(meterRegistry.get("http.server.requests")
+                .tag("uri", "/chartas/{id}").tag("method", "GET").tag("fragment.size", "small").timer().count() > 0);
+    }
+
     @Test
     void createImageMinimalSizeReturnsCreated() throws Exception {
         this.mockMvc.perform(post(String.format("/chartas/?width=%d&height=%d", 1, 1)))
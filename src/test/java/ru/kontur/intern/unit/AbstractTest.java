@@ -1,9 +1,12 @@
 package ru.kontur.intern.unit;
 
+import ru.kontur.intern.model.ImageFragment;
+
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 
 public class AbstractTest {
-    public static final String TEMP_FOLDER_PATH = "src/test/resources/test";
+    public static final String TEMP_FOLDER_PATH = "target/test-storage/repo";
     public static final String TEST_IMAGE = "src/test/resources/TestImage/input/input1.bmp";
     public static final String BLANK_IMAGE = "src/test/resources/TestImage/input/empty40x40.bmp";
     public static final String TARGET_IMAGE_ID = "50e5b4b5-c8ae-4994-8b66-bede185261b9";
@@ -36,4 +39,28 @@ public class AbstractTest {
 
         return true;
     }
+
+    /**
+     * Creates a fragment which reads its rows from an in-memory image, like repository does from storage.
+     *
+     * @param image  source image
+     * @param x      left column of fragment
+     * @param y      top row of fragment
+     * @param width  fragment width
+     * @param height fragment height
+     */
+    public static ImageFragment fragmentOf(BufferedImage image, int x, int y, int width, int height) {
+        return new ImageFragment(width, height, (top, bottom, bottomUp, consumer) -> {
+            int storedWidth = Math.max(0, Math.min(width, image.getWidth() - x));
+            for (int i = top; i < bottom; i++) {
+                int row = y + (bottomUp ? bottom - 1 - (i - top) : i);
+                var pixels = ByteBuffer.allocate(row < image.getHeight() ? storedWidth * 3 : 0);
+                for (int j = 0; j < pixels.capacity() / 3; j++) {
+                    int rgb = image.getRGB(x + j, row);
+                    pixels.put((byte) rgb).put((byte) (rgb >> 8)).put((byte) (rgb >> 16));
+                }
+                consumer.accept(pixels.flip(), width - pixels.limit() / 3);
+            }
+        });
+    }
 }
@@ -0,0 +1,83 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.kontur.intern.exception.AdmissionRejectedException;
+import ru.kontur.intern.service.AdmissionControl;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControlTest extends AbstractTest {
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void requestsOverBudgetWaitThenAreRejected() throws Exception {
+        var admission = new AdmissionControl(1000, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, Duration.ofMillis(50),
+                registry);
+
+        try (var permit = admission.admit("a", 600)) {
+            var rejected = Assertions.assertThrows(AdmissionRejectedException.class, () -> admission.admit("b", 600));
+            Assertions.assertEquals(1, rejected.getRetryAfterSeconds());
+            admission.admit("b", 400).close();
+            Assertions.assertEquals(600, admission.getInFlightBytes());
+        }
+        Assertions.assertEquals(0, admission.getInFlightBytes());
+        Assertions.assertEquals(1,
+                registry.get("chartographer.admission.rejected").tag("reason", "overload").counter().count());
+    }
+
+    @Test
+    void waitingRequestIsAdmittedOnRelease() throws Exception {
+        var admission = new AdmissionControl(1000, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, Duration.ofSeconds(10),
+                registry);
+        var permit = admission.admit("a", 1000);
+
+        var waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.admit("b", 1000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        Assertions.assertFalse(waiting.isDone());
+        permit.close();
+
+        waiting.get(5, TimeUnit.SECONDS).close();
+        Assertions.assertEquals(0, admission.getInFlightBytes());
+    }
+
+    @Test
+    void clientOverRateIsRejected() throws Exception {
+        var admission = new AdmissionControl(Long.MAX_VALUE, 1000, 2000, Duration.ofMillis(50), registry);
+
+        //Requests over the bucket capacity take the whole bucket
+        admission.admit("a", 5000).close();
+        var rejected = Assertions.assertThrows(AdmissionRejectedException.class, () -> admission.admit("a", 1500));
+        Assertions.assertEquals(2, rejected.getRetryAfterSeconds());
+        admission.admit("b", 1500).close();
+
+        Assertions.assertEquals(1,
+                registry.get("chartographer.admission.rejected").tag("reason", "client").counter().count());
+    }
+
+    @Test
+    void rejectedRequestKeepsClientTokens() throws Exception {
+        var admission = new AdmissionControl(1000, 1, 1000, Duration.ofMillis(50), registry);
+
+        try (var permit = admission.admit("a", 800)) {
+            Assertions.assertThrows(AdmissionRejectedException.class, () -> admission.admit("b", 800));
+        }
+        //Tokens taken by the request rejected for overload are given back to its client
+        admission.admit("b", 1000).close();
+    }
+}
@@ -0,0 +1,157 @@
+package ru.kontur.intern.unit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BlobImageStorage;
+import ru.kontur.intern.repo.storage.BlobStore;
+import ru.kontur.intern.repo.storage.FileBlobStore;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BlobImageStorageTest extends AbstractTest {
+    private static final int TILE_SIZE = 16;
+    private static final int PART_SIZE = 100;
+
+    @TempDir
+    Path storagePath;
+    private CountingBlobStore store;
+    private BlobImageStorage storage;
+    private ImageRepo imageRepo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new CountingBlobStore(new FileBlobStore(storagePath));
+        storage = new BlobImageStorage(store, TILE_SIZE, PART_SIZE);
+        imageRepo = new ImageRepo(storage, 16);
+    }
+
+    @Test
+    void fragmentsMatchBmpStorage() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(20, 40);
+        imageRepo.writeImagePart(id, 0, 0, source);
+
+        Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(id)));
+        var expected = ImageIO.read(new File("src/test/resources/TestImage/output/overlapOutput.bmp"));
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.getImagePart(id, 10, 20, 20, 40).toBufferedImage()));
+        Assertions.assertTrue(storage.list().contains(id));
+    }
+
+    @Test
+    void readFetchesOnlyTouchedRows() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+        store.fetched.set(0);
+
+        //Single row inside of a single tile
+        imageRepo.getImagePart(id, 3, 5, 10, 1).toBufferedImage();
+        Assertions.assertEquals(TILE_SIZE * 3, store.fetched.get());
+
+        //Rows 4..7 of a tile read from the top fetch rows 4..15, rows above the fragment are skipped
+        store.fetched.set(0);
+        imageRepo.getImagePart(id, 3, 4, 10, 4).toBufferedImage();
+        Assertions.assertEquals(12 * TILE_SIZE * 3, store.fetched.get());
+    }
+
+    @Test
+    void tilesAreUploadedInParts() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+
+        //20x40 fragment covers 2x3 tiles of 768 bytes, each is uploaded in 8 parts
+        Assertions.assertEquals(6, store.uploads.get());
+        Assertions.assertEquals(6 * 8, store.parts.get());
+        Assertions.assertEquals(7, store.list(id + "/").size());
+    }
+
+    @Test
+    void blackTilesAreDeleted() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+
+        imageRepo.writeImagePart(id, 0, 0, new BufferedImage(20, 40, BufferedImage.TYPE_3BYTE_BGR));
+
+        Assertions.assertEquals(List.of(id + "/header"), store.list(id + "/"));
+        Assertions.assertTrue(compareBufferedImages(ImageIO.read(new File(BLANK_IMAGE)), imageRepo.readImage(id)));
+    }
+
+    @Test
+    void deleteRemovesAllBlobs() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+
+        imageRepo.deleteImage(id);
+
+        Assertions.assertEquals(List.of(), store.list(""));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(id));
+    }
+
+    /**
+     * Counts bytes fetched from tiles and upload parts.
+     */
+    private static class CountingBlobStore implements BlobStore {
+        private final BlobStore delegate;
+        private final AtomicLong fetched = new AtomicLong();
+        private final AtomicLong uploads = new AtomicLong();
+        private final AtomicLong parts = new AtomicLong();
+
+        CountingBlobStore(BlobStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void get(String key, long offset, byte[] dst, int dstOffset, int length) throws IOException {
+            if (key.endsWith(".tile")) {
+                fetched.addAndGet(length);
+            }
+            delegate.get(key, offset, dst, dstOffset, length);
+        }
+
+        @Override
+        public Upload upload(String key) throws IOException {
+            var upload = delegate.upload(key);
+            if (!key.endsWith(".tile")) {
+                return upload;
+            }
+            uploads.incrementAndGet();
+            return new Upload() {
+                @Override
+                public void part(byte[] src, int offset, int length) throws IOException {
+                    parts.incrementAndGet();
+                    upload.part(src, offset, length);
+                }
+
+                @Override
+                public void complete() throws IOException {
+                    upload.complete();
+                }
+
+                @Override
+                public void abort() throws IOException {
+                    upload.abort();
+                }
+            };
+        }
+
+        @Override
+        public List<String> list(String prefix) throws IOException {
+            return delegate.list(prefix);
+        }
+
+        @Override
+        public boolean delete(String key) throws IOException {
+            return delegate.delete(key);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.BufferPoolExhaustedException;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.BufferPool;
+import ru.kontur.intern.repo.ImageIndex;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class BufferPoolTest extends AbstractTest {
+    @TempDir
+    Path storagePath;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void releasedBuffersAreReused() {
+        var pool = new BufferPool(4096, 1024, registry);
+
+        var lease = pool.acquire(1000);
+        var buffer = lease.getBuffer();
+        Assertions.assertTrue(buffer.isDirect());
+        Assertions.assertEquals(1000, buffer.remaining());
+        Assertions.assertEquals(1024, registry.get("chartographer.buffers.memory").tag("state", "used").gauge().value());
+        lease.close();
+        lease.close();
+
+        try (var reused = pool.acquire(600)) {
+            Assertions.assertSame(buffer, reused.getBuffer());
+            Assertions.assertEquals(600, reused.getBuffer().remaining());
+        }
+        Assertions.assertEquals(0, pool.getUsedBytes());
+        Assertions.assertEquals(1024, registry.get("chartographer.buffers.memory").tag("state", "free").gauge().value());
+    }
+
+    @Test
+    void exhaustedPoolFailsFast() {
+        var pool = new BufferPool(4096, 1024, registry);
+
+        try (var first = pool.acquire(2048)) {
+            try (var second = pool.acquire(1025)) {
+                Assertions.assertThrows(BufferPoolExhaustedException.class, () -> pool.acquire(1));
+            }
+            pool.acquire(2048).close();
+        }
+        Assertions.assertThrows(BufferPoolExhaustedException.class, () -> pool.acquire(4097));
+        Assertions.assertEquals(2, registry.get("chartographer.buffers.exhausted").counter().count());
+    }
+
+    @Test
+    void freeBuffersOfOtherSizesAreDropped() {
+        var pool = new BufferPool(4096, 1024, registry);
+        pool.acquire(4096).close();
+
+        try (var lease = pool.acquire(1024)) {
+            Assertions.assertEquals(1024, lease.getBuffer().capacity());
+            Assertions.assertEquals(1024, pool.getAllocatedBytes());
+        }
+    }
+
+    @Test
+    void bandsReadAheadReturnBuffers() throws IOException {
+        var storage = new BmpImageStorage(storagePath);
+        var bandExecutor = new BandExecutor(4, 1);
+        //Bands of 8 rows take a buffer of 1024 bytes each, only two of four bands read ahead fit
+        var pool = new BufferPool(2048, 1024, registry);
+        var imageRepo = new ImageRepo(storage, new ImageIndex(storage), 16, 8, 64, registry, bandExecutor, pool);
+        try {
+            var source = ImageIO.read(new File(TEST_IMAGE));
+            String id = imageRepo.saveImage(source);
+
+            Assertions.assertThrows(BufferPoolExhaustedException.class,
+                    () -> imageRepo.getImagePart(id, 0, 0, 20, 40).toBufferedImage());
+            Assertions.assertEquals(0, pool.getUsedBytes());
+
+            var largePool = new BufferPool(1 << 20, 1024, registry);
+            var largePoolRepo = new ImageRepo(storage, new ImageIndex(storage), 16, 8, 64, registry, bandExecutor,
+                    largePool);
+            Assertions.assertTrue(compareBufferedImages(source, largePoolRepo.readImage(id)));
+            Assertions.assertEquals(0, largePool.getUsedBytes());
+        } finally {
+            bandExecutor.close();
+            storage.close();
+        }
+    }
+}
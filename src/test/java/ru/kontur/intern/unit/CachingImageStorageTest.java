@@ -0,0 +1,237 @@
+package ru.kontur.intern.unit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.repo.storage.CachingImageStorage;
+import ru.kontur.intern.repo.storage.ImageStorage;
+import ru.kontur.intern.repo.storage.StoredImage;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CachingImageStorageTest extends AbstractTest {
+    private static final int BLOCK_SIZE = 16;
+    private static final int BLOCK_BYTES = BLOCK_SIZE * BLOCK_SIZE * 3;
+
+    @TempDir
+    Path storagePath;
+    private BmpImageStorage diskStorage;
+    private ImageRepo diskRepo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        diskStorage = new BmpImageStorage(storagePath);
+        diskRepo = new ImageRepo(diskStorage, 16);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        diskStorage.close();
+    }
+
+    @Test
+    void repeatedReadsHitCache() throws IOException {
+        try (var cache = new CachingImageStorage(diskStorage, BLOCK_SIZE, 1 << 20, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(cache, 16, BLOCK_SIZE, 64);
+            String id = imageRepo.saveImage(ImageIO.read(new File(TEST_IMAGE)));
+            long missesAfterWrite = cache.getMissCount();
+
+            var expected = ImageIO.read(new File("src/test/resources/TestImage/output/overlapOutput.bmp"));
+            Assertions.assertTrue(compareBufferedImages(expected, imageRepo.getImagePart(id, 10, 20, 20, 40).toBufferedImage()));
+            Assertions.assertTrue(compareBufferedImages(expected, imageRepo.getImagePart(id, 10, 20, 20, 40).toBufferedImage()));
+
+            Assertions.assertEquals(missesAfterWrite, cache.getMissCount());
+            Assertions.assertTrue(cache.getHitCount() > 0);
+        }
+    }
+
+    @Test
+    void writesReachStorageOnFlush() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = diskRepo.createImage(20, 40);
+        try (var cache = new CachingImageStorage(diskStorage, BLOCK_SIZE, 1 << 20, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(cache, 16, BLOCK_SIZE, 64);
+            imageRepo.writeImagePart(id, 0, 0, source);
+
+            Assertions.assertTrue(cache.getDirtyBytes() > 0);
+            Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(id)));
+            Assertions.assertFalse(compareBufferedImages(source, diskRepo.readImage(id)));
+
+            cache.flush();
+
+            Assertions.assertEquals(0, cache.getDirtyBytes());
+            Assertions.assertTrue(compareBufferedImages(source, diskRepo.readImage(id)));
+        }
+    }
+
+    @Test
+    void evictionWritesBackDirtyBlocks() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = diskRepo.createImage(20, 40);
+        //20x40 image consists of 6 blocks, only 2 of them fit
+        try (var cache = new CachingImageStorage(diskStorage, BLOCK_SIZE, 2 * BLOCK_BYTES, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(cache, 16, BLOCK_SIZE, 64);
+            imageRepo.writeImagePart(id, 0, 0, source);
+
+            Assertions.assertTrue(cache.getEvictionCount() > 0);
+            Assertions.assertTrue(cache.getCachedBytes() <= 2 * BLOCK_BYTES);
+            Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(id)));
+        }
+        //Closing the cache flushes what is left
+        Assertions.assertTrue(compareBufferedImages(source, diskRepo.readImage(id)));
+    }
+
+    @Test
+    void writesSurviveConcurrentEviction() throws Exception {
+        //64x16 image consists of 4 blocks, only 2 of them fit
+        String id = diskRepo.createImage(4 * BLOCK_SIZE, BLOCK_SIZE);
+        byte[] pixel = new byte[3];
+        var cache = new CachingImageStorage(diskStorage, BLOCK_SIZE, 2 * BLOCK_BYTES, Duration.ofHours(1));
+        try (cache) {
+            var writing = new AtomicBoolean(true);
+            var readers = new ArrayList<CompletableFuture<Void>>();
+            for (int blockX = 1; blockX < 4; blockX++) {
+                int x = blockX * BLOCK_SIZE;
+                readers.add(CompletableFuture.runAsync(() -> {
+                    try (var image = cache.open(id, false)) {
+                        while (writing.get()) {
+                            image.row(0, x, BLOCK_SIZE);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            try (var image = cache.open(id, true)) {
+                for (int i = 0; i < 20_000; i++) {
+                    pixel[0] = (byte) i;
+                    pixel[1] = (byte) (i >> 8);
+                    pixel[2] = (byte) (i >> 16);
+                    image.writeRow(3, 5, 1, pixel, 0);
+                    var row = image.row(3, 5, 1);
+                    Assertions.assertEquals(pixel[0], row.get(0));
+                    Assertions.assertEquals(pixel[1], row.get(1));
+                    Assertions.assertEquals(pixel[2], row.get(2));
+                }
+            } finally {
+                writing.set(false);
+            }
+            CompletableFuture.allOf(readers.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(cache.getEvictionCount() > 0);
+        }
+
+        Assertions.assertEquals(0, cache.getDirtyBytes());
+        try (var image = diskStorage.open(id, false)) {
+            var row = image.row(3, 5, 1);
+            Assertions.assertEquals(pixel[0], row.get(0));
+            Assertions.assertEquals(pixel[1], row.get(1));
+            Assertions.assertEquals(pixel[2], row.get(2));
+        }
+    }
+
+    @Test
+    void deleteInvalidatesBlocks() throws IOException {
+        try (var cache = new CachingImageStorage(diskStorage, BLOCK_SIZE, 1 << 20, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(cache, 16, BLOCK_SIZE, 64);
+            String id = imageRepo.saveImage(ImageIO.read(new File(TEST_IMAGE)));
+
+            imageRepo.deleteImage(id);
+
+            Assertions.assertEquals(0, cache.getCachedBytes());
+            Assertions.assertEquals(0, cache.getDirtyBytes());
+            Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(id));
+            Assertions.assertThrows(ImageNotFoundException.class, () -> diskRepo.getImageSize(id));
+        }
+    }
+
+    @Test
+    void writeBackWaitsForCompaction() throws Exception {
+        var compacting = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var openedWhileCompacting = new AtomicBoolean();
+        var delegate = new ImageStorage() {
+            private volatile boolean inCompaction;
+
+            @Override
+            public void create(String id, int width, int height) throws IOException {
+                diskStorage.create(id, width, height);
+            }
+
+            @Override
+            public StoredImage open(String id, boolean writable) throws IOException {
+                if (inCompaction) {
+                    openedWhileCompacting.set(true);
+                }
+                return diskStorage.open(id, writable);
+            }
+
+            @Override
+            public List<String> list() throws IOException {
+                return diskStorage.list();
+            }
+
+            @Override
+            public boolean delete(String id) throws IOException {
+                return diskStorage.delete(id);
+            }
+
+            @Override
+            public long compact(String id) throws IOException {
+                inCompaction = true;
+                compacting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inCompaction = false;
+                return 0;
+            }
+
+            @Override
+            public void sync(String id) throws IOException {
+                diskStorage.sync(id);
+            }
+        };
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        try (var cache = new CachingImageStorage(delegate, BLOCK_SIZE, 1 << 20, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(cache, 16, BLOCK_SIZE, 64);
+            String id = imageRepo.saveImage(source);
+
+            var compaction = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return cache.compact(id);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            Assertions.assertTrue(compacting.await(5, TimeUnit.SECONDS));
+            var flush = CompletableFuture.runAsync(cache::flush);
+            Thread.sleep(50);
+            Assertions.assertFalse(flush.isDone());
+            release.countDown();
+
+            compaction.get(5, TimeUnit.SECONDS);
+            flush.get(5, TimeUnit.SECONDS);
+            Assertions.assertFalse(openedWhileCompacting.get());
+            Assertions.assertEquals(0, cache.getDirtyBytes());
+            Assertions.assertTrue(compareBufferedImages(source, diskRepo.readImage(id)));
+        }
+    }
+}
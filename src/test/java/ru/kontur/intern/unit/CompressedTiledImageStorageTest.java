@@ -0,0 +1,117 @@
+package ru.kontur.intern.unit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru.kontur.intern.bmp.BmpReader;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.TileCodec;
+import ru.kontur.intern.repo.storage.TiledImageStorage;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class CompressedTiledImageStorageTest extends AbstractTest {
+    private static final int TILE_SIZE = 16;
+
+    @TempDir
+    Path storagePath;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"deflate", "rle"})
+    void codecRestoresTiles(String codecName) throws IOException {
+        var codec = TileCodec.of(codecName);
+        byte[] noise = new byte[TILE_SIZE * TILE_SIZE * 3];
+        new Random(42).nextBytes(noise);
+        byte[] mixed = noise.clone();
+        Arrays.fill(mixed, 100, 400, (byte) 0);
+        Arrays.fill(mixed, 500, mixed.length, (byte) 7);
+
+        for (byte[] pixels : new byte[][]{noise, mixed, new byte[noise.length]}) {
+            byte[] decoded = new byte[pixels.length];
+            codec.decode(codec.encode(pixels), decoded);
+            Assertions.assertArrayEquals(pixels, decoded);
+        }
+        //Black tile of the default size
+        Assertions.assertTrue(codec.encode(new byte[512 * 512 * 3]).length < 512 * 512 * 3 / 50);
+        byte[] encoded = codec.encode(noise);
+        Assertions.assertThrows(IOException.class,
+                () -> codec.decode(Arrays.copyOf(encoded, encoded.length / 2), new byte[noise.length]));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"deflate", "rle"})
+    void fragmentsMatchDrawImage(String codec) throws IOException {
+        var imageRepo = new ImageRepo(new TiledImageStorage(storagePath, TILE_SIZE, TileCodec.of(codec)), 16);
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(40, 40);
+
+        try (var input = Files.newInputStream(Path.of(TEST_IMAGE))) {
+            imageRepo.writeImagePart(id, 30, 20, BmpReader.open(input));
+        }
+        imageRepo.writeImagePart(id, -5, -10, source);
+
+        var expected = ImageIO.read(new File(BLANK_IMAGE));
+        expected.getGraphics().drawImage(source, 30, 20, null);
+        expected.getGraphics().drawImage(source, -5, -10, null);
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)));
+        Assertions.assertTrue(compareBufferedImages(expected.getSubimage(10, 5, 25, 30),
+                imageRepo.getImagePart(id, 10, 5, 25, 30).toBufferedImage()));
+    }
+
+    @Test
+    void blackTilesAreRemoved() throws IOException {
+        var imageRepo = new ImageRepo(new TiledImageStorage(storagePath, TILE_SIZE, TileCodec.of("deflate")), 16);
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+        Assertions.assertTrue(countTiles(id) > 0);
+
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(BLANK_IMAGE)));
+
+        Assertions.assertEquals(0, countTiles(id));
+        Assertions.assertTrue(compareBufferedImages(ImageIO.read(new File(BLANK_IMAGE)), imageRepo.readImage(id)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"deflate", "rle"})
+    void flatTilesAreSmall(String codec) throws IOException {
+        var imageRepo = new ImageRepo(new TiledImageStorage(storagePath, TILE_SIZE, TileCodec.of(codec)), 16);
+        String id = imageRepo.createImage(64, 64);
+        var fragment = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        var graphics = fragment.getGraphics();
+        graphics.setColor(Color.ORANGE);
+        graphics.fillRect(0, 0, 64, 32);
+
+        imageRepo.writeImagePart(id, 0, 0, fragment);
+
+        Assertions.assertEquals(8, countTiles(id));
+        Assertions.assertTrue(tileBytes(id) < 8 * TILE_SIZE * TILE_SIZE * 3 / 10);
+        Assertions.assertTrue(compareBufferedImages(fragment, imageRepo.readImage(id)));
+    }
+
+    private long countTiles(String id) throws IOException {
+        try (Stream<Path> files = Files.list(storagePath.resolve(id))) {
+            return files.filter(file -> file.getFileName().toString().matches("\\d+-\\d+\\.\\w+")).count();
+        }
+    }
+
+    private long tileBytes(String id) throws IOException {
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(storagePath.resolve(id))) {
+            for (Path file : (Iterable<Path>) files.filter(file -> !file.endsWith("header"))::iterator) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+}
@@ -1,28 +1,52 @@
 package ru.kontur.intern.unit;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import ru.kontur.intern.bmp.RawRgbReader;
 import ru.kontur.intern.config.ConverterConfig;
 import ru.kontur.intern.config.ImageSizeConfig;
 import ru.kontur.intern.controller.ImageController;
+import ru.kontur.intern.converter.RawRgbFragmentHttpMessageConverter;
+import ru.kontur.intern.exception.AdmissionRejectedException;
+import ru.kontur.intern.exception.ChartaQueueFullException;
+import ru.kontur.intern.exception.IngestOverloadedException;
+import ru.kontur.intern.exception.OperationNotFoundException;
+import ru.kontur.intern.model.ImageCoverage;
+import ru.kontur.intern.model.IngestOperation;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.BufferPool;
+import ru.kontur.intern.repo.ImageIndex;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.service.AdmissionControl;
 import ru.kontur.intern.service.ImageService;
+import ru.kontur.intern.service.IngestService;
 
 import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest({ImageController.class, ConverterConfig.class})
@@ -33,12 +57,18 @@ public class ControllerTest extends AbstractTest {
     @MockBean
     private ImageService service;
 
+    @MockBean
+    private IngestService ingestService;
+
+    @MockBean
+    private AdmissionControl admissionControl;
+
     @ParameterizedTest()
     @CsvSource({"1,1", "50,50",
             ImageSizeConfig.IMAGE_SEGMENT_HEIGHT_LIMIT+ "," + ImageSizeConfig.IMAGE_SEGMENT_HEIGHT_LIMIT})
     void getImageOk(String width, String height) throws Exception {
         var expectedResponseImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(expectedResponseImage).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(fragmentOf(expectedResponseImage, 0, 0, 20, 40)).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
 
         var responseContent = mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
                         .param("width", width)
@@ -57,7 +87,7 @@ public class ControllerTest extends AbstractTest {
             ImageSizeConfig.FULL_IMAGE_WIDTH_LIMIT+1 + "," + ImageSizeConfig.IMAGE_SEGMENT_HEIGHT_LIMIT+1})
     void getImageSizeBadRequest(String width, String height) throws Exception {
         var responseImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(responseImage).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(fragmentOf(responseImage, 0, 0, 20, 40)).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
 
         mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
                         .param("width", width)
@@ -72,7 +102,7 @@ public class ControllerTest extends AbstractTest {
     @CsvSource({"-1,0", "0,-1", "-10,-10"})
     void getImageNegativeOffsetBadRequest(String x, String y) throws Exception {
         var responseImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(responseImage).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(fragmentOf(responseImage, 0, 0, 20, 40)).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
 
         mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
                         .param("width", "20")
@@ -83,6 +113,31 @@ public class ControllerTest extends AbstractTest {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    void getImageLevel() throws Exception {
+        var responseImage = ImageIO.read(new File(TEST_IMAGE));
+        doReturn(fragmentOf(responseImage, 0, 0, 20, 40)).when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("level", "2"))
+                .andDo(print())
+                .andExpect(status().isOk());
+        verify(service).getImagePart(TARGET_IMAGE_ID, 20, 40, 0, 0, 2);
+
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("level", "-1"))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
     @ParameterizedTest()
     @CsvSource({"1,1", "50,50",
             ImageSizeConfig.FULL_IMAGE_WIDTH_LIMIT + "," + ImageSizeConfig.FULL_IMAGE_HEIGHT_LIMIT})
@@ -163,6 +218,322 @@ public class ControllerTest extends AbstractTest {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    void insertImageAsyncAccepted() throws Exception {
+        var operation = new IngestOperation("operation", TARGET_IMAGE_ID, 0, 0, 20, 40);
+        doReturn(operation).when(ingestService).submit(eq(TARGET_IMAGE_ID), eq(20), eq(40), eq(0), eq(0), any());
+
+        mockMvc.perform(post(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .content(Files.readAllBytes(Path.of(TEST_IMAGE)))
+                        .contentType("image/bmp")
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("async", "true"))
+                .andDo(print())
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, "/operations/operation"))
+                .andExpect(jsonPath("$.id").value("operation"))
+                .andExpect(jsonPath("$.status").value("QUEUED"));
+        verify(service, never()).insertImage(anyString(), anyInt(), anyInt(), anyInt(), anyInt(),
+                any(InputStream.class));
+    }
+
+    @Test
+    void insertImageAsyncQueueFull() throws Exception {
+        doThrow(new ChartaQueueFullException(TARGET_IMAGE_ID, 1024))
+                .when(ingestService).submit(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), any());
+
+        mockMvc.perform(post(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .content(Files.readAllBytes(Path.of(TEST_IMAGE)))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("async", "true"))
+                .andDo(print())
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    void getImageNotAdmitted() throws Exception {
+        when(admissionControl.admit(anyString(), anyLong())).thenThrow(new AdmissionRejectedException("Overloaded", 3));
+
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0"))
+                .andDo(print())
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"));
+        //Fragment of 20x40 pixels costs its pixel bytes
+        verify(admissionControl).admit(anyString(), eq(20L * 40 * 3));
+        verify(service, never()).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+
+        mockMvc.perform(delete(String.format("/chartas/%s/", TARGET_IMAGE_ID)))
+                .andExpect(status().isOk());
+        verifyNoMoreInteractions(admissionControl);
+    }
+
+    @ParameterizedTest()
+    @CsvSource({"4611686018427387904,4", "99999999999999999999,1",
+            ImageSizeConfig.IMAGE_SEGMENT_WIDTH_LIMIT + 1 + ",1", "-100,-100"})
+    void getImageOutOfRangeNotCharged(String width, String height) throws Exception {
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", width)
+                        .param("height", height)
+                        .param("x", "0")
+                        .param("y", "0"))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+        verifyNoInteractions(admissionControl);
+    }
+
+    @Test
+    void getImageBufferPoolExhausted(@TempDir Path storagePath) throws Exception {
+        //Bands of 16 rows of 20 pixels take 1KB buffers, the pool holds one buffer of the two read ahead
+        try (var storage = new BmpImageStorage(storagePath);
+             var bandExecutor = new BandExecutor(2, 1)) {
+            var registry = new SimpleMeterRegistry();
+            var bufferPool = new BufferPool(1024, 64, registry);
+            var imageRepo = new ImageRepo(storage, new ImageIndex(storage), 16, 16, 64, registry, bandExecutor,
+                    bufferPool);
+            String id = imageRepo.createImage(20, 40);
+            doReturn(imageRepo.getImagePart(id, 0, 0, 20, 40))
+                    .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+
+            var response = mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                            .param("width", "20")
+                            .param("height", "40")
+                            .param("x", "0")
+                            .param("y", "0"))
+                    .andDo(print())
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"))
+                    .andExpect(header().doesNotExist(HttpHeaders.ETAG))
+                    .andExpect(header().doesNotExist(HttpHeaders.ACCEPT_RANGES))
+                    .andReturn().getResponse();
+            Assertions.assertFalse(response.getContentAsString().startsWith("BM"));
+            Assertions.assertEquals(0, bufferPool.getUsedBytes());
+        }
+    }
+
+    @Test
+    void getImageBufferPoolExhaustedPastImageBottom(@TempDir Path storagePath) throws Exception {
+        //BMP rows go bottom-up, black rows past the image are the first rows of the response,
+        //they take more than the response buffer
+        try (var storage = new BmpImageStorage(storagePath);
+             var bandExecutor = new BandExecutor(2, 1)) {
+            var registry = new SimpleMeterRegistry();
+            var bufferPool = new BufferPool(1024, 64, registry);
+            var imageRepo = new ImageRepo(storage, new ImageIndex(storage), 16, 16, 64, registry, bandExecutor,
+                    bufferPool);
+            String id = imageRepo.createImage(20, 40);
+            doReturn(imageRepo.getImagePart(id, 0, 10, 20, 200))
+                    .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+
+            var response = mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                            .param("width", "20")
+                            .param("height", "200")
+                            .param("x", "0")
+                            .param("y", "10"))
+                    .andDo(print())
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"))
+                    .andReturn().getResponse();
+            Assertions.assertFalse(response.getContentAsString().startsWith("BM"));
+            Assertions.assertEquals(0, bufferPool.getUsedBytes());
+        }
+    }
+
+    @Test
+    void insertImageAsyncOverloaded() throws Exception {
+        doThrow(new IngestOverloadedException(100, 100))
+                .when(ingestService).submit(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), any());
+
+        mockMvc.perform(post(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .content(Files.readAllBytes(Path.of(TEST_IMAGE)))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("async", "true"))
+                .andDo(print())
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    void getImageNotModified() throws Exception {
+        doReturn(fragmentOf(ImageIO.read(new File(TEST_IMAGE)), 0, 0, 20, 40))
+                .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(7L).when(service).getVersion(TARGET_IMAGE_ID, 20, 40, 0, 0, 0);
+
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"7\""));
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"7\""))
+                .andDo(print())
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+    }
+
+    @Test
+    void getImageRange() throws Exception {
+        doReturn(fragmentOf(ImageIO.read(new File(TEST_IMAGE)), 0, 0, 20, 40))
+                .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(7L).when(service).getVersion(TARGET_IMAGE_ID, 20, 40, 0, 0, 0);
+        byte[] whole = mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        //The range covers the end of the header, three whole rows and parts of two more
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.RANGE, "bytes=50-299")
+                        .header(HttpHeaders.IF_RANGE, "\"7\""))
+                .andDo(print())
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 50-299/" + whole.length))
+                .andExpect(content().bytes(Arrays.copyOfRange(whole, 50, 300)));
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.RANGE, "bytes=-100"))
+                .andDo(print())
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes(Arrays.copyOfRange(whole, whole.length - 100, whole.length)));
+        //The client has a part of another version of the fragment
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.RANGE, "bytes=50-299")
+                        .header(HttpHeaders.IF_RANGE, "\"6\""))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(whole));
+    }
+
+    @Test
+    void getImageRangeNotSatisfiable() throws Exception {
+        doReturn(fragmentOf(ImageIO.read(new File(TEST_IMAGE)), 0, 0, 20, 40))
+                .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+
+        mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.RANGE, "bytes=2454-"))
+                .andDo(print())
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */2454"));
+    }
+
+    @Test
+    void getImagePng() throws Exception {
+        var expectedResponseImage = ImageIO.read(new File(TEST_IMAGE));
+        doReturn(fragmentOf(expectedResponseImage, 0, 0, 20, 40))
+                .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(7L).when(service).getVersion(TARGET_IMAGE_ID, 20, 40, 0, 0, 0);
+
+        var responseContent = mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "20")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.ACCEPT, "image/bmp;q=0.5, image/png"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"7-png\""))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+                .andReturn().getResponse().getContentAsByteArray();
+        var actualResponseImage = ImageIO.read(new ByteArrayInputStream(responseContent));
+        Assertions.assertTrue(compareBufferedImages(expectedResponseImage, actualResponseImage));
+    }
+
+    @Test
+    void getImageRawRgb() throws Exception {
+        var expectedResponseImage = ImageIO.read(new File(TEST_IMAGE));
+        //The fragment is wider than the image, extra pixels are black
+        doReturn(fragmentOf(expectedResponseImage, 0, 0, 30, 40))
+                .when(service).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt());
+
+        var responseContent = mockMvc.perform(get(String.format("/chartas/%s/", TARGET_IMAGE_ID))
+                        .param("width", "30")
+                        .param("height", "40")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header(HttpHeaders.ACCEPT, RawRgbFragmentHttpMessageConverter.RAW_RGB_VALUE))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(RawRgbFragmentHttpMessageConverter.RAW_RGB))
+                .andReturn().getResponse().getContentAsByteArray();
+        var reader = RawRgbReader.open(new ByteArrayInputStream(responseContent));
+        Assertions.assertEquals(30, reader.getWidth());
+        Assertions.assertEquals(40, reader.getHeight());
+        var actualResponseImage = new BufferedImage(30, 40, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] row = new byte[reader.getRowSize()];
+        while (reader.hasNextRow()) {
+            int y = reader.readRow(row);
+            for (int x = 0; x < 30; x++) {
+                actualResponseImage.setRGB(x, y,
+                        (row[x * 3 + 2] & 0xFF) << 16 | (row[x * 3 + 1] & 0xFF) << 8 | row[x * 3] & 0xFF);
+            }
+        }
+        var expected = new BufferedImage(30, 40, BufferedImage.TYPE_3BYTE_BGR);
+        expected.getGraphics().drawImage(expectedResponseImage, 0, 0, null);
+        Assertions.assertTrue(compareBufferedImages(expected, actualResponseImage));
+    }
+
+    @Test
+    void getCoverage() throws Exception {
+        doReturn(new ImageCoverage(512, 4, 1, ImageCoverage.Status.PARTIAL))
+                .when(service).getCoverage(TARGET_IMAGE_ID, 0, 0, null, null);
+
+        mockMvc.perform(get(String.format("/chartas/%s/coverage/", TARGET_IMAGE_ID)))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.cells").value(4))
+                .andExpect(jsonPath("$.coveredCells").value(1))
+                .andExpect(jsonPath("$.status").value("PARTIAL"));
+    }
+
+    @Test
+    void getOperationNotFound() throws Exception {
+        doThrow(new OperationNotFoundException("operation")).when(ingestService).getOperation("operation");
+
+        mockMvc.perform(get("/operations/operation/"))
+                .andDo(print())
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     void deleteImageOk() throws Exception {
         doNothing().when(service).deleteImage(anyString());
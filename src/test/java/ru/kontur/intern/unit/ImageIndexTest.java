@@ -0,0 +1,161 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.Metrics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.model.ImageCoverage;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.ImageIndex;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.Pyramid;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.mockito.Mockito.*;
+
+public class ImageIndexTest extends AbstractTest {
+    @TempDir
+    Path storagePath;
+    private BmpImageStorage storage;
+    private Path indexFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        storage = new BmpImageStorage(storagePath);
+        indexFile = storagePath.resolve("images.index");
+    }
+
+    @Test
+    void indexIsRebuiltFromHeaders() throws IOException {
+        String id = new ImageRepo(storage, 16).createImage(20, 40);
+
+        var index = ImageIndex.open(storage, indexFile);
+
+        Assertions.assertEquals(1, index.size());
+        Assertions.assertEquals(20, index.get(id).getWidth());
+        Assertions.assertEquals(40, index.get(id).getHeight());
+    }
+
+    @Test
+    void savedIndexIsLoadedOnce() throws IOException {
+        var index = ImageIndex.open(storage, indexFile);
+        var imageRepo = repo(index);
+        String id = imageRepo.createImage(20, 40);
+        imageRepo.writeImagePart(id, 0, 0, new BufferedImage(5, 5, BufferedImage.TYPE_3BYTE_BGR));
+        var metadata = index.get(id);
+        index.close();
+
+        var loaded = ImageIndex.open(storage, indexFile);
+
+        Assertions.assertEquals(metadata, loaded.get(id));
+        //The file is written again on close, after a crash the index is rebuilt
+        Assertions.assertFalse(Files.exists(indexFile));
+    }
+
+    @Test
+    void unreadableIndexIsRebuilt() throws IOException {
+        var index = ImageIndex.open(storage, indexFile);
+        var imageRepo = repo(index);
+        String first = imageRepo.createImage(20, 40);
+        String second = imageRepo.createImage(30, 10);
+        index.close();
+        var saved = Files.readAllBytes(indexFile);
+        Files.write(indexFile, Arrays.copyOf(saved, saved.length - 3));
+
+        var truncated = ImageIndex.open(storage, indexFile);
+
+        Assertions.assertEquals(2, truncated.size());
+        Assertions.assertEquals(30, truncated.get(second).getWidth());
+        Assertions.assertFalse(Files.exists(indexFile));
+
+        Files.write(indexFile, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        var corrupt = ImageIndex.open(storage, indexFile);
+
+        Assertions.assertEquals(2, corrupt.size());
+        Assertions.assertEquals(40, corrupt.get(first).getHeight());
+        Assertions.assertFalse(Files.exists(indexFile));
+    }
+
+    @Test
+    void missingImageIsNotLookedUpInStorage() throws IOException {
+        var index = ImageIndex.open(storage, indexFile);
+        String id = new ImageRepo(storage, 16).createImage(20, 40);
+
+        Assertions.assertThrows(ImageNotFoundException.class, () -> index.get(id));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> repo(index).getImageSize(id));
+    }
+
+    @Test
+    void writesChangeVersion() throws IOException {
+        var index = ImageIndex.open(storage, indexFile);
+        var imageRepo = repo(index);
+        String id = imageRepo.createImage(20, 40);
+        long created = index.get(id).getVersion();
+
+        imageRepo.writeImagePart(Pyramid.levelId(id, 1), 0, 0, new BufferedImage(5, 5, BufferedImage.TYPE_3BYTE_BGR));
+        long levelWritten = index.get(id).getVersion();
+        imageRepo.updateImage(id, new BufferedImage(20, 40, BufferedImage.TYPE_3BYTE_BGR));
+
+        Assertions.assertTrue(created < levelWritten);
+        Assertions.assertTrue(levelWritten < index.get(id).getVersion());
+        Assertions.assertEquals(new Dimension(10, 20), imageRepo.getImageSize(Pyramid.levelId(id, 1)));
+
+        imageRepo.deleteImage(id);
+
+        Assertions.assertThrows(ImageNotFoundException.class, () -> index.get(id));
+    }
+
+    @Test
+    void coverageIsSavedWithIndex() throws IOException {
+        var index = ImageIndex.open(storage, indexFile, 8);
+        var imageRepo = repo(index);
+        String id = imageRepo.createImage(20, 40);
+
+        Assertions.assertEquals(new ImageCoverage(8, 15, 0, ImageCoverage.Status.NONE), index.getCoverage(id, 0, 0, 20, 40));
+        imageRepo.writeImagePart(id, 10, 12, new BufferedImage(5, 5, BufferedImage.TYPE_3BYTE_BGR));
+        index.close();
+
+        var loaded = ImageIndex.open(storage, indexFile, 8);
+        //Cells (1, 1) and (1, 2) are written
+        Assertions.assertEquals(new ImageCoverage(8, 15, 2, ImageCoverage.Status.PARTIAL), loaded.getCoverage(id, 0, 0, 20, 40));
+        Assertions.assertEquals(ImageCoverage.Status.FULL, loaded.getCoverage(id, 8, 8, 8, 8).getStatus());
+        Assertions.assertEquals(ImageCoverage.Status.NONE, loaded.getCoverage(id, 0, 24, 20, 16).getStatus());
+        //Coverage of a rebuilt index is lost
+        Assertions.assertEquals(ImageCoverage.Status.UNKNOWN,
+                ImageIndex.open(storage, indexFile, 8).getCoverage(id, 0, 0, 20, 40).getStatus());
+    }
+
+    @Test
+    void uncoveredAreasAreNotRead() throws IOException {
+        var spiedStorage = spy(storage);
+        var imageRepo = new ImageRepo(spiedStorage, ImageIndex.open(spiedStorage, indexFile, 8), 16, 8, 64,
+                Metrics.globalRegistry, BandExecutor.serial());
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, source);
+
+        var black = imageRepo.getImagePart(id, 24, 0, 16, 40).toBufferedImage();
+        var levelBlack = imageRepo.getImagePart(Pyramid.levelId(id, 1), 12, 0, 8, 20).toBufferedImage();
+        verify(spiedStorage, never()).open(anyString(), eq(false));
+
+        Assertions.assertTrue(compareBufferedImages(new BufferedImage(16, 40, BufferedImage.TYPE_3BYTE_BGR), black));
+        Assertions.assertTrue(compareBufferedImages(new BufferedImage(8, 20, BufferedImage.TYPE_3BYTE_BGR), levelBlack));
+        Assertions.assertTrue(compareBufferedImages(source, imageRepo.getImagePart(id, 0, 0, 20, 40).toBufferedImage()));
+        verify(spiedStorage).open(id, false);
+    }
+
+    private ImageRepo repo(ImageIndex index) {
+        return new ImageRepo(storage, index, 16, 8, 64, Metrics.globalRegistry, BandExecutor.serial());
+    }
+}
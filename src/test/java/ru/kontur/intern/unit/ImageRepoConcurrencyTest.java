@@ -0,0 +1,199 @@
+package ru.kontur.intern.unit;
+
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.bmp.BmpHeader;
+import ru.kontur.intern.bmp.BmpReader;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@Log4j2
+public class ImageRepoConcurrencyTest extends AbstractTest {
+    private static final int REGION_SIZE = 16;
+    private static final int WRITES_PER_WRITER = 10;
+    /**
+     * Disjoint regions sharing a stripe wait for each other, so collisions of stripes are made unlikely
+     */
+    private static final int REGION_STRIPED_SIZE = 1 << 20;
+
+    @TempDir
+    Path storagePath;
+    private ImageRepo imageRepo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        imageRepo = new ImageRepo(new BmpImageStorage(storagePath), 16, REGION_SIZE, REGION_STRIPED_SIZE);
+    }
+
+    @Test
+    void disjointWritersDoNotWaitForEachOther() throws Exception {
+        String id = imageRepo.createImage(64, 64);
+        var release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            //Holds write locks of the top-left region until released
+            var blocked = executor.submit(() -> write(id, 0, 0, new BlockingStream(fragment(Color.RED), release)));
+
+            var disjoint = executor.submit(() -> write(id, 32, 32, fragment(Color.GREEN)));
+            disjoint.get(5, TimeUnit.SECONDS);
+            var disjointRead = executor.submit(() -> imageRepo.getImagePart(id, 32, 0, 32, 64).toBufferedImage());
+            disjointRead.get(5, TimeUnit.SECONDS);
+
+            var overlapping = executor.submit(() -> write(id, 8, 8, fragment(Color.BLUE)));
+            Assertions.assertThrows(TimeoutException.class, () -> overlapping.get(200, TimeUnit.MILLISECONDS));
+            var delete = executor.submit(() -> imageRepo.deleteImage(id));
+            Assertions.assertThrows(TimeoutException.class, () -> delete.get(200, TimeUnit.MILLISECONDS));
+
+            release.countDown();
+            blocked.get(5, TimeUnit.SECONDS);
+            overlapping.get(5, TimeUnit.SECONDS);
+            delete.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void throughputScalesWithDisjointWriters() throws Exception {
+        double singleWriterThroughput = measureThroughput(1);
+        for (int writers : new int[]{2, 4, 8}) {
+            double throughput = measureThroughput(writers);
+            log.info("{} disjoint writers: {} writes/s, single writer: {} writes/s",
+                    writers, Math.round(throughput), Math.round(singleWriterThroughput));
+            Assertions.assertTrue(throughput > singleWriterThroughput * writers / 2,
+                    String.format("%s writers reached %.1f writes/s, single writer %.1f writes/s",
+                            writers, throughput, singleWriterThroughput));
+        }
+    }
+
+    /**
+     * Every writer repeatedly uploads fragments into its own column of regions of a single image.
+     * Uploads are slowed down like network streams are, so the time is spent holding region locks.
+     *
+     * @return writes per second
+     */
+    private double measureThroughput(int writers) throws Exception {
+        String id = imageRepo.createImage(REGION_SIZE * writers, REGION_SIZE * WRITES_PER_WRITER);
+        var colors = new Color[]{Color.RED, Color.GREEN, Color.BLUE, Color.WHITE};
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int writer = 0; writer < writers; writer++) {
+                int x = writer * REGION_SIZE;
+                var color = colors[writer % colors.length];
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < WRITES_PER_WRITER; i++) {
+                        write(id, x, i * REGION_SIZE, new SlowStream(fragment(color)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            var image = imageRepo.readImage(id);
+            for (int writer = 0; writer < writers; writer++) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    Assertions.assertEquals(colors[writer % colors.length].getRGB(), image.getRGB(writer * REGION_SIZE, y));
+                }
+            }
+            return writers * WRITES_PER_WRITER / (elapsed / 1e9);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void write(String id, int x, int y, byte[] fragment) {
+        write(id, x, y, new ByteArrayInputStream(fragment));
+    }
+
+    private void write(String id, int x, int y, ByteArrayInputStream fragment) {
+        try {
+            imageRepo.writeImagePart(id, x, y, BmpReader.open(fragment));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] fragment(Color color) {
+        var image = new BufferedImage(REGION_SIZE, REGION_SIZE, BufferedImage.TYPE_INT_RGB);
+        var graphics = image.getGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, REGION_SIZE, REGION_SIZE);
+        var output = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "bmp", output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Stream which delivers pixel data row by row with a delay, like a slow client upload.
+     */
+    private static class SlowStream extends ByteArrayInputStream {
+        SlowStream(byte[] content) {
+            super(content);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            if (pos >= BmpHeader.HEADER_SIZE) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.read(b, off, len);
+        }
+    }
+
+    /**
+     * Stream which stops before pixel data until released.
+     */
+    private static class BlockingStream extends ByteArrayInputStream {
+        private final CountDownLatch release;
+
+        BlockingStream(byte[] content, CountDownLatch release) {
+            super(content);
+            this.release = release;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= BmpHeader.HEADER_SIZE) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -1,26 +1,51 @@
 package ru.kontur.intern.unit;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import ru.kontur.intern.bmp.BmpReader;
+import ru.kontur.intern.exception.IllegalImageFormatException;
 import ru.kontur.intern.exception.ImageNotFoundException;
 import ru.kontur.intern.exception.NoAppropriateWriterException;
+import ru.kontur.intern.repo.BandExecutor;
 import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.repo.storage.ImageStorage;
+import ru.kontur.intern.repo.storage.JournalingImageStorage;
+import ru.kontur.intern.repo.storage.TileCodec;
+import ru.kontur.intern.repo.storage.TiledImageStorage;
 
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
-@SpringBootTest(args = "src/test/resources/test")
+@SpringBootTest(args = "target/test-storage/repo")
 public class ImageRepoTest extends AbstractTest {
     @Autowired
     private ImageRepo imageRepo;
+    @Autowired
+    private ImageStorage imageStorage;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     @AfterAll
     static void cleanUp() throws IOException {
@@ -32,6 +57,16 @@ public class ImageRepoTest extends AbstractTest {
         }
     }
 
+    @Test
+    void defaultStorageExposesCacheMeters() {
+        //The cache is wrapped by the journal with default properties
+        Assertions.assertTrue(imageStorage instanceof JournalingImageStorage);
+
+        Assertions.assertNotNull(meterRegistry.find("chartographer.cache.requests").tag("result", "hit").functionCounter());
+        Assertions.assertNotNull(meterRegistry.find("chartographer.cache.evictions").functionCounter());
+        Assertions.assertNotNull(meterRegistry.find("chartographer.cache.size").tag("state", "dirty").gauge());
+    }
+
     @Test
     void crudTest() throws IOException {
         var image = ImageIO.read(new File(BLANK_IMAGE));
@@ -49,10 +84,148 @@ public class ImageRepoTest extends AbstractTest {
         Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.readImage(id));
     }
 
+    @Test
+    void getImagePartTest() throws IOException {
+        var image = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.saveImage(image);
+
+        Assertions.assertEquals(new Dimension(20, 40), imageRepo.getImageSize(id));
+        Assertions.assertTrue(compareBufferedImages(image, imageRepo.getImagePart(id, 0, 0, 20, 40).toBufferedImage()));
+        Assertions.assertTrue(compareBufferedImages(image.getSubimage(5, 7, 10, 30),
+                imageRepo.getImagePart(id, 5, 7, 10, 30).toBufferedImage()));
+
+        //Parts outside of the image are black
+        var expected = ImageIO.read(new File("src/test/resources/TestImage/output/overlapOutput.bmp"));
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.getImagePart(id, 10, 20, 20, 40).toBufferedImage()));
+    }
+
+    @Test
+    void writeImagePartTest() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.saveImage(ImageIO.read(new File(BLANK_IMAGE)));
+
+        imageRepo.writeImagePart(id, 0, 0, source);
+        var expected = ImageIO.read(new File("src/test/resources/TestImage/output/output1.bmp"));
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)));
+
+        //Only the part inside the image is written
+        imageRepo.writeImagePart(id, 30, 20, source);
+        expected.getGraphics().drawImage(source, 30, 20, null);
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)));
+    }
+
+    @Test
+    void writeImagePartMatchesDrawImageTest() throws IOException {
+        var decoded = ImageIO.read(new File(TEST_IMAGE));
+        for (int type : new int[]{BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR}) {
+            var source = new BufferedImage(decoded.getWidth(), decoded.getHeight(), type);
+            source.getGraphics().drawImage(decoded, 0, 0, null);
+            for (int[] offset : new int[][]{{0, 0}, {-5, -30}, {25, 10}, {-20, 0}}) {
+                var expected = ImageIO.read(new File(BLANK_IMAGE));
+                String id = imageRepo.saveImage(expected);
+
+                imageRepo.writeImagePart(id, offset[0], offset[1], source);
+
+                expected.getGraphics().drawImage(source, offset[0], offset[1], null);
+                Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)),
+                        String.format("Type %s, offset %s, %s", type, offset[0], offset[1]));
+            }
+            //Subimages share the raster of their parent
+            String id = imageRepo.saveImage(ImageIO.read(new File(BLANK_IMAGE)));
+            imageRepo.writeImagePart(id, 0, 0, source.getSubimage(5, 7, 10, 30));
+            var expected = ImageIO.read(new File(BLANK_IMAGE));
+            expected.getGraphics().drawImage(source.getSubimage(5, 7, 10, 30), 0, 0, null);
+            Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"bmp", "deflate"})
+    void parallelBandsMatchSerialTest(String format, @TempDir Path storagePath) throws IOException {
+        //Regions of 8 rows split fragments into several bands, every fragment is large enough to be split
+        var storage = format.equals("bmp") ? new BmpImageStorage(storagePath)
+                : new TiledImageStorage(storagePath, 8, TileCodec.of(format));
+        var bandExecutor = new BandExecutor(4, 1);
+        var parallelRepo = new ImageRepo(storage, 16, 8, 64, Metrics.globalRegistry, bandExecutor);
+        try {
+            var source = new BufferedImage(30, 50, BufferedImage.TYPE_INT_RGB);
+            var random = new Random(42);
+            for (int y = 0; y < source.getHeight(); y++) {
+                for (int x = 0; x < source.getWidth(); x++) {
+                    source.setRGB(x, y, random.nextInt(0x1000000));
+                }
+            }
+            for (int[] offset : new int[][]{{0, 0}, {-5, -13}, {17, 3}}) {
+                var expected = ImageIO.read(new File(BLANK_IMAGE));
+                String id = parallelRepo.createImage(40, 40);
+
+                parallelRepo.writeImagePart(id, offset[0], offset[1], source);
+
+                expected.getGraphics().drawImage(source, offset[0], offset[1], null);
+                Assertions.assertTrue(compareBufferedImages(expected, parallelRepo.readImage(id)));
+                //Bottom-up reads get bands in reverse order, rows past the image are black
+                var fragment = parallelRepo.getImagePart(id, 3, 5, 45, 50);
+                List<byte[]> rows = new ArrayList<>();
+                fragment.readRows(true, (pixels, blackPixels) -> {
+                    byte[] row = new byte[45 * 3];
+                    pixels.get(row, 0, pixels.remaining());
+                    rows.add(row);
+                });
+                Collections.reverse(rows);
+                var topDown = fragment.toBufferedImage();
+                for (int y = 0; y < 50; y++) {
+                    for (int x = 0; x < 45; x++) {
+                        int rgb = (rows.get(y)[x * 3 + 2] & 0xFF) << 16 | (rows.get(y)[x * 3 + 1] & 0xFF) << 8
+                                | rows.get(y)[x * 3] & 0xFF;
+                        Assertions.assertEquals(topDown.getRGB(x, y) & 0xFFFFFF, rgb);
+                        int expectedRgb = x + 3 < 40 && y + 5 < 40 ? expected.getRGB(x + 3, y + 5) : 0;
+                        Assertions.assertEquals(expectedRgb & 0xFFFFFF, rgb);
+                    }
+                }
+            }
+        } finally {
+            bandExecutor.close();
+            storage.close();
+        }
+    }
+
+    @Test
+    void writeImagePartStreamTest() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.saveImage(ImageIO.read(new File(BLANK_IMAGE)));
+
+        try (var input = Files.newInputStream(Path.of(TEST_IMAGE))) {
+            imageRepo.writeImagePart(id, 30, 20, BmpReader.open(input));
+        }
+
+        var expected = ImageIO.read(new File(BLANK_IMAGE));
+        expected.getGraphics().drawImage(source, 30, 20, null);
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)));
+    }
+
+    @Test
+    void truncatedStreamLeavesImageUnchangedTest(@TempDir Path storagePath) throws IOException {
+        var content = Files.readAllBytes(Path.of(TEST_IMAGE));
+        var truncated = Arrays.copyOf(content, content.length / 2);
+        var plainRepo = new ImageRepo(new BmpImageStorage(storagePath), 16);
+        //The default storage is transactional, plain BMP storage is not
+        for (var repo : List.of(imageRepo, plainRepo)) {
+            var blank = ImageIO.read(new File(BLANK_IMAGE));
+            String id = repo.saveImage(blank);
+
+            Assertions.assertThrows(IllegalImageFormatException.class,
+                    () -> repo.writeImagePart(id, 10, 0, BmpReader.open(new ByteArrayInputStream(truncated))));
+
+            Assertions.assertTrue(compareBufferedImages(blank, repo.readImage(id)));
+        }
+    }
+
     @Test
     void notFoundTest() {
         String id = UUID.randomUUID().toString();
         Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.readImage(id));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(id));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImagePart(id, 0, 0, 1, 1).toBufferedImage());
     }
 
     @Test
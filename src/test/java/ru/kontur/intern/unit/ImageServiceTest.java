@@ -5,15 +5,32 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import ru.kontur.intern.bmp.BmpReader;
+import ru.kontur.intern.bmp.RawRgbReader;
+import ru.kontur.intern.bmp.RowReader;
+import ru.kontur.intern.exception.IllegalImageFormatException;
 import ru.kontur.intern.exception.IllegalImageSizeException;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.exception.LevelOutOfRangeException;
 import ru.kontur.intern.exception.OffsetOutOfRangeException;
+import ru.kontur.intern.model.FragmentResult;
 import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.Pyramid;
+import ru.kontur.intern.repo.PyramidUpdater;
 import ru.kontur.intern.service.ImageService;
 
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.mockito.Mockito.*;
 
@@ -23,45 +40,46 @@ public class ImageServiceTest extends AbstractTest {
     private ImageService service;
     @MockBean
     private ImageRepo repo;
-
+    @MockBean
+    private PyramidUpdater pyramidUpdater;
 
     @Test
     void createImageTest() {
-        doReturn(TARGET_IMAGE_ID).when(repo).saveImage(any(BufferedImage.class));
+        doReturn(TARGET_IMAGE_ID).when(repo).createImage(20, 40);
         Assertions.assertEquals(TARGET_IMAGE_ID, service.createImage(20, 40));
     }
 
     @Test
     void getFullImage() throws IOException {
         var fullImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(fullImage).when(repo).readImage(anyString());
+        mockStoredImage(fullImage);
 
         //TEST_IMAGE has 20x40 size
-       Assertions.assertTrue(compareBufferedImages(fullImage, service.getImagePart(TARGET_IMAGE_ID,20, 40, 0, 0)));
+       Assertions.assertTrue(compareBufferedImages(fullImage, service.getImagePart(TARGET_IMAGE_ID,20, 40, 0, 0).toBufferedImage()));
     }
     @Test
     void getImageLargerThanSource() throws IOException {
         var fullImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(fullImage).when(repo).readImage(anyString());
+        mockStoredImage(fullImage);
 
         String path = "src/test/resources/TestImage/output/partLargerThanSource.bmp";
         var expected = ImageIO.read(new File(path));
-        Assertions.assertTrue(compareBufferedImages(expected, service.getImagePart(TARGET_IMAGE_ID,25, 50, 0, 0)));
+        Assertions.assertTrue(compareBufferedImages(expected, service.getImagePart(TARGET_IMAGE_ID,25, 50, 0, 0).toBufferedImage()));
     }
 
     @Test
     void getFullImageOffset() throws IOException {
         var fullImage = ImageIO.read(new File(TEST_IMAGE));
         var expectedImage = ImageIO.read(new File("src/test/resources/TestImage/output/overlapOutput.bmp"));
-        doReturn(fullImage).when(repo).readImage(anyString());
+        mockStoredImage(fullImage);
 
-        Assertions.assertTrue(compareBufferedImages(expectedImage, service.getImagePart(TARGET_IMAGE_ID,20, 40, 10, 20)));
+        Assertions.assertTrue(compareBufferedImages(expectedImage, service.getImagePart(TARGET_IMAGE_ID,20, 40, 10, 20).toBufferedImage()));
     }
 
     @Test
     void getFullImageOffsetOutOfTarget() throws IOException {
         var fullImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(fullImage).when(repo).readImage(anyString());
+        mockStoredImage(fullImage);
 
         //TEST_IMAGE has 20x40 size
         Assertions.assertThrows(OffsetOutOfRangeException.class,
@@ -79,21 +97,155 @@ public class ImageServiceTest extends AbstractTest {
 
     @Test
     void insertImageTest() throws IOException {
-        var fullImage = ImageIO.read(new File(BLANK_IMAGE));
         var sourceImage = ImageIO.read(new File(TEST_IMAGE));
-        doReturn(fullImage).when(repo).readImage(anyString());
-        doNothing().when(repo).updateImage(anyString(), any(BufferedImage.class));
+        doNothing().when(repo).writeImagePart(anyString(), anyInt(), anyInt(), any(BufferedImage.class));
 
         service.insertImage(TARGET_IMAGE_ID, 20, 40, 0, 0, sourceImage);
 
-        var expectedImage = ImageIO.read(new File("src/test/resources/TestImage/output/output1.bmp"));
-        verify(repo).updateImage(eq(TARGET_IMAGE_ID), argThat((actual) -> compareBufferedImages(expectedImage, actual)));
+        verify(repo).writeImagePart(eq(TARGET_IMAGE_ID), eq(0), eq(0), same(sourceImage));
+        verify(repo, never()).updateImage(anyString(), any(BufferedImage.class));
     }
 
     @Test
     void insertImageWithOffsetTest() throws IOException {
     }
 
+    @Test
+    void insertImageStreamTest() throws IOException {
+        doNothing().when(repo).writeImagePart(anyString(), anyInt(), anyInt(), any(BmpReader.class));
+
+        try (var source = Files.newInputStream(Path.of(TEST_IMAGE))) {
+            service.insertImage(TARGET_IMAGE_ID, 20, 40, 5, 10, source);
+        }
+
+        verify(repo).writeImagePart(eq(TARGET_IMAGE_ID), eq(5), eq(10),
+                argThat((BmpReader reader) -> reader.getHeader().getWidth() == 20 && reader.getHeader().getHeight() == 40));
+        verify(pyramidUpdater).invalidate(TARGET_IMAGE_ID, 5, 10, 20, 40);
+    }
+
+    @Test
+    void insertImageStreamRawRgbTest() throws IOException {
+        var sourceImage = ImageIO.read(new File(TEST_IMAGE));
+        var rgb = new ByteArrayOutputStream();
+        rgb.write(RawRgbReader.header(20, 40));
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 20; x++) {
+                int pixel = sourceImage.getRGB(x, y);
+                rgb.write(pixel >> 16);
+                rgb.write(pixel >> 8);
+                rgb.write(pixel);
+            }
+        }
+        var written = new BufferedImage(20, 40, BufferedImage.TYPE_3BYTE_BGR);
+        doAnswer(invocation -> {
+            RowReader reader = invocation.getArgument(3);
+            byte[] row = new byte[reader.getRowSize()];
+            while (reader.hasNextRow()) {
+                int y = reader.readRow(row);
+                for (int x = 0; x < 20; x++) {
+                    written.setRGB(x, y, (row[x * 3 + 2] & 0xFF) << 16 | (row[x * 3 + 1] & 0xFF) << 8 | row[x * 3] & 0xFF);
+                }
+            }
+            return null;
+        }).when(repo).writeImagePart(anyString(), anyInt(), anyInt(), any(RowReader.class));
+
+        service.insertImage(TARGET_IMAGE_ID, 20, 40, 5, 10, new ByteArrayInputStream(rgb.toByteArray()));
+
+        //Raw RGB is streamed like BMP, not decoded as a whole
+        verify(repo).writeImagePart(eq(TARGET_IMAGE_ID), eq(5), eq(10), any(RawRgbReader.class));
+        Assertions.assertTrue(compareBufferedImages(sourceImage, written));
+    }
+
+    @Test
+    void insertImageStreamNotBmpRgbTest() throws IOException {
+        doNothing().when(repo).writeImagePart(anyString(), anyInt(), anyInt(), any(BufferedImage.class));
+
+        //Images other than 24-bit BMP are decoded as a whole
+        try (var source = Files.newInputStream(Path.of("src/test/resources/TestImage/input/bmpWithAlpha.bmp"))) {
+            service.insertImage(TARGET_IMAGE_ID, 20, 40, 0, 0, source);
+        }
+
+        verify(repo).writeImagePart(eq(TARGET_IMAGE_ID), eq(0), eq(0), any(BufferedImage.class));
+    }
+
+    @Test
+    void insertImageStreamIncorrectSizeTest() {
+        //TEST_IMAGE has 20x40 size
+        Assertions.assertThrows(IllegalImageSizeException.class,
+                () -> service.insertImage(TARGET_IMAGE_ID, 40, 20, 0, 0, Files.newInputStream(Path.of(TEST_IMAGE))));
+        Assertions.assertThrows(IllegalImageFormatException.class,
+                () -> service.insertImage(TARGET_IMAGE_ID, 40, 20, 0, 0, new ByteArrayInputStream(new byte[10])));
+        verify(repo, never()).writeImagePart(anyString(), anyInt(), anyInt(), any(BmpReader.class));
+    }
+
+    @Test
+    void insertImagesTest() throws IOException {
+        var batch = mock(ImageRepo.Batch.class);
+        doReturn(batch).when(repo).openBatch(TARGET_IMAGE_ID);
+        var content = Files.readAllBytes(Path.of(TEST_IMAGE));
+        var records = new ByteArrayOutputStream();
+        var output = new DataOutputStream(records);
+        for (int[] record : new int[][]{{0, 0, 20, 40}, {5, 10, 40, 20}, {-1, 0, 20, 40}, {30, 20, 20, 40}}) {
+            for (int value : record) {
+                output.writeInt(value);
+            }
+            output.writeInt(content.length);
+            output.write(content);
+        }
+        //Truncated record
+        output.writeInt(1);
+
+        var results = service.insertImages(TARGET_IMAGE_ID, new ByteArrayInputStream(records.toByteArray()));
+
+        Assertions.assertEquals(List.of(200, 400, 400, 200, 400),
+                results.stream().map(FragmentResult::getStatus).collect(Collectors.toList()));
+        Assertions.assertNull(results.get(0).getError());
+        Assertions.assertNotNull(results.get(1).getError());
+        verify(batch).writeImagePart(eq(0), eq(0), any(BmpReader.class));
+        verify(batch).writeImagePart(eq(30), eq(20), any(BmpReader.class));
+        verify(batch, times(2)).writeImagePart(anyInt(), anyInt(), any(BmpReader.class));
+        verify(batch).close();
+    }
+
+    @Test
+    void getImagePartLevelTest() {
+        //20x40 image has levels 10x20, 5x10, 3x5, 2x3, 1x2 and 1x1
+        doReturn(new Dimension(20, 40)).when(repo).getImageSize(TARGET_IMAGE_ID);
+
+        service.getImagePart(TARGET_IMAGE_ID, 10, 20, 0, 0, 1);
+        service.getImagePart(TARGET_IMAGE_ID, 1, 1, 0, 0, 6);
+
+        verify(repo).getImagePart(Pyramid.levelId(TARGET_IMAGE_ID, 1), 0, 0, 10, 20);
+        verify(repo).getImagePart(Pyramid.levelId(TARGET_IMAGE_ID, 6), 0, 0, 1, 1);
+        Assertions.assertThrows(LevelOutOfRangeException.class,
+                () -> service.getImagePart(TARGET_IMAGE_ID, 1, 1, 0, 0, 7));
+        Assertions.assertThrows(OffsetOutOfRangeException.class,
+                () -> service.getImagePart(TARGET_IMAGE_ID, 10, 10, 10, 0, 1));
+    }
+
+    @Test
+    void levelIdsAreNotImageIdsTest() throws IOException {
+        String levelId = Pyramid.levelId(TARGET_IMAGE_ID, 1);
+        doReturn(new Dimension(10, 20)).when(repo).getImageSize(anyString());
+        var sourceImage = ImageIO.read(new File(TEST_IMAGE));
+
+        Assertions.assertThrows(ImageNotFoundException.class,
+                () -> service.insertImage(levelId, 20, 40, 0, 0, sourceImage));
+        Assertions.assertThrows(ImageNotFoundException.class,
+                () -> service.insertImage(levelId, 20, 40, 0, 0, new ByteArrayInputStream(new byte[0])));
+        Assertions.assertThrows(ImageNotFoundException.class,
+                () -> service.insertImages(levelId, List.of()));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> service.getImagePart(levelId, 1, 1, 0, 0, 1));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> service.getImageSize(levelId));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> service.deleteImage(levelId));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> service.getImageSize("id@not-a-level"));
+
+        verify(repo, never()).writeImagePart(anyString(), anyInt(), anyInt(), any(BufferedImage.class));
+        verify(repo, never()).openBatch(anyString());
+        verify(repo, never()).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+        verify(repo, never()).deleteImage(anyString());
+    }
+
     @Test
     void insertImageIncorrectSizeTest() {
         //TEST_IMAGE has 20x40 size
@@ -101,5 +253,11 @@ public class ImageServiceTest extends AbstractTest {
                 () -> service.insertImage(TARGET_IMAGE_ID, 100, 100, 0, 0,
                         ImageIO.read(new File(TEST_IMAGE))));
     }
-}
 
+    private void mockStoredImage(BufferedImage image) {
+        doReturn(new Dimension(image.getWidth(), image.getHeight())).when(repo).getImageSize(anyString());
+        doAnswer(invocation -> fragmentOf(image, invocation.getArgument(1), invocation.getArgument(2),
+                invocation.getArgument(3), invocation.getArgument(4)))
+                .when(repo).getImagePart(anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+    }
+}
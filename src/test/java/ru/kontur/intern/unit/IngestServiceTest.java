@@ -0,0 +1,159 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.Metrics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.ChartaQueueFullException;
+import ru.kontur.intern.exception.IllegalImageSizeException;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.exception.IngestOverloadedException;
+import ru.kontur.intern.exception.OperationNotFoundException;
+import ru.kontur.intern.model.EncodedFragment;
+import ru.kontur.intern.model.FragmentResult;
+import ru.kontur.intern.model.IngestOperation;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.PyramidUpdater;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.service.ImageService;
+import ru.kontur.intern.service.IngestService;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.*;
+
+public class IngestServiceTest extends AbstractTest {
+    @TempDir
+    Path storagePath;
+
+    @Test
+    void fragmentsAreAppliedInArrivalOrder() throws Exception {
+        var imageRepo = new ImageRepo(new BmpImageStorage(storagePath), 16);
+        var pyramidUpdater = new PyramidUpdater(imageRepo, 16);
+        var imageService = new ImageService(imageRepo, pyramidUpdater, Metrics.globalRegistry);
+        var ingestService = new IngestService(imageService, 2, 1 << 20, 16);
+        try {
+            String id = imageService.createImage(40, 40);
+            var first = ingestService.submit(id, 20, 40, 0, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE)));
+            var second = ingestService.submit(id, 40, 40, 10, 0, new ByteArrayInputStream(bytesOf(BLANK_IMAGE)));
+            var third = ingestService.submit(id, 20, 40, 20, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE)));
+
+            ingestService.awaitApplied(id);
+
+            var source = ImageIO.read(new File(TEST_IMAGE));
+            var blank = ImageIO.read(new File(BLANK_IMAGE));
+            var image = imageService.getImagePart(id, 40, 40, 0, 0).toBufferedImage();
+            Assertions.assertTrue(compareBufferedImages(source.getSubimage(0, 0, 10, 40), image.getSubimage(0, 0, 10, 40)));
+            Assertions.assertTrue(compareBufferedImages(blank.getSubimage(0, 0, 10, 40), image.getSubimage(10, 0, 10, 40)));
+            Assertions.assertTrue(compareBufferedImages(source, image.getSubimage(20, 0, 20, 40)));
+            for (var operation : List.of(first, second, third)) {
+                Assertions.assertEquals(IngestOperation.Status.DONE, ingestService.getOperation(operation.getId()).getStatus());
+            }
+        } finally {
+            ingestService.close();
+            pyramidUpdater.close();
+        }
+    }
+
+    @Test
+    void coveredFragmentsAreNotWritten() throws Exception {
+        var imageService = mock(ImageService.class);
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        List<List<EncodedFragment>> passes = new ArrayList<>();
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            List<EncodedFragment> fragments = invocation.getArgument(1);
+            passes.add(List.copyOf(fragments));
+            return fragments.stream()
+                    .map(fragment -> new FragmentResult(0, fragment.getX(), fragment.getY(), fragment.getWidth(),
+                            fragment.getHeight(), 200, null))
+                    .collect(Collectors.toList());
+        }).when(imageService).insertImages(eq(TARGET_IMAGE_ID), anyList());
+        var ingestService = new IngestService(imageService, 1, 1 << 20, 16);
+
+        //The first fragment keeps the worker busy while the rest are queued
+        var blocking = ingestService.submit(TARGET_IMAGE_ID, 20, 40, 0, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE)));
+        started.await();
+        var covered = ingestService.submit(TARGET_IMAGE_ID, 20, 40, 5, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE)));
+        var covering = ingestService.submit(TARGET_IMAGE_ID, 40, 40, 0, 0, new ByteArrayInputStream(bytesOf(BLANK_IMAGE)));
+        var adjacent = ingestService.submit(TARGET_IMAGE_ID, 20, 40, 40, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE)));
+        release.countDown();
+        ingestService.awaitApplied(TARGET_IMAGE_ID);
+        ingestService.close();
+
+        Assertions.assertEquals(2, passes.size());
+        Assertions.assertEquals(1, passes.get(0).size());
+        Assertions.assertEquals(List.of(40, 20), passes.get(1).stream().map(EncodedFragment::getWidth)
+                .collect(Collectors.toList()));
+        for (var operation : List.of(blocking, covered, covering, adjacent)) {
+            Assertions.assertEquals(IngestOperation.Status.DONE, operation.getStatus());
+        }
+    }
+
+    @Test
+    void failedFragmentIsReported() throws Exception {
+        var imageService = mock(ImageService.class);
+        doThrow(new ImageNotFoundException(TARGET_IMAGE_ID)).when(imageService).insertImages(eq(TARGET_IMAGE_ID), anyList());
+        var ingestService = new IngestService(imageService, 1, 1 << 20, 16);
+
+        var operation = ingestService.submit(TARGET_IMAGE_ID, 20, 40, 0, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE)));
+        ingestService.awaitApplied(TARGET_IMAGE_ID);
+        ingestService.close();
+
+        Assertions.assertEquals(IngestOperation.Status.FAILED, operation.getStatus());
+        Assertions.assertNotNull(operation.getError());
+    }
+
+    @Test
+    void uploadsOverBoundsAreRejected() throws Exception {
+        var imageService = mock(ImageService.class);
+        var release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return List.of();
+        }).when(imageService).insertImages(eq(TARGET_IMAGE_ID), anyList());
+        var content = bytesOf(TEST_IMAGE);
+        var ingestService = new IngestService(imageService, 1, 2L * content.length, 1);
+        try {
+            ingestService.submit(TARGET_IMAGE_ID, 20, 40, 0, 0, new ByteArrayInputStream(content));
+            Assertions.assertThrows(ChartaQueueFullException.class, () ->
+                    ingestService.submit(TARGET_IMAGE_ID, 20, 40, 0, 0, new ByteArrayInputStream(content)));
+            ingestService.submit("other", 20, 40, 0, 0, new ByteArrayInputStream(content));
+            Assertions.assertThrows(IngestOverloadedException.class, () ->
+                    ingestService.submit("third", 20, 40, 0, 0, new ByteArrayInputStream(content)));
+        } finally {
+            release.countDown();
+            ingestService.close();
+        }
+        //Memory of applied fragments is given back
+        var again = new IngestService(imageService, 1, 2L * content.length, 1);
+        again.submit(TARGET_IMAGE_ID, 20, 40, 0, 0, new ByteArrayInputStream(content));
+        again.close();
+    }
+
+    @Test
+    void bmpSizeIsCheckedOnSubmit() throws Exception {
+        var ingestService = new IngestService(mock(ImageService.class), 1, 1 << 20, 16);
+        try {
+            Assertions.assertThrows(IllegalImageSizeException.class, () ->
+                    ingestService.submit(TARGET_IMAGE_ID, 40, 40, 0, 0, new ByteArrayInputStream(bytesOf(TEST_IMAGE))));
+            Assertions.assertThrows(OperationNotFoundException.class, () -> ingestService.getOperation("unknown"));
+        } finally {
+            ingestService.close();
+        }
+    }
+
+    private static byte[] bytesOf(String path) throws Exception {
+        return Files.readAllBytes(Path.of(path));
+    }
+}
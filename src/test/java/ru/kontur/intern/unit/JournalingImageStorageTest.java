@@ -0,0 +1,143 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.repo.storage.JournalingImageStorage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class JournalingImageStorageTest extends AbstractTest {
+    @TempDir
+    Path storagePath;
+    private BmpImageStorage diskStorage;
+    private ImageRepo diskRepo;
+    private Path journalPath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        diskStorage = new BmpImageStorage(storagePath);
+        diskRepo = new ImageRepo(diskStorage, 16);
+        journalPath = storagePath.resolve("journal");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        diskStorage.close();
+    }
+
+    @Test
+    void checkpointDeletesAppliedSegments() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        try (var journal = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(journal, 16);
+            String id = imageRepo.saveImage(source);
+
+            Assertions.assertTrue(compareBufferedImages(source, diskRepo.readImage(id)));
+            Assertions.assertEquals(1, segments().size());
+
+            journal.checkpoint();
+
+            Assertions.assertTrue(segments().isEmpty());
+        }
+    }
+
+    @Test
+    void committedWritesAreReplayed() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        var crashed = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1));
+        String id = new ImageRepo(crashed, 16).saveImage(source);
+        //Pixels applied to the image are lost in the crash
+        diskRepo.writeImagePart(id, 0, 0, blackImage(source));
+
+        try (var journal = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1))) {
+            Assertions.assertTrue(compareBufferedImages(source, diskRepo.readImage(id)));
+            Assertions.assertTrue(segments().isEmpty());
+        }
+    }
+
+    @Test
+    void tornTransactionIsNotReplayed() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        var crashed = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1));
+        var imageRepo = new ImageRepo(crashed, 16);
+        String id = imageRepo.saveImage(source);
+        imageRepo.writeImagePart(id, 0, 0, new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR));
+        diskRepo.writeImagePart(id, 0, 0, blackImage(source));
+        //Commit record of the second fragment is torn
+        try (var channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        try (var journal = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1))) {
+            Assertions.assertTrue(compareBufferedImages(source, diskRepo.readImage(id)));
+        }
+    }
+
+    @Test
+    void failedFragmentIsNotCommitted() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        //Conversion of the fragment fails in its third band of region rows
+        var failing = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_BGR) {
+            @Override
+            public int[] getRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+                if (startY >= 35) {
+                    throw new IllegalStateException("Broken fragment");
+                }
+                return source.getRGB(startX, startY, w, h, rgbArray, offset, scansize);
+            }
+        };
+        String id = diskRepo.createImage(source.getWidth(), source.getHeight());
+        var crashed = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1));
+        try (var bandExecutor = new BandExecutor(4, 1)) {
+            var imageRepo = new ImageRepo(crashed, 16, 16, 64, Metrics.globalRegistry, bandExecutor);
+
+            Assertions.assertThrows(IllegalStateException.class, () -> imageRepo.writeImagePart(id, 0, 0, failing));
+        }
+        Assertions.assertTrue(compareBufferedImages(blackImage(source), diskRepo.readImage(id)));
+
+        try (var journal = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1))) {
+            Assertions.assertTrue(compareBufferedImages(blackImage(source), diskRepo.readImage(id)));
+        }
+    }
+
+    @Test
+    void deleteDropsJournal() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        try (var journal = new JournalingImageStorage(diskStorage, journalPath, Duration.ofHours(1))) {
+            var imageRepo = new ImageRepo(journal, 16);
+            String id = imageRepo.saveImage(source);
+
+            imageRepo.deleteImage(id);
+
+            Assertions.assertTrue(segments().isEmpty());
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(journalPath)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    private static BufferedImage blackImage(BufferedImage source) {
+        return new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+    }
+}
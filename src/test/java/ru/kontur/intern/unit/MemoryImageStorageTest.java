@@ -0,0 +1,59 @@
+package ru.kontur.intern.unit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.MemoryImageStorage;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class MemoryImageStorageTest extends AbstractTest {
+    private MemoryImageStorage storage;
+    private ImageRepo imageRepo;
+
+    @BeforeEach
+    void setUp() {
+        storage = new MemoryImageStorage(16);
+        imageRepo = new ImageRepo(storage, 16);
+    }
+
+    @Test
+    void createAllocatesNoMemory() throws IOException {
+        //Would take 3 GB if pixels were allocated
+        String id = imageRepo.createImage(20000, 50000);
+
+        try (var image = storage.open(id, false)) {
+            var row = image.row(49999, 19000, 1000);
+            while (row.hasRemaining()) {
+                Assertions.assertEquals(0, row.get());
+            }
+        }
+    }
+
+    @Test
+    void fragmentsMatchBmpStorage() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(20, 40);
+        imageRepo.writeImagePart(id, 0, 0, source);
+
+        Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(id)));
+        var expected = ImageIO.read(new File("src/test/resources/TestImage/output/overlapOutput.bmp"));
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.getImagePart(id, 10, 20, 20, 40).toBufferedImage()));
+    }
+
+    @Test
+    void deleteRemovesImage() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+
+        imageRepo.deleteImage(id);
+
+        Assertions.assertEquals(List.of(), storage.list());
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(id));
+    }
+}
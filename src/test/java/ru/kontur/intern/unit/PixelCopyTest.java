@@ -0,0 +1,82 @@
+package ru.kontur.intern.unit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.kontur.intern.bmp.PixelCopy;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class PixelCopyTest extends AbstractTest {
+    private static final int[][] OFFSETS = {
+            {0, 0}, {3, 5}, {-4, -7}, {15, 30}, {-19, 39}, {20, 0}, {0, 40}, {-20, -10}, {35, -12},
+            {Integer.MIN_VALUE, 0}, {0, Integer.MAX_VALUE}, {Integer.MAX_VALUE, Integer.MIN_VALUE}
+    };
+
+    private final Random random = new Random(42);
+
+    @Test
+    void clipKeepsIndexesFallingIntoDestination() {
+        //Spans of 20 pixels are placed into rows of 40 pixels at every offset
+        for (int[] offset : OFFSETS) {
+            for (int value : offset) {
+                int start = PixelCopy.clipStart(value, 20);
+                int end = PixelCopy.clipEnd(value, 20, 40);
+                for (int i = 0; i < 20; i++) {
+                    long position = (long) value + i;
+                    Assertions.assertEquals(position >= 0 && position < 40, start <= i && i < end,
+                            String.format("Offset %s, index %s", value, i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void convertsBetweenRgbAndBgr() {
+        var image = randomImage(20, 40, BufferedImage.TYPE_INT_RGB);
+        int[] rgb = PixelCopy.rgbRaster(image);
+        byte[] bgr = new byte[rgb.length * 3];
+
+        PixelCopy.rgbToBgr(rgb, 0, bgr, 0, rgb.length);
+
+        Assertions.assertArrayEquals(PixelCopy.bgrRaster(copyOf(image, BufferedImage.TYPE_3BYTE_BGR)), bgr);
+        int[] converted = new int[rgb.length + 1];
+        var buffer = ByteBuffer.wrap(bgr);
+        Assertions.assertEquals(rgb.length, PixelCopy.bgrToRgb(buffer, converted, 1));
+        Assertions.assertFalse(buffer.hasRemaining());
+        for (int i = 0; i < rgb.length; i++) {
+            Assertions.assertEquals(rgb[i], converted[i + 1]);
+        }
+    }
+
+    @Test
+    void rastersOfOtherLayoutsAreNotExposed() {
+        var image = randomImage(20, 40, BufferedImage.TYPE_3BYTE_BGR);
+
+        Assertions.assertNull(PixelCopy.bgrRaster(image.getSubimage(1, 1, 10, 10)));
+        Assertions.assertNull(PixelCopy.rgbRaster(image));
+        Assertions.assertNull(PixelCopy.bgrRaster(new BufferedImage(20, 40, BufferedImage.TYPE_INT_BGR)));
+        Assertions.assertNull(PixelCopy.rgbRaster(randomImage(20, 40, BufferedImage.TYPE_INT_RGB).getSubimage(0, 1, 20, 10)));
+    }
+
+    private BufferedImage randomImage(int width, int height, int type) {
+        var image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage copyOf(BufferedImage image) {
+        return copyOf(image, image.getType());
+    }
+
+    private static BufferedImage copyOf(BufferedImage image, int type) {
+        var copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        copy.getGraphics().drawImage(image, 0, 0, null);
+        return copy;
+    }
+}
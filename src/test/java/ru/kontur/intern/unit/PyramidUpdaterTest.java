@@ -0,0 +1,161 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.ImageIndex;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.Pyramid;
+import ru.kontur.intern.repo.PyramidUpdater;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class PyramidUpdaterTest extends AbstractTest {
+    //Chunks smaller than the image make updates go through several chunks per level
+    private static final int CHUNK_SIZE = 4;
+
+    @TempDir
+    Path storagePath;
+    private ImageRepo imageRepo;
+    private PyramidUpdater pyramidUpdater;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        imageRepo = new ImageRepo(new BmpImageStorage(storagePath), 16, 8, 64);
+        pyramidUpdater = new PyramidUpdater(imageRepo, CHUNK_SIZE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pyramidUpdater.close();
+    }
+
+    @Test
+    void levelSizes() {
+        Assertions.assertEquals(16, Pyramid.levelCount(20000, 50000));
+        Assertions.assertEquals(0, Pyramid.levelCount(1, 1));
+        Assertions.assertEquals(new Dimension(10, 20), Pyramid.levelSize(20, 40, 1));
+        Assertions.assertEquals(new Dimension(3, 5), Pyramid.levelSize(20, 40, 3));
+        Assertions.assertEquals(new Dimension(1, 1), Pyramid.levelSize(20, 40, Pyramid.levelCount(20, 40)));
+        Assertions.assertEquals("id", Pyramid.baseId(Pyramid.levelId("id", 3)));
+    }
+
+    @Test
+    void levelsAreAveragesOfLevelBelow() throws Exception {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 7, 0, source);
+
+        pyramidUpdater.invalidate(id, 7, 0, 20, 40);
+        pyramidUpdater.flush();
+
+        assertLevelsMatch(imageRepo, id, imageRepo.readImage(id));
+    }
+
+    @Test
+    void onlyWrittenAreaIsRecomputed() throws Exception {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, source);
+        pyramidUpdater.invalidate(id, 0, 0, 20, 40);
+        pyramidUpdater.flush();
+
+        //Not reported write, level 1 keeps the previous pixels there
+        var white = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        var graphics = white.getGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 10, 10);
+        imageRepo.writeImagePart(id, 0, 0, white);
+        imageRepo.writeImagePart(id, 21, 3, source);
+        pyramidUpdater.invalidate(id, 21, 3, 20, 40);
+        pyramidUpdater.flush();
+
+        var expected = imageRepo.readImage(id);
+        expected.getGraphics().drawImage(source.getSubimage(0, 0, 10, 10), 0, 0, null);
+        var level1 = imageRepo.readImage(Pyramid.levelId(id, 1));
+        Assertions.assertTrue(compareBufferedImages(downsample(expected), level1));
+    }
+
+    @Test
+    void neverWrittenAreasAreBlackInLevels() throws Exception {
+        //Complete index tracks written cells, so never written chunks of the image are read without storage
+        var storage = new BmpImageStorage(storagePath.resolve("indexed"));
+        var indexedRepo = new ImageRepo(storage, ImageIndex.open(storage, storagePath.resolve("images.index"), 8),
+                16, 8, 64, new SimpleMeterRegistry(), BandExecutor.serial());
+        try (var updater = new PyramidUpdater(indexedRepo, CHUNK_SIZE)) {
+            String id = indexedRepo.createImage(64, 64);
+            var white = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+            var graphics = white.getGraphics();
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, 8, 8);
+            indexedRepo.writeImagePart(id, 0, 0, white);
+            indexedRepo.writeImagePart(id, 56, 56, white);
+            updater.invalidate(id, 0, 0, 64, 64);
+            updater.flush();
+
+            var level1 = indexedRepo.readImage(Pyramid.levelId(id, 1));
+            Assertions.assertEquals(Color.WHITE.getRGB(), level1.getRGB(0, 0));
+            Assertions.assertEquals(Color.BLACK.getRGB(), level1.getRGB(10, 0));
+            Assertions.assertEquals(Color.WHITE.getRGB(), level1.getRGB(31, 31));
+            assertLevelsMatch(indexedRepo, id, indexedRepo.readImage(id));
+        }
+        storage.close();
+    }
+
+    @Test
+    void deleteRemovesLevels() {
+        String id = imageRepo.createImage(40, 40);
+
+        imageRepo.deleteImage(id);
+
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(Pyramid.levelId(id, 1)));
+        Assertions.assertFalse(storagePath.resolve(Pyramid.levelId(id, 1) + ".bmp").toFile().exists());
+    }
+
+    private void assertLevelsMatch(ImageRepo repo, String id, BufferedImage image) {
+        for (int level = 1; level <= Pyramid.levelCount(image.getWidth(), image.getHeight()); level++) {
+            image = downsample(image);
+            Assertions.assertTrue(compareBufferedImages(image, repo.readImage(Pyramid.levelId(id, level))),
+                    String.format("Level %s", level));
+        }
+    }
+
+    /**
+     * Averages 2x2 pixels, the last column and row of odd sized image are averaged alone.
+     */
+    private static BufferedImage downsample(BufferedImage image) {
+        int width = (image.getWidth() + 1) / 2;
+        int height = (image.getHeight() + 1) / 2;
+        var result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = 0;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int sum = 0;
+                    int count = 0;
+                    for (int dy = 0; dy < 2 && 2 * y + dy < image.getHeight(); dy++) {
+                        for (int dx = 0; dx < 2 && 2 * x + dx < image.getWidth(); dx++) {
+                            sum += image.getRGB(2 * x + dx, 2 * y + dy) >> shift & 0xFF;
+                            count++;
+                        }
+                    }
+                    rgb |= (sum + count / 2) / count << shift;
+                }
+                result.setRGB(x, y, rgb);
+            }
+        }
+        return result;
+    }
+}
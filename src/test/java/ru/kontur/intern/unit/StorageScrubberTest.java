@@ -0,0 +1,166 @@
+package ru.kontur.intern.unit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.BandExecutor;
+import ru.kontur.intern.repo.ImageIndex;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.Pyramid;
+import ru.kontur.intern.repo.PyramidUpdater;
+import ru.kontur.intern.repo.StorageScrubber;
+import ru.kontur.intern.repo.storage.BmpImageStorage;
+import ru.kontur.intern.repo.storage.CachingImageStorage;
+import ru.kontur.intern.repo.storage.ImageStorage;
+import ru.kontur.intern.repo.storage.TileCodec;
+import ru.kontur.intern.repo.storage.TiledImageStorage;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+public class StorageScrubberTest extends AbstractTest {
+    @TempDir
+    Path storagePath;
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ImageStorage storage;
+    private ImageRepo imageRepo;
+    private PyramidUpdater pyramidUpdater;
+    private StorageScrubber scrubber;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        scrubber.close();
+        pyramidUpdater.close();
+        storage.close();
+    }
+
+    @Test
+    void leftoversAreReclaimed() throws Exception {
+        setUp(new BmpImageStorage(storagePath));
+        String id = imageRepo.createImage(20, 40);
+        Set<String> stored = new HashSet<>(storage.list());
+        storage.create("unindexed", 4, 4);
+        storage.create(Pyramid.levelId("unindexed", 1), 2, 2);
+        storage.create(Pyramid.levelId(id, 10), 1, 1);
+
+        scrubber.scrub();
+
+        Assertions.assertEquals(stored, new HashSet<>(storage.list()));
+        Assertions.assertEquals(20, imageRepo.getImageSize(id).width);
+        //A level is deleted with its image if the image is listed first
+        Assertions.assertEquals(3, count("reclaimed") + count("missing"));
+        Assertions.assertEquals(stored.size(), count("valid"));
+    }
+
+    @Test
+    void truncatedImageIsQuarantined() throws Exception {
+        setUp(new BmpImageStorage(storagePath));
+        String id = imageRepo.createImage(20, 40);
+        try (var channel = FileChannel.open(storagePath.resolve(id + ".bmp"), StandardOpenOption.WRITE)) {
+            channel.truncate(100);
+        }
+
+        scrubber.scrub();
+
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(id));
+        Assertions.assertTrue(storage.list().isEmpty());
+        Assertions.assertTrue(Files.exists(storagePath.resolve("quarantine").resolve(id + ".bmp")));
+        Assertions.assertEquals(1, count("quarantined"));
+    }
+
+    @Test
+    void brokenLevelsAreRecomputed() throws Exception {
+        setUp(new BmpImageStorage(storagePath));
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.saveImage(source);
+        String reference = imageRepo.saveImage(source);
+        pyramidUpdater.invalidate(reference, 0, 0, 20, 40);
+        pyramidUpdater.flush();
+        storage.delete(Pyramid.levelId(id, 1));
+        try (var channel = FileChannel.open(storagePath.resolve(Pyramid.levelId(id, 2) + ".bmp"),
+                StandardOpenOption.WRITE)) {
+            channel.truncate(100);
+        }
+
+        scrubber.scrub();
+        pyramidUpdater.flush();
+
+        Assertions.assertTrue(compareBufferedImages(imageRepo.readImage(Pyramid.levelId(reference, 2)),
+                imageRepo.readImage(Pyramid.levelId(id, 2))));
+        Assertions.assertTrue(count("repaired") >= 1);
+    }
+
+    @Test
+    void unreadableTilesAreQuarantinedAndLeftoversReclaimed() throws Exception {
+        setUp(new TiledImageStorage(storagePath, 8, TileCodec.of("deflate")));
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String corrupt = imageRepo.saveImage(source);
+        String valid = imageRepo.saveImage(source);
+        Files.write(storagePath.resolve(corrupt).resolve("1-2.deflate"), new byte[]{1, 2, 3});
+        Files.write(storagePath.resolve(valid).resolve("1-2.deflate.tmp"), new byte[10]);
+
+        scrubber.scrub();
+
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(corrupt));
+        Assertions.assertTrue(Files.exists(storagePath.resolve("quarantine").resolve(corrupt)));
+        Assertions.assertFalse(Files.exists(storagePath.resolve(valid).resolve("1-2.deflate.tmp")));
+        Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(valid)));
+        Assertions.assertEquals(10, registry.get("chartographer.scrubber.bytes").tag("operation", "reclaimed")
+                .counter().count());
+        Assertions.assertEquals(1, registry.get("chartographer.scrubber.progress").gauge().value());
+    }
+
+    @Test
+    void pixelsAreReadBeneathCache() throws Exception {
+        var cache = new CachingImageStorage(new TiledImageStorage(storagePath, 8, TileCodec.of("deflate")), 8,
+                1 << 20, Duration.ofHours(1), registry);
+        setUp(cache);
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String corrupt = imageRepo.saveImage(source);
+        String valid = imageRepo.saveImage(source);
+        cache.flush();
+        //Blocks of the corrupt image stay cached intact
+        Files.write(storagePath.resolve(corrupt).resolve("1-2.deflate"), new byte[]{1, 2, 3});
+        long lookups = cache.getHitCount() + cache.getMissCount();
+
+        scrubber.scrub();
+
+        //Scrubbed pixels are neither served from the cache nor loaded into it
+        Assertions.assertEquals(lookups, cache.getHitCount() + cache.getMissCount());
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(corrupt));
+        Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(valid)));
+    }
+
+    @Test
+    void nonPositiveLimitsAreRejected() throws Exception {
+        setUp(new BmpImageStorage(storagePath));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new StorageScrubber(imageRepo, storage,
+                pyramidUpdater, 0, Duration.ofHours(1), registry));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new StorageScrubber(imageRepo, storage,
+                pyramidUpdater, 1024, Duration.ZERO, registry));
+    }
+
+    private void setUp(ImageStorage storage) throws IOException {
+        this.storage = storage;
+        imageRepo = new ImageRepo(storage, ImageIndex.open(storage, storagePath.resolve("images.index")), 16, 8, 64,
+                registry, BandExecutor.serial());
+        pyramidUpdater = new PyramidUpdater(imageRepo, 8);
+        scrubber = new StorageScrubber(imageRepo, storage, pyramidUpdater, 1L << 40, Duration.ofHours(1), registry);
+    }
+
+    private double count(String status) {
+        return registry.get("chartographer.scrubber.images").tag("status", status).counter().count();
+    }
+}
@@ -0,0 +1,100 @@
+package ru.kontur.intern.unit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kontur.intern.bmp.BmpReader;
+import ru.kontur.intern.exception.ImageNotFoundException;
+import ru.kontur.intern.repo.ImageRepo;
+import ru.kontur.intern.repo.storage.TiledImageStorage;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class TiledImageStorageTest extends AbstractTest {
+    private static final int TILE_SIZE = 16;
+
+    @TempDir
+    Path storagePath;
+    private TiledImageStorage storage;
+    private ImageRepo imageRepo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        storage = new TiledImageStorage(storagePath, TILE_SIZE);
+        imageRepo = new ImageRepo(storage, 16);
+    }
+
+    @Test
+    void createAllocatesNoTiles() throws IOException {
+        String id = imageRepo.createImage(20000, 50000);
+
+        Assertions.assertEquals(0, countTiles(id));
+        try (var image = storage.open(id, false)) {
+            Assertions.assertEquals(20000, image.getWidth());
+            Assertions.assertEquals(50000, image.getHeight());
+            var row = image.row(49999, 19000, 1000);
+            while (row.hasRemaining()) {
+                Assertions.assertEquals(0, row.get());
+            }
+        }
+    }
+
+    @Test
+    void writeTouchesOnlyIntersectingTiles() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(40, 40);
+
+        //20x40 fragment at (30, 20) covers columns 30..39 and rows 20..39 of the image
+        try (var input = Files.newInputStream(Path.of(TEST_IMAGE))) {
+            imageRepo.writeImagePart(id, 30, 20, BmpReader.open(input));
+        }
+
+        var expected = ImageIO.read(new File(BLANK_IMAGE));
+        expected.getGraphics().drawImage(source, 30, 20, null);
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.readImage(id)));
+        Assertions.assertTrue(countTiles(id) <= 4);
+    }
+
+    @Test
+    void fragmentsMatchBmpStorage() throws IOException {
+        var source = ImageIO.read(new File(TEST_IMAGE));
+        String id = imageRepo.createImage(20, 40);
+        imageRepo.writeImagePart(id, 0, 0, source);
+
+        Assertions.assertTrue(compareBufferedImages(source, imageRepo.readImage(id)));
+        var expected = ImageIO.read(new File("src/test/resources/TestImage/output/overlapOutput.bmp"));
+        Assertions.assertTrue(compareBufferedImages(expected, imageRepo.getImagePart(id, 10, 20, 20, 40).toBufferedImage()));
+    }
+
+    @Test
+    void blackWritesAllocateNoTiles() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(BLANK_IMAGE)));
+
+        Assertions.assertEquals(0, countTiles(id));
+    }
+
+    @Test
+    void deleteRemovesAllTiles() throws IOException {
+        String id = imageRepo.createImage(40, 40);
+        imageRepo.writeImagePart(id, 0, 0, ImageIO.read(new File(TEST_IMAGE)));
+
+        imageRepo.deleteImage(id);
+
+        Assertions.assertFalse(Files.exists(storagePath.resolve(id)));
+        Assertions.assertThrows(ImageNotFoundException.class, () -> imageRepo.getImageSize(id));
+    }
+
+    private long countTiles(String id) throws IOException {
+        try (Stream<Path> files = Files.list(storagePath.resolve(id))) {
+            return files.filter(file -> file.toString().endsWith(".tile")).count();
+        }
+    }
+}